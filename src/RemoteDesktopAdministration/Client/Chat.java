@@ -2,6 +2,7 @@ package RemoteDesktopAdministration.Client;
 
 import RemoteDesktopAdministration.Client.Logger.ClientLogger;
 import RemoteDesktopAdministration.Client.UI.PrimaryModel;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 
 import java.time.ZonedDateTime;
 
@@ -31,7 +32,7 @@ public class Chat {
     }
 
     private void receiveFromServer(String message) {
-        mainClient.writeStream(MainClient.DescriptorCode.CHAT_INITIATOR_SERVER_OK, message);
+        mainClient.writeStream(DescriptorCode.CHAT_INITIATOR_SERVER_OK, message);
         uiPrimaryModel.setChatRecord(new UIChatRecord(State.RECEIVE, ZonedDateTime.now(), message));
         ClientLogger.CLIENT_LOGGER.info("Message Received");
 
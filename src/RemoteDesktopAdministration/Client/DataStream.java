@@ -0,0 +1,85 @@
+package RemoteDesktopAdministration.Client;
+
+import RemoteDesktopAdministration.Client.Logger.ClientLogger;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReceiveWindow;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extra socket to server carrying ranges of files, once {@link Handshake.Feature#DATA_STREAMS} is agreed.
+ * <p>
+ * It attaches to the session of the client's own connection with a {@link DescriptorCode#DATA_STREAM_ATTACH} frame, then only receives {@link DescriptorCode#FTP_RANGE} frames,
+ * handed to {@link FileReceiver}, and exchanges flow control credit; acknowledgements go back on the client's own connection.
+ * On a lossy long-distance link every stream gets its own congestion window, so several together fill a pipe one connection cannot.
+ */
+final class DataStream {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    /**
+     * only the attach frame and WINDOW_UPDATE frames leave on a data stream
+     */
+    private static final long OUTBOUND_QUEUE_CAPACITY = 64L * 1024;
+    private final Socket socket;
+    private final FrameReader frameReader;
+    private final OutboundQueue outboundQueue;
+    private final FileReceiver fileReceiver;
+
+    /**
+     * @param serverAddress  address of server the client is connected to
+     * @param sessionToken   token of client's session
+     * @param agreement      settings negotiated on client's own connection, used on this one too
+     * @param coalesceNanos  coalescing window of writer
+     * @param fileReceiver   receiver ranges are written by
+     */
+    DataStream(InetSocketAddress serverAddress, String sessionToken, Handshake.Agreement agreement, long coalesceNanos, FileReceiver fileReceiver) throws IOException {
+        final var channel = SocketChannel.open();
+        try {
+            channel.socket().connect(serverAddress, CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.socket = channel.socket();
+        this.fileReceiver = fileReceiver;
+        this.frameReader = new FrameReader(socket.getInputStream());
+        this.outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, (descriptor, data) -> OutboundQueue.OverflowPolicy.NEVER_DROP, (descriptor, data) -> FrameCodec.Channel.CONTROL);
+        frameReader.setReceiveWindow(new ReceiveWindow(outboundQueue));
+        outboundQueue.startWriter(channel, coalesceNanos, ThreadMode.CONFIGURED.threadFactory("Data-Stream-Writer-"));
+        /* attach frame is queued before the agreement is set, so it leaves in the format server reads from a new connection */
+        outboundQueue.offer(DescriptorCode.DATA_STREAM_ATTACH, sessionToken.getBytes(StandardCharsets.UTF_8));
+        outboundQueue.setAgreement(agreement);
+        ThreadMode.CONFIGURED.start("Data-Stream-Listener", this::listen);
+    }
+
+    private void listen() {
+        while (!socket.isClosed()) {
+            final var stream = frameReader.readStream();
+            switch (stream.descriptorByte()) {
+                case DescriptorCode.FTP_RANGE -> fileReceiver.rangeReceived(stream.dataBuffer(), stream.dataLength());
+                case DescriptorCode.WINDOW_UPDATE -> ReceiveWindow.grant(stream, outboundQueue);
+                case DescriptorCode.CONNECTION_LOST -> close();
+                default -> ClientLogger.CLIENT_LOGGER.finest("Message Type ignored on data stream :" + DescriptorCode.nameOf(stream.descriptorByte()));
+            }
+            stream.release();
+        }
+    }
+
+    void close() {
+        outboundQueue.close();
+        try {
+            frameReader.close();
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -5,20 +5,23 @@ import RemoteDesktopAdministration.Client.UI.FileReceiveProgress.Model;
 import RemoteDesktopAdministration.Client.UI.FileReceiveProgress.View;
 import RemoteDesktopAdministration.Client.UI.PrimaryModel;
 import RemoteDesktopAdministration.Client.Utils.FileUtils;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.util.Arrays;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
-import static RemoteDesktopAdministration.Client.MainClient.DescriptorCode.FTP_ON_NO_PROGRESS;
-import static RemoteDesktopAdministration.Client.MainClient.DescriptorCode.FTP_ON_PROGRESS;
+import static RemoteDesktopAdministration.Protocol.DescriptorCode.FTP_ON_NO_PROGRESS;
+import static RemoteDesktopAdministration.Protocol.DescriptorCode.FTP_ON_PROGRESS;
 
 public class FileReceiver {
 
@@ -37,6 +40,18 @@ public class FileReceiver {
     private String mainFileName;
     private File downloadLocation;
     private long startTime;
+    /**
+     * true from opening a file until it is committed or given up, also while connection to server is lost
+     */
+    private boolean receiving = false;
+    /**
+     * ranges written out of order from data streams, file pointer of start to file pointer of end, adjacent ranges merged; empty while file arrives in order
+     */
+    private final TreeMap<Long, Long> receivedRanges = new TreeMap<>();
+    /**
+     * guards the file and progress between the connection's reading thread and those of data streams; a lock rather than synchronized, which would pin a virtual thread during file IO
+     */
+    private final ReentrantLock lock = new ReentrantLock();
 
 
     public FileReceiver(MainClient mainClient, Model model, PrimaryModel primaryModel) {
@@ -45,29 +60,38 @@ public class FileReceiver {
         this.primaryModel = primaryModel;
     }
 
-    private static String getRemoteSoftInstallPayloadDataBuffer(byte[] eventPayload) {
-        byte[] payloadData = new byte[eventPayload.length - 1];
-        System.arraycopy(eventPayload, 1, payloadData, 0, eventPayload.length - 1);
-        return new String(payloadData, StandardCharsets.UTF_8);
+    private static String getRemoteSoftInstallPayloadDataBuffer(byte[] eventPayload, int payloadLength) {
+        return new String(eventPayload, 1, payloadLength - 1, StandardCharsets.UTF_8);
     }
 
-    void stateActionPerformed(State state, byte[] dataByteBuffer) {
+    /**
+     * @param dataByteBuffer frame data, valid from index 0 to dataLength and only during this call
+     */
+    void stateActionPerformed(State state, byte[] dataByteBuffer, int dataLength) {
         Objects.requireNonNull(state);
-        switch (state) {
-            case START -> start(dataByteBuffer);
-            case NO_PROGRESS -> noProgress(new String(dataByteBuffer, StandardCharsets.UTF_8));
-            case EOR -> EOR(dataByteBuffer);
-            case EOF -> EOF(new String(dataByteBuffer, StandardCharsets.UTF_8));
-            case COMMIT -> commit(dataByteBuffer);
-            case ABORT -> abort();
+        lock.lock();
+        try {
+            switch (state) {
+                case START -> start(dataByteBuffer);
+                case NO_PROGRESS -> noProgress(new String(dataByteBuffer, 0, dataLength, StandardCharsets.UTF_8));
+                case EOR -> EOR(dataByteBuffer, dataLength);
+                case EOF -> EOF(new String(dataByteBuffer, 0, dataLength, StandardCharsets.UTF_8));
+                case COMMIT -> commit(dataByteBuffer, dataLength);
+                case ABORT -> abort();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     //<editor-fold defaultstate="collapsed" desc="start(dataByteBuffer)">
     private void start(byte[] dataByteBuffer) {
         byte b = dataByteBuffer[0];
+        /* 2 : server resumed session and announces the interrupted file again; otherwise a partly received file is stale */
+        if (b != 2 && receiving)
+            discard();
         switch (b) {
-            case 0 -> mainClient.writeStream(FTP_ON_NO_PROGRESS);
+            case 0, 2 -> mainClient.writeStream(FTP_ON_NO_PROGRESS);
             case 1 -> {
                 prevDownSize = 0L;
                 downSize = 0L;
@@ -94,6 +118,19 @@ public class FileReceiver {
         if (dirOrFile == 2) {
             this.isFolderContent = true;
         }
+        if (receiving && data[2].equals(relativePath) && Long.parseLong(data[1]) == totalSize) {
+            try {
+                newFp = receivedRanges.isEmpty() ? raf.getFilePointer() : contiguousLength();
+                raf.seek(newFp);
+                downSize = newFp;
+                ClientLogger.CLIENT_LOGGER.info(relativePath + " Receive resumed at " + FileUtils.getReadableFileSize(newFp));
+                mainClient.writeStream(FTP_ON_PROGRESS, String.valueOf(newFp));
+                return;
+            } catch (IOException e) {
+                discard();
+            }
+        } else if (receiving)
+            discard();
         this.totalSize = Long.parseLong(data[1]);
         this.relativePath = data[2];
 
@@ -108,19 +145,21 @@ public class FileReceiver {
                 this.absolute = absoluteFile;
             } catch (IOException e) {
                 ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, relativePath + " File Receive failed [" + e.getMessage() + "]", e);
-                mainClient.writeStream(MainClient.DescriptorCode.FTP_ABORT);
+                mainClient.writeStream(DescriptorCode.FTP_ABORT);
                 return;
             }
         }
         try {
             sha256Digest.resetSHA256Digest();
+            receivedRanges.clear();
             this.raf = new RandomAccessFile(absolute, "rw");
+            receiving = true;
             this.mainFileName = Paths.get(relativePath).getName(0).toString();
             if (prevDownSize == 0L)
                 ClientLogger.CLIENT_LOGGER.info(mainFileName + (isFolderContent ? " FOLDER" : " FILE") + " Receive Started");
         } catch (IOException e) {
             ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "File Receive failed [" + e.getMessage() + "]", e);
-            mainClient.writeStream(MainClient.DescriptorCode.FTP_ABORT);
+            mainClient.writeStream(DescriptorCode.FTP_ABORT);
             return;
         }
         mainClient.writeStream(FTP_ON_PROGRESS, String.valueOf(newFp));
@@ -129,15 +168,15 @@ public class FileReceiver {
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="EOR(dataByteBuffer)">
-    private void EOR(byte[] dataByteBuffer) {
+    private void EOR(byte[] dataByteBuffer, int dataLength) {
         try {
             long fp = raf.getFilePointer();
             if (downSize == 0L) {
                 this.startTime = System.nanoTime();
             }
             raf.seek(fp);
-            raf.write(dataByteBuffer);
-            sha256Digest.updateSHA256Digest(dataByteBuffer, 0, dataByteBuffer.length);
+            raf.write(dataByteBuffer, 0, dataLength);
+            sha256Digest.updateSHA256Digest(dataByteBuffer, 0, dataLength);
             if (downSize == 0L) {
                 model.startProgressViewer();
             }
@@ -146,13 +185,17 @@ public class FileReceiver {
             mainClient.writeStream(FTP_ON_PROGRESS, String.valueOf(downSize));
         } catch (IOException e) {
             ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "File Receive failed [" + e.getMessage() + "]", e);
-            mainClient.writeStream(MainClient.DescriptorCode.FTP_ABORT);
+            mainClient.writeStream(DescriptorCode.FTP_ABORT);
         }
     }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="EOF(fileChecksum)">
     private void EOF(String fileChecksum) {
+        if (!receivedRanges.isEmpty() && !digestFile()) {
+            mainClient.writeStream(DescriptorCode.FTP_ABORT);
+            return;
+        }
         final var sha256Digest = this.sha256Digest.getSHA256Digest();
         if (!sha256Digest.equals(fileChecksum)) {
             downSize = 0L;
@@ -160,21 +203,21 @@ public class FileReceiver {
             releaseResourcesAndClose();
             absolute.delete();
             ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "File " + absolute + " is corrupted while sending. Removing and Requesting for re-send.");
-            mainClient.writeStream(MainClient.DescriptorCode.FTP_ERROR, fileChecksum);
+            mainClient.writeStream(DescriptorCode.FTP_ERROR, fileChecksum);
             return;
         }
         releaseResourcesAndClose();
         prevDownSize += downSize;
-        mainClient.writeStream(MainClient.DescriptorCode.FTP_COMMIT);
+        mainClient.writeStream(DescriptorCode.FTP_COMMIT);
 
     }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="commit(dataByteBuffer)">
-    private void commit(byte[] dataByteBuffer) {
-        if (!Arrays.equals(dataByteBuffer, new byte[0])) {
-            if (dataByteBuffer[0] == MainClient.DescriptorCode.REMOTE_SOFT_INSTALLATION) {
-                String command = getRemoteSoftInstallPayloadDataBuffer(dataByteBuffer);
+    private void commit(byte[] dataByteBuffer, int dataLength) {
+        if (dataLength != 0) {
+            if (dataByteBuffer[0] == DescriptorCode.REMOTE_SOFT_INSTALLATION) {
+                String command = getRemoteSoftInstallPayloadDataBuffer(dataByteBuffer, dataLength);
                 command = command.replace("FILE", downloadLocation.toPath().resolve(mainFileName).toString());
                 try {
                     Runtime.getRuntime().exec(command);
@@ -202,7 +245,109 @@ public class FileReceiver {
     }
     //</editor-fold>
 
+    //<editor-fold defaultstate="collapsed" desc="rangeReceived(dataByteBuffer)">
+
+    /**
+     * Writes a range of file at its own file pointer, as ranges of data streams arrive in any order, and acknowledges it on client's connection.
+     *
+     * @param dataByteBuffer FTP_RANGE data : file pointer as big-endian long (8B) + data, valid only during this call
+     */
+    void rangeReceived(byte[] dataByteBuffer, int dataLength) {
+        lock.lock();
+        try {
+            writeRange(dataByteBuffer, dataLength);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeRange(byte[] dataByteBuffer, int dataLength) {
+        if (!receiving || dataLength < Long.BYTES)
+            return;
+        long fp = 0L;
+        for (int i = 0; i < Long.BYTES; i++)
+            fp = (fp << 8) | (dataByteBuffer[i] & 0xFF);
+        try {
+            if (downSize == 0L) {
+                this.startTime = System.nanoTime();
+                model.startProgressViewer();
+            }
+            /* bytes written in order so far become the first range */
+            if (receivedRanges.isEmpty() && raf.getFilePointer() > 0L)
+                receivedRanges.put(0L, raf.getFilePointer());
+            final var buffer = ByteBuffer.wrap(dataByteBuffer, Long.BYTES, dataLength - Long.BYTES);
+            for (long position = fp; buffer.hasRemaining(); )
+                position += raf.getChannel().write(buffer, position);
+            downSize += addReceivedRange(fp, fp + dataLength - Long.BYTES);
+            model.setFileReceiveProgress(getReceiveProgress(relativePath, totalSize, downSize, prevDownSize, startTime));
+            mainClient.writeStream(DescriptorCode.FTP_RANGE_ACK, String.valueOf(fp));
+        } catch (IOException e) {
+            ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "File Receive failed [" + e.getMessage() + "]", e);
+            mainClient.writeStream(DescriptorCode.FTP_ABORT);
+        }
+    }
+
+    /**
+     * @return bytes of the range not received before; a range sent again after its data stream was lost may have arrived already
+     */
+    private long addReceivedRange(long start, long end) {
+        long added = end - start;
+        final long rangeStart = start, rangeEnd = end;
+        final var previous = receivedRanges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        /* ranges kept are disjoint, each overlapping one is merged here once */
+        for (var next = receivedRanges.ceilingEntry(start); next != null && next.getKey() <= end; next = receivedRanges.ceilingEntry(start)) {
+            added -= Math.max(0L, Math.min(rangeEnd, next.getValue()) - Math.max(rangeStart, next.getKey()));
+            end = Math.max(end, next.getValue());
+            receivedRanges.remove(next.getKey());
+        }
+        receivedRanges.put(start, end);
+        return added;
+    }
+
+    /**
+     * @return bytes from start of file received without a gap, where a resumed transfer continues
+     */
+    private long contiguousLength() {
+        final Long end = receivedRanges.get(0L);
+        return end == null ? 0L : end;
+    }
+
+    /**
+     * Digests the file as written, since ranges arriving out of order could not be digested on the way.
+     *
+     * @return false if the file could not be read
+     */
+    private boolean digestFile() {
+        try {
+            sha256Digest.resetSHA256Digest();
+            final byte[] buffer = new byte[1024 * 1024];
+            raf.seek(0L);
+            for (int read; (read = raf.read(buffer)) > 0; )
+                sha256Digest.updateSHA256Digest(buffer, 0, read);
+            return true;
+        } catch (IOException e) {
+            ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "File Receive failed [" + e.getMessage() + "]", e);
+            return false;
+        }
+    }
+    //</editor-fold>
+
+    /**
+     * Gives up a partly received file, which will not be resumed.
+     */
+    private void discard() {
+        downSize = 0L;
+        releaseResourcesAndClose();
+        absolute.delete();
+        ClientLogger.CLIENT_LOGGER.warning(relativePath + " Receive interrupted, partly received file removed.");
+    }
+
     private void releaseResourcesAndClose() {
+        receiving = false;
         try {
             raf.close();
         } catch (IOException ignored) {
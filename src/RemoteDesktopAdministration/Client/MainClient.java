@@ -4,17 +4,35 @@ import RemoteDesktopAdministration.Client.Logger.ClientLogger;
 import RemoteDesktopAdministration.Client.UI.FileReceiveProgress.Model;
 import RemoteDesktopAdministration.Client.UI.PrimaryModel;
 import RemoteDesktopAdministration.Client.UI.PrimaryView;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.Discovery;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.Heartbeat;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ReceiveWindow;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
 import javafx.application.Application;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import static RemoteDesktopAdministration.Client.FileReceiver.State.*;
@@ -23,15 +41,47 @@ public class MainClient {
 
     public static final int DEFAULT_SERVER_PORT = 35706;
     public static final File DEFAULT_DOWNLOAD_LOCATION = new File(System.getProperty("user.home")).toPath().resolve("Downloads").toFile();
+    public static final long DEFAULT_COALESCE_WINDOW_MICROS = 200L;
+    public static final long DEFAULT_OUTBOUND_QUEUE_CAPACITY = 16L * 1024 * 1024;
+    private static final long OUTBOUND_QUEUE_CAPACITY = Long.getLong("rda.outboundQueueCapacity", DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+    private static final long COALESCE_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("rda.coalesceWindowMicros", DEFAULT_COALESCE_WINDOW_MICROS));
+    public static final long DEFAULT_RECONNECT_BASE_MILLIS = 500L;
+    public static final long DEFAULT_RECONNECT_MAX_MILLIS = 30000L;
+    /**
+     * lost connections are re-established in background unless set to false with system property {@code rda.autoReconnect}
+     */
+    private static final boolean AUTO_RECONNECT = Boolean.parseBoolean(System.getProperty("rda.autoReconnect", "true"));
+    private static final long RECONNECT_BASE_MILLIS = Long.getLong("rda.reconnectBaseMillis", DEFAULT_RECONNECT_BASE_MILLIS);
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("rda.reconnectMaxMillis", DEFAULT_RECONNECT_MAX_MILLIS);
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long DISCOVERY_RETRY_MILLIS = 5000L;
     private final Chat chat;
     private final ControlOps controlOps;
     private final FileReceiver fileReceive;
     private final ScreenSharing screenSharing;
     private final PrimaryModel primaryModel;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(ThreadMode.PLATFORM.threadFactory("Client-Scheduler-"));
     private File downloadLocation;
-    private Socket socket;
-    private DataInputStream dataInputStream = null;
-    private DataOutputStream dataOutputStream = null;
+    private volatile Socket socket;
+    private volatile FrameReader frameReader = null;
+    private volatile OutboundQueue outboundQueue = null;
+    private volatile ReceiveWindow receiveWindow = null;
+    private volatile Heartbeat heartbeat = new Heartbeat();
+    private volatile ScheduledFuture<?> watchdogTask = null;
+    /**
+     * address of server the user connected to, reconnected to while {@link #reconnectEnabled}
+     */
+    private volatile InetSocketAddress serverAddress = null;
+    private boolean reconnectEnabled = false;
+    private ScheduledFuture<?> reconnectTask = null;
+    private int reconnectAttempts;
+    private final List<DataStream> dataStreams = new CopyOnWriteArrayList<>();
+    private long connectionLostNanos;
+    /**
+     * token of last session server granted, presented on reconnect to resume it
+     */
+    private volatile String sessionToken = null;
+    private volatile Handshake.Agreement agreement = Handshake.Agreement.LEGACY;
 
     /**
      * @param primaryModel Model class which is a common class to Front-end and Back-end. Back-end sets Property values of Model class. Front-end listen to such property and acts upon changes.
@@ -52,6 +102,54 @@ public class MainClient {
         Application.launch(PrimaryView.class, args);
     }
 
+    /**
+     * Listens for server beacons in the background until a server is heard or the user connects, see {@link Discovery}.
+     * The least-loaded server heard is handed to {@link PrimaryModel#setDiscoveredServer(InetSocketAddress)}, which connects to it.
+     */
+    public void discoverServer() {
+        if (Discovery.ENABLED)
+            scheduler.execute(this::discover);
+    }
+
+    private void discover() {
+        if (serverAddress != null)
+            return;
+        try {
+            final var beacons = Discovery.listen(2 * Discovery.BEACON_INTERVAL_MILLIS);
+            final var leastLoaded = Discovery.leastLoaded(beacons);
+            if (leastLoaded.isPresent() && serverAddress == null) {
+                final var beacon = leastLoaded.get();
+                ClientLogger.CLIENT_LOGGER.info("Discovered " + beacons.size() + " Server(s), least loaded is " + beacon.name() + " at " + beacon.address() + " with " + beacon.load() + " Client(s).");
+                primaryModel.setDiscoveredServer(beacon.address());
+                return;
+            }
+        } catch (IOException e) {
+            ClientLogger.CLIENT_LOGGER.log(Level.FINE, "Server discovery failed.", e);
+        }
+        scheduler.schedule(this::discover, DISCOVERY_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return settings negotiated with server in CLIENT_ONLINE handshake, {@link Handshake.Agreement#LEGACY} until then
+     */
+    public Handshake.Agreement getAgreement() {
+        return agreement;
+    }
+
+    /**
+     * @return liveness of server connection, watched once {@link Handshake.Feature#HEARTBEAT} has been negotiated
+     */
+    public Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * @return credit handed back to server for frames it has sent, null until connected
+     */
+    public ReceiveWindow getReceiveWindow() {
+        return receiveWindow;
+    }
+
     public void configClientDetails() {
         try {
             final var hostName = InetAddress.getLocalHost().getHostName();
@@ -64,9 +162,14 @@ public class MainClient {
 
         try {
             ClientLogger.CLIENT_LOGGER.info("Connecting to server at IP: " + hostIP + " PortNo: " + portNo + " ...");
-            socket = new Socket(hostIP, portNo);
-            dataInputStream = new DataInputStream(socket.getInputStream());
-            dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            final var serverAddress = new InetSocketAddress(hostIP, portNo);
+            if (serverAddress.isUnresolved())
+                throw new UnknownHostException(hostIP);
+            open(serverAddress);
+            synchronized (this) {
+                this.serverAddress = serverAddress;
+                reconnectEnabled = AUTO_RECONNECT;
+            }
             ClientLogger.CLIENT_LOGGER.info("Connected to server at IP: " + hostIP + " PortNo: " + portNo + ".");
             return true;
 
@@ -81,15 +184,81 @@ public class MainClient {
         }
     }
 
+    private void open(InetSocketAddress serverAddress) throws IOException {
+        /* socket owns a channel so that frames are written with gathering writes */
+        final var channel = SocketChannel.open();
+        try {
+            channel.socket().connect(serverAddress, CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        socket = channel.socket();
+        frameReader = new FrameReader(socket.getInputStream());
+        /* every frame to server is stop-and-wait or tiny but screen frames, which pile up while server withholds credit */
+        outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, this::overflowPolicyOf, MainClient::channelOf);
+        receiveWindow = new ReceiveWindow(outboundQueue);
+        frameReader.setReceiveWindow(receiveWindow);
+        heartbeat = new Heartbeat();
+        outboundQueue.startWriter(channel, COALESCE_WINDOW_NANOS, ThreadMode.CONFIGURED.threadFactory("Server-Writer-"));
+        agreement = Handshake.Agreement.LEGACY;
+    }
+
+    /**
+     * Schedules next attempt to reconnect after a random delay of up to {@link #RECONNECT_BASE_MILLIS} * 2^attempts, at most {@link #RECONNECT_MAX_MILLIS}:
+     * clients which lost the same server spread their attempts rather than coming back in the same second.
+     */
+    private synchronized void scheduleReconnect() {
+        if (!reconnectEnabled)
+            return;
+        final long backoff = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(reconnectAttempts, 20));
+        final long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        reconnectAttempts++;
+        reconnectTask = scheduler.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        try {
+            open(serverAddress);
+        } catch (IOException e) {
+            ClientLogger.CLIENT_LOGGER.fine("Reconnect attempt " + reconnectAttempts + " failed due to " + e.getMessage());
+            scheduleReconnect();
+            return;
+        }
+        synchronized (this) {
+            /* user switched connection off while the attempt was on its way */
+            if (!reconnectEnabled) {
+                closeConnection();
+                return;
+            }
+        }
+        ClientLogger.CLIENT_LOGGER.info("Reconnected to server after " + reconnectAttempts + " attempts in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectionLostNanos) + " ms.");
+        startListening();
+    }
+
+    /**
+     * Runs {@link #listenServer()} on a thread of {@link ThreadMode#CONFIGURED} kind, so that frame handlers never occupy a JavaFX worker thread.
+     */
+    public void startListening() {
+        ThreadMode.CONFIGURED.start("Server-Listener", this::listenServer);
+    }
+
     public void listenServer() {
 
         /*
          * do -while loop ends only when client socket endpoint at server side is closed....
          * after then if any Client Operations are active, they are aborted ...
          */
-        writeStream(DescriptorCode.CLIENT_ONLINE, getClientName() + "\n" + System.getProperty("os.name"));
+        final var socket = this.socket;
+        final var frameReader = this.frameReader;
+        final String session = sessionToken;
+        writeStream(DescriptorCode.CLIENT_ONLINE, getClientName() + "\n" + System.getProperty("os.name") + "\n" + Handshake.Offer.local().encode()
+                + (session != null ? "\n" + Handshake.encodeSession(session) : ""));
         while (!socket.isClosed()) {
-            descriptorActionPerformed(readStream());
+            final var stream = readStream(frameReader);
+            descriptorActionPerformed(stream);
+            stream.release();
         }
 
     }
@@ -97,165 +266,188 @@ public class MainClient {
     public boolean disconnect() {
 
 
-        if (dataInputStream == null || dataOutputStream == null || socket == null) {
+        if (frameReader == null || outboundQueue == null || socket == null) {
             ClientLogger.CLIENT_LOGGER.log(Level.WARNING, "Cannot disconnect server connection ::: Connection to server was not set up.");
             return false;
         }
+        synchronized (this) {
+            reconnectEnabled = false;
+            if (reconnectTask != null)
+                reconnectTask.cancel(false);
+        }
         var hostIP = socket.getInetAddress().getHostAddress();
         var portNo = socket.getPort();
+        if (closeConnection()) {
+            ClientLogger.CLIENT_LOGGER.severe("Connection to Server at IP: " + hostIP + " PortNo: " + portNo + " Aborted.");
+            return true;
+        }
+        return false;
+    }
+
+    private boolean closeConnection() {
+        if (watchdogTask != null)
+            watchdogTask.cancel(false);
+        screenSharing.stopCapture();
+        for (DataStream dataStream : dataStreams)
+            dataStream.close();
+        dataStreams.clear();
         try {
-            dataInputStream.close();
-            dataOutputStream.close();
+            outboundQueue.close();
+            frameReader.close();
             socket.close();
-            ClientLogger.CLIENT_LOGGER.severe("Connection to Server at IP: " + hostIP + " PortNo: " + portNo + " Aborted.");
             return true;
         } catch (IOException e) {
-            ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "Failed to disconnect server connection at IP: " + hostIP + " PortNo: " + portNo + " .", e);
+            ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "Failed to disconnect server connection at IP: " + socket.getInetAddress().getHostAddress() + " PortNo: " + socket.getPort() + " .", e);
             return false;
         }
     }
 
-    private ReadStream readStream() {
-        byte[] buffer = new byte[0];
-        byte descriptor_byte = DescriptorCode.CONNECTION_LOST;
-        try {
-            byte[] start = dataInputStream.readNBytes(1);
-            if (start.length > 0 && start[0] == (byte) 2/*start*/) {
-                byte[] descriptor = dataInputStream.readNBytes(1);
-                byte[] byteCount = new byte[0];
-                StringBuilder length = new StringBuilder();
-                do {
-                    if (byteCount.length > 0)
-                        length.append(new String(byteCount, StandardCharsets.UTF_8));
-                    byteCount = dataInputStream.readNBytes(1);
-                } while (byteCount[0] != (byte) 4/*separator*/);
-                int data_length = Integer.parseInt(length.toString());
-                buffer = dataInputStream.readNBytes(data_length);
-                descriptor_byte = descriptor[0];
-            }
-        } catch (IOException ignored) {
-        }
-        ClientLogger.CLIENT_LOGGER.finest("Message Type Read :" + descriptor_byte);
-        return new ReadStream(descriptor_byte, buffer);
+    private ReadStream readStream(FrameReader frameReader) {
+        final var stream = frameReader.readStream();
+        ClientLogger.CLIENT_LOGGER.finest("Message Type Read :" + DescriptorCode.nameOf(stream.descriptorByte()));
+        return stream;
     }
 
-    synchronized void writeStream(byte descriptor, byte[] data) {
+    /**
+     * Queues frame to writer thread; frames queued within the coalescing window leave together.
+     */
+    void writeStream(byte descriptor, byte[] data) {
 
-        try {
-            byte[] buffer = createDataPacket(descriptor, data);
-            dataOutputStream.write(buffer);
-            dataOutputStream.flush();
-            ClientLogger.CLIENT_LOGGER.finest("Message Type Written :" + descriptor);
+        if (outboundQueue.offer(descriptor, data))
+            ClientLogger.CLIENT_LOGGER.finest("Message Type Queued :" + DescriptorCode.nameOf(descriptor));
 
-        } catch (IOException ignored) {
-        }
+    }
+
+    /**
+     * @return overflow policy of an outgoing frame; a newer whole screen frame supersedes older ones not yet written, tiled frames build on each other and are all kept,
+     * and so are streamed frames, which server counts to acknowledge them
+     */
+    private OutboundQueue.OverflowPolicy overflowPolicyOf(byte descriptor, byte[] data) {
+        return descriptor == DescriptorCode.SCREEN_SHARING_ON_PROGRESS && agreement.screenEncoding() == Handshake.ScreenEncoding.RAW
+                && !agreement.uses(Handshake.Feature.SCREEN_STREAMING) ? OutboundQueue.OverflowPolicy.DROP_OLDEST : OutboundQueue.OverflowPolicy.NEVER_DROP;
+    }
 
+    /**
+     * @return channel of an outgoing frame; screen frames are fragmented so that chat and file acknowledgements do not wait for a whole frame
+     */
+    public static FrameCodec.Channel channelOf(byte descriptor, byte[] data) {
+        return switch (descriptor) {
+            case DescriptorCode.CHAT_INITIATOR_CLIENT, DescriptorCode.CHAT_INITIATOR_SERVER_OK -> FrameCodec.Channel.CHAT;
+            case DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS, DescriptorCode.SCREEN_SHARING_ON_PROGRESS, DescriptorCode.SCREEN_SHARING_ABORT -> FrameCodec.Channel.SCREEN;
+            case DescriptorCode.FTP_ON_NO_PROGRESS, DescriptorCode.FTP_ON_PROGRESS, DescriptorCode.FTP_RANGE_ACK, DescriptorCode.FTP_ERROR, DescriptorCode.FTP_COMMIT,
+                    DescriptorCode.FTP_ABORT -> FrameCodec.Channel.BULK;
+            default -> FrameCodec.Channel.CONTROL;
+        };
     }
 
-    public synchronized void writeStream(byte descriptor, String data) {
+    public void writeStream(byte descriptor, String data) {
         Objects.requireNonNull(data);
         writeStream(descriptor, data.getBytes(StandardCharsets.UTF_8));
     }
 
-    synchronized void writeStream(byte descriptor) {
+    void writeStream(byte descriptor) {
         writeStream(descriptor, "");
     }
 
-    /**
-     * @param descriptorByte headerByte [One among DescriptorCode class]
-     * @param dataBuffer     Actual Data in byteArray
-     * @return Data Packet Byte Array [Start Byte (1B) + Descriptor Byte (1B) + ByteArray of String Representation of Data Length (>=1B)+ Data (>=0B) ]
-     */
-    private byte[] createDataPacket(byte descriptorByte, byte[] dataBuffer) {
-        Objects.requireNonNull(dataBuffer);
-        byte[] STX = new byte[]{2};//Start of TeXt ASCII Code
-        byte[] descriptor = new byte[]{descriptorByte};
-        byte[] byteCount = String.valueOf(dataBuffer.length).getBytes(StandardCharsets.UTF_8);
-        byte[] EOT = new byte[]{4};//Here End of Transmission ASCII Code
-        byte[] packet = new byte[STX.length + descriptor.length + byteCount.length + EOT.length + dataBuffer.length];
-        System.arraycopy(STX, 0, packet, 0, STX.length);
-        System.arraycopy(descriptor, 0, packet, STX.length, descriptor.length);
-        System.arraycopy(byteCount, 0, packet, STX.length + descriptor.length, byteCount.length);
-        System.arraycopy(EOT, 0, packet, STX.length + descriptor.length + byteCount.length, EOT.length);
-        System.arraycopy(dataBuffer, 0, packet, STX.length + descriptor.length + byteCount.length + EOT.length, dataBuffer.length);
-        return Objects.requireNonNull(packet);
-    }
-
     /**
      * @param stream stream read from socket InputStream - contains DescriptorByte and DataBuffer
      */
     void descriptorActionPerformed(ReadStream stream) {
         Objects.requireNonNull(stream);
-        var descriptor = stream.descriptorByte;
-        var dataBuffer = stream.dataBuffer;
+        var descriptor = stream.descriptorByte();
+        heartbeat.received();
 
         switch (descriptor) {
             case DescriptorCode.CLIENT_ONLINE:
-                primaryModel.setClientId(new String(dataBuffer, StandardCharsets.UTF_8));
+                clientOnline(stream.dataString());
                 break;
 
             case DescriptorCode.CONNECTION_LOST:  /* If server disconnects client */
                 connectionLost();
                 break;
 
+            case DescriptorCode.WINDOW_UPDATE:
+                ReceiveWindow.grant(stream, outboundQueue);
+                break;
+
+            case DescriptorCode.PING:  /* payload is a pooled buffer, echoed from a copy */
+                writeStream(DescriptorCode.PONG, Arrays.copyOf(stream.dataBuffer(), stream.dataLength()));
+                break;
+
             case DescriptorCode.CHAT_INITIATOR_CLIENT_OK:
-                chatStateActionPerformed(Chat.State.SEND, dataBuffer);
+                chatStateActionPerformed(Chat.State.SEND, stream.dataString());
                 break;
 
             case DescriptorCode.CHAT_INITIATOR_SERVER:
-                chatStateActionPerformed(Chat.State.RECEIVE, dataBuffer);
+                chatStateActionPerformed(Chat.State.RECEIVE, stream.dataString());
                 break;
 
             case DescriptorCode.CLIENT_CONTROL_OPERATIONS_REQ:
-                controlOpsStateActionPerformed(ControlOps.State.OPS_REQ, dataBuffer);
+                controlOpsStateActionPerformed(ControlOps.State.OPS_REQ, stream.dataString());
                 break;
 
             case DescriptorCode.CLIENT_SHUTDOWN:
-                controlOpsStateActionPerformed(ControlOps.State.SHUTDOWN, dataBuffer);
+                controlOpsStateActionPerformed(ControlOps.State.SHUTDOWN, stream.dataString());
                 break;
 
             case DescriptorCode.CLIENT_RESTART:
-                controlOpsStateActionPerformed(ControlOps.State.RESTART, dataBuffer);
+                controlOpsStateActionPerformed(ControlOps.State.RESTART, stream.dataString());
                 break;
 
             case DescriptorCode.CLIENT_LOGOFF:
-                controlOpsStateActionPerformed(ControlOps.State.LOG_OFF, dataBuffer);
+                controlOpsStateActionPerformed(ControlOps.State.LOG_OFF, stream.dataString());
                 break;
 
             case DescriptorCode.FTP_OFF_START:
-                fileReceiveStateActionPerformed(START, dataBuffer);
+                fileReceiveStateActionPerformed(START, stream);
                 break;
 
             case DescriptorCode.FTP_ON_NO_PROGRESS:
-                fileReceiveStateActionPerformed(NO_PROGRESS, dataBuffer);
+                fileReceiveStateActionPerformed(NO_PROGRESS, stream);
                 break;
 
             case DescriptorCode.FTP_EOR:
-                fileReceiveStateActionPerformed(EOR, dataBuffer);
+                fileReceiveStateActionPerformed(EOR, stream);
+                break;
+
+            case DescriptorCode.FTP_RANGE:  /* range sent again after a data stream was lost */
+                fileReceive.rangeReceived(stream.dataBuffer(), stream.dataLength());
                 break;
 
             case DescriptorCode.FTP_EOF:
-                fileReceiveStateActionPerformed(EOF, dataBuffer);
+                fileReceiveStateActionPerformed(EOF, stream);
                 break;
 
             case DescriptorCode.FTP_COMMIT:
-                fileReceiveStateActionPerformed(COMMIT, dataBuffer);
+                fileReceiveStateActionPerformed(COMMIT, stream);
                 break;
 
             case DescriptorCode.FTP_ABORT:
-                fileReceiveStateActionPerformed(ABORT, dataBuffer);
+                fileReceiveStateActionPerformed(ABORT, stream);
                 break;
 
             case DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS:
-                screenSharingStateActionPerformed(ScreenSharing.State.NO_PROGRESS, dataBuffer);
+                screenSharingStateActionPerformed(ScreenSharing.State.NO_PROGRESS, stream.dataString());
                 break;
 
             case DescriptorCode.SCREEN_SHARING_ON_PROGRESS:
-                screenSharingStateActionPerformed(ScreenSharing.State.PROGRESS, dataBuffer);
+                screenSharingStateActionPerformed(ScreenSharing.State.PROGRESS, stream.dataString());
                 break;
 
             case DescriptorCode.SCREEN_SHARING_ABORT:
-                screenSharingStateActionPerformed(ScreenSharing.State.ABORT, dataBuffer);
+                screenSharingStateActionPerformed(ScreenSharing.State.ABORT, stream.dataString());
+                break;
+
+            case DescriptorCode.SCREEN_STREAM_START:
+                screenSharingStateActionPerformed(ScreenSharing.State.STREAM_START, stream.dataString());
+                break;
+
+            case DescriptorCode.SCREEN_FRAME_ACK:
+                screenSharingStateActionPerformed(ScreenSharing.State.FRAME_ACK, stream.dataString());
+                break;
+
+            case DescriptorCode.SCREEN_INPUT_EVENT:
+                screenSharing.inputEventsReceived(stream.dataBuffer(), stream.dataLength());
                 break;
 
             default:
@@ -263,32 +455,84 @@ public class MainClient {
         }
     }
 
+    private void clientOnline(String dataStringBuffer) {
+        /*
+         * server which took part in handshake appends negotiated settings after client id...
+         */
+        final String[] subBuffers = dataStringBuffer.split("\n");
+        primaryModel.setClientId(subBuffers[0]);
+        agreement = Handshake.Agreement.decode(subBuffers, 1);
+        sessionToken = agreement.uses(Handshake.Feature.RESUMPTION) ? Handshake.decodeSession(subBuffers, 1) : null;
+        outboundQueue.setAgreement(agreement);
+        ClientLogger.CLIENT_LOGGER.finest("Negotiated " + agreement);
+        final int dataStreamCount = agreement.uses(Handshake.Feature.DATA_STREAMS) ? Handshake.decodeDataStreams(subBuffers, 1) : 0;
+        if (dataStreamCount > 0 && sessionToken != null)
+            scheduler.execute(() -> openDataStreams(dataStreamCount, sessionToken, agreement));
+        if (agreement.uses(Handshake.Feature.HEARTBEAT))
+            watchdogTask = scheduler.scheduleWithFixedDelay(this::watchdog, Heartbeat.INTERVAL_MILLIS, Heartbeat.INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void openDataStreams(int count, String token, Handshake.Agreement agreement) {
+        for (int i = 0; i < count; i++) {
+            try {
+                dataStreams.add(new DataStream(serverAddress, token, agreement, COALESCE_WINDOW_NANOS, fileReceive));
+            } catch (IOException e) {
+                ClientLogger.CLIENT_LOGGER.log(Level.WARNING, "Data stream " + (i + 1) + " of " + count + " failed to open due to " + e.getMessage(), e);
+                return;
+            }
+        }
+        ClientLogger.CLIENT_LOGGER.info("Opened " + count + " data streams to server.");
+    }
+
+    /**
+     * Takes a server silent for {@link Heartbeat#TIMEOUT_MILLIS} for lost: shutting down input ends the read with CONNECTION_LOST, handled as if server had sent it.
+     */
+    private void watchdog() {
+        if (socket.isClosed() || !heartbeat.isExpired())
+            return;
+        watchdogTask.cancel(false);
+        ClientLogger.CLIENT_LOGGER.warning("No frame from server for " + Heartbeat.TIMEOUT_MILLIS + " ms, connection taken for lost.");
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "Failed to shut down server connection due to " + e.getMessage(), e);
+        }
+    }
+
     private void connectionLost() {
 
-        if (!socket.isClosed()) {//if client has closed client socket but server side client socket is still on..
-            primaryModel.connectionLost();
+        if (socket.isClosed())
+            return;
+        synchronized (this) {
+            if (reconnectEnabled) {
+                ClientLogger.CLIENT_LOGGER.warning("Connection to server lost, reconnecting in background...");
+                closeConnection();
+                connectionLostNanos = System.nanoTime();
+                reconnectAttempts = 0;
+                scheduleReconnect();
+                return;
+            }
         }
+        //if client has closed client socket but server side client socket is still on..
+        primaryModel.connectionLost();
 
     }
 
-    private void chatStateActionPerformed(Chat.State state, byte[] dataByteBuffer) {
-        var dataStringBuffer = new String(dataByteBuffer, StandardCharsets.UTF_8);
+    private void chatStateActionPerformed(Chat.State state, String dataStringBuffer) {
         chat.stateActionPerformed(state, dataStringBuffer);
     }
 
-    private void controlOpsStateActionPerformed(ControlOps.State state, byte[] dataByteBuffer) {
-        var dataStringBuffer = new String(dataByteBuffer, StandardCharsets.UTF_8);
+    private void controlOpsStateActionPerformed(ControlOps.State state, String dataStringBuffer) {
         controlOps.stateActionPerformed(state, dataStringBuffer);
 
     }
 
-    private void screenSharingStateActionPerformed(ScreenSharing.State state, byte[] dataByteBuffer) {
-        var dataStringBuffer = new String(dataByteBuffer, StandardCharsets.UTF_8);
+    private void screenSharingStateActionPerformed(ScreenSharing.State state, String dataStringBuffer) {
         screenSharing.stateActionPerformed(state, dataStringBuffer);
     }
 
-    private void fileReceiveStateActionPerformed(FileReceiver.State state, byte[] dataByteBuffer) {
-        fileReceive.stateActionPerformed(state, dataByteBuffer);
+    private void fileReceiveStateActionPerformed(FileReceiver.State state, ReadStream stream) {
+        fileReceive.stateActionPerformed(state, stream.dataBuffer(), stream.dataLength());
     }
 
     String getClientName() {
@@ -307,33 +551,5 @@ public class MainClient {
         this.downloadLocation = downloadLocation;
     }
 
-
-    public static final class DescriptorCode {
-        public static final byte CHAT_INITIATOR_CLIENT = (byte) 120;
-        public static final byte REMOTE_SOFT_INSTALLATION = (byte) 65;
-        static final byte CHAT_INITIATOR_CLIENT_OK = (byte) 121;
-        static final byte CHAT_INITIATOR_SERVER = (byte) 122;
-        static final byte CHAT_INITIATOR_SERVER_OK = (byte) 123;
-        static final byte FTP_OFF_START = (byte) 220;//-36
-        static final byte FTP_ON_NO_PROGRESS = (byte) 225;//-31
-        static final byte FTP_ON_PROGRESS = (byte) 125;
-        static final byte FTP_EOR = (byte) 128;//End Of Record Marker//-128
-        static final byte FTP_EOF = (byte) 64;
-        static final byte FTP_ERROR = (byte) 32;
-        static final byte FTP_COMMIT = (byte) 226;//-30
-        static final byte FTP_ABORT = (byte) 227;//-29
-        static final byte CLIENT_CONTROL_OPERATIONS_REQ = (byte) 129;//-127
-        static final byte CLIENT_SHUTDOWN = (byte) 130;//-126
-        static final byte CLIENT_RESTART = (byte) 131;//-125
-        static final byte CLIENT_LOGOFF = (byte) 132;//-124
-        static final byte SCREEN_SHARING_ON_NO_PROGRESS = (byte) 168;
-        static final byte SCREEN_SHARING_ON_PROGRESS = (byte) 169;
-        static final byte SCREEN_SHARING_ABORT = (byte) 170;
-        private static final byte CONNECTION_LOST = (byte) 0;
-        private static final byte CLIENT_ONLINE = (byte) 1;
-    }
-
-    private record ReadStream(byte descriptorByte, byte[] dataBuffer) {
-    }
 }
 
@@ -0,0 +1,197 @@
+package RemoteDesktopAdministration.Client;
+
+import RemoteDesktopAdministration.Client.Logger.ClientLogger;
+import RemoteDesktopAdministration.Client.Utils.ImageUtils;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.ScreenTiles;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.WritableImage;
+import javafx.scene.robot.Robot;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Screen frames of this client made in three stages, so that they overlap on a multi-core machine and leave the FX thread free but for the grab:
+ * grab of the screen, on the FX thread JavaFX's robot requires, diff of its pixels against the frame before, on a thread of its own,
+ * and encoding of what changed, on another, which queues the frame to server.
+ * <p>
+ * Stages hand frames over through queues of one. A grab finding the diff stage busy supersedes the grab waiting for it, whereas a diffed frame waits for the encoder,
+ * as tiles sent build on the hashes of every frame diffed before.
+ * Streamed frames are grabbed on ticks of the pipeline's own fixed-rate scheduler; a tick is skipped while the previous grab still waits for the FX thread,
+ * or while the frames in flight fill the window server set.
+ */
+final class ScreenPipeline {
+
+    private final MainClient mainClient;
+    private final Robot robot;
+    private final Rectangle2D screenSize;
+    /**
+     * hashes of tiles sent, null unless {@link RemoteDesktopAdministration.Protocol.Handshake.ScreenEncoding#TILES} is agreed; touched by the diff stage only
+     */
+    private final ScreenTiles screenTiles;
+    private final BlockingQueue<Grab> grabbed = new ArrayBlockingQueue<>(1);
+    private final BlockingQueue<Diff> diffed = new ArrayBlockingQueue<>(1);
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(ThreadMode.PLATFORM.threadFactory("Screen-Ticker-"));
+    /**
+     * set while a grab is queued on the FX thread
+     */
+    private final AtomicBoolean grabPending = new AtomicBoolean(false);
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final Thread diffThread;
+    private final Thread encodeThread;
+    private volatile boolean closed = false;
+    private volatile boolean streaming = false;
+    private volatile int streamWindow;
+    private volatile long framesSent;
+    private volatile long framesAcknowledged;
+    /**
+     * last whole screen sent, touched by the diff stage only
+     */
+    private byte[] viewBytes;
+    /**
+     * ticks of the current frame rate, null until streaming starts; touched by the FX thread only
+     */
+    private ScheduledFuture<?> ticks;
+
+    /**
+     * @param robot robot of the FX thread
+     * @param tiles true to send changed tiles, false to send the whole screen
+     */
+    ScreenPipeline(MainClient mainClient, Robot robot, Rectangle2D screenSize, boolean tiles) {
+        this.mainClient = mainClient;
+        this.robot = robot;
+        this.screenSize = screenSize;
+        this.screenTiles = tiles ? new ScreenTiles((int) screenSize.getWidth(), (int) screenSize.getHeight()) : null;
+        this.diffThread = ThreadMode.PLATFORM.start("Screen-Diff", this::diffFrames);
+        this.encodeThread = ThreadMode.PLATFORM.start("Screen-Encode", this::encodeFrames);
+    }
+
+    /**
+     * Grabs the screen for a frame server requested, on the FX thread.
+     *
+     * @param sendUnchanged true to send a frame even if the screen has not changed since the last one
+     */
+    void request(boolean sendUnchanged) {
+        grab(sendUnchanged);
+    }
+
+    /**
+     * Grabs the screen on every tick of the frame rate from now on, on the FX thread.
+     *
+     * @param fps    frames per second
+     * @param window frames sent ahead of those server acknowledged
+     */
+    void stream(int fps, int window) {
+        /* a repeated request replaces the rate rather than adding ticks to it */
+        if (ticks != null)
+            ticks.cancel(false);
+        streamWindow = window;
+        framesSent = 0L;
+        framesAcknowledged = 0L;
+        streaming = true;
+        ticks = ticker.scheduleAtFixedRate(this::tick, 0L, TimeUnit.SECONDS.toNanos(1) / fps, TimeUnit.NANOSECONDS);
+    }
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param frames count of frames server has shown since streaming started
+     */
+    void acknowledged(long frames) {
+        framesAcknowledged = frames;
+    }
+
+    /**
+     * Stops every stage; frames on their way are dropped.
+     */
+    void close() {
+        closed = true;
+        ticker.shutdownNow();
+        diffThread.interrupt();
+        encodeThread.interrupt();
+        ClientLogger.CLIENT_LOGGER.fine("Screen pipeline closed after " + framesSent + " streamed frames, " + droppedFrames.get() + " dropped.");
+    }
+
+    private void tick() {
+        if (closed || framesSent - framesAcknowledged >= streamWindow)
+            return;
+        if (grabPending.compareAndSet(false, true))
+            Platform.runLater(() -> {
+                grabPending.set(false);
+                grab(false);
+            });
+        else
+            droppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Grabs the screen on the FX thread and hands it to the diff stage, superseding a grab still waiting there.
+     */
+    private void grab(boolean sendUnchanged) {
+        if (closed)
+            return;
+        final var grab = new Grab(robot.getScreenCapture(null, screenSize), sendUnchanged);
+        while (!grabbed.offer(grab))
+            if (grabbed.poll() != null)
+                droppedFrames.incrementAndGet();
+    }
+
+    private void diffFrames() {
+        try {
+            while (!closed) {
+                final var grab = grabbed.take();
+                final byte[] frame = ImageUtils.fxImageToFxByteArray(grab.image());
+                if (screenTiles != null) {
+                    final var changed = screenTiles.changedTiles(frame);
+                    if (!changed.isEmpty() || grab.sendUnchanged())
+                        diffed.put(new Diff(frame, changed));
+                } else if (grab.sendUnchanged() || !Arrays.equals(viewBytes, frame)) {
+                    viewBytes = frame;
+                    diffed.put(new Diff(frame, null));
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void encodeFrames() {
+        try {
+            while (!closed) {
+                final var diff = diffed.take();
+                final byte[] payload = diff.changed() == null ? diff.frame() : screenTiles.encode(diff.frame(), diff.changed());
+                if (closed)
+                    return;
+                mainClient.writeStream(DescriptorCode.SCREEN_SHARING_ON_PROGRESS, payload);
+                framesSent++;
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * @param image         screen as grabbed, no longer touched by the FX thread
+     * @param sendUnchanged true to send a frame even if nothing changed
+     */
+    private record Grab(WritableImage image, boolean sendUnchanged) {
+    }
+
+    /**
+     * @param frame   BGRA pixels of the whole screen
+     * @param changed tiles to send, null to send the whole screen
+     */
+    private record Diff(byte[] frame, BitSet changed) {
+    }
+}
@@ -1,25 +1,40 @@
 package RemoteDesktopAdministration.Client;
 
 import RemoteDesktopAdministration.Client.Logger.ClientLogger;
-import RemoteDesktopAdministration.Client.Utils.ImageUtils;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.InputEvents;
 import javafx.application.Platform;
 import javafx.geometry.Rectangle2D;
-import javafx.scene.image.WritableImage;
 import javafx.scene.input.*;
 import javafx.scene.robot.Robot;
 import javafx.stage.Screen;
 
-import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 class ScreenSharing {
+    public static final int DEFAULT_MAX_STREAM_FPS = 60;
+    /**
+     * frames per second this client pushes at most whatever server asks for, set with system property {@code rda.screenStreamMaxFps}
+     */
+    private static final int MAX_STREAM_FPS = Integer.getInteger("rda.screenStreamMaxFps", DEFAULT_MAX_STREAM_FPS);
+    /**
+     * constants by ordinal, as input events carry them; values() copies its array on every call
+     */
+    private static final MouseButton[] BUTTONS = MouseButton.values();
+    private static final KeyCode[] KEYS = KeyCode.values();
     private static Rectangle2D SCREEN_SIZE;
     private final MainClient mainClient;
     private final AtomicBoolean started = new AtomicBoolean(false);
     private Robot robot;
-    private byte[] viewBytes;
+    private boolean tiles;
+    /**
+     * stages making frames, see {@link ScreenPipeline}; null until server is ready to view the screen
+     */
+    private volatile ScreenPipeline pipeline;
 
     public ScreenSharing(MainClient mainClient) {
         this.mainClient = mainClient;
@@ -31,59 +46,153 @@ class ScreenSharing {
             case NO_PROGRESS -> Platform.runLater(this::noProgress);
             case PROGRESS -> Platform.runLater(() -> progress(dataStringBuffer));
             case ABORT -> abort();
+            case STREAM_START -> Platform.runLater(() -> startStreaming(dataStringBuffer));
+            case FRAME_ACK -> {
+                final var screenPipeline = pipeline;
+                if (screenPipeline != null)
+                    screenPipeline.acknowledged(Long.parseLong(dataStringBuffer.trim()));
+            }
         }
     }
 
     private void noProgress() {
+        stopCapture();
         started.set(true);
         SCREEN_SIZE = Screen.getPrimary().getBounds();
         robot = new Robot();
-        mainClient.writeStream(MainClient.DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS, SCREEN_SIZE.getWidth() + "," + SCREEN_SIZE.getHeight());
+        tiles = mainClient.getAgreement().screenEncoding() == Handshake.ScreenEncoding.TILES;
+        pipeline = new ScreenPipeline(mainClient, robot, SCREEN_SIZE, tiles);
+        mainClient.writeStream(DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS, SCREEN_SIZE.getWidth() + "," + SCREEN_SIZE.getHeight());
         ClientLogger.CLIENT_LOGGER.info("Server is ready to access this PC screen.");
     }
 
     private void progress(String dataStringBuffer) {
 
-        if (!started.get())
+        final var screenPipeline = pipeline;
+        if (!started.get() || screenPipeline == null)
             return;
         if (!dataStringBuffer.equals("")) {
-            String[] eventParams = dataStringBuffer.split(",");
-            String eventType = eventParams[0];
-            if (MouseEvent.MOUSE_PRESSED.getName().equals(eventType)) {
-                robot.mousePress(MouseButton.valueOf(eventParams[1]));
-            }
-            if (MouseEvent.MOUSE_RELEASED.getName().equals(eventType)) {
-                robot.mouseRelease(MouseButton.valueOf(eventParams[1]));
-            }
-            if (MouseEvent.MOUSE_MOVED.getName().equals(eventType)) {
-                robot.mouseMove(Double.parseDouble(eventParams[1]), Double.parseDouble(eventParams[2]));
+            inject(dataStringBuffer);
+            /* tiled and streamed frames answer frame requests only, an input event shows on the next one */
+            if (tiles || screenPipeline.isStreaming())
+                return;
+        }
+        /* a tiled frame is sent even without tiles, server paces its next request on the answer */
+        screenPipeline.request(tiles);
+
+    }
+
+    /**
+     * Injects a batch of input events of the screen viewer on the FX thread, leaving frames to the pipeline's own cadence.
+     *
+     * @param data {@link InputEvents} records, valid from index 0 to length and only during this call
+     */
+    void inputEventsReceived(byte[] data, int length) {
+        final List<InputEvents.Event> events;
+        try {
+            events = InputEvents.decode(data, length);
+        } catch (IllegalArgumentException e) {
+            ClientLogger.CLIENT_LOGGER.warning("Input events ignored due to : " + e.getMessage());
+            return;
+        }
+        Platform.runLater(() -> {
+            if (started.get() && robot != null)
+                events.forEach(this::inject);
+        });
+    }
+
+    /**
+     * Skips a button or key this JavaFX has no ordinal for.
+     */
+    private void inject(InputEvents.Event event) {
+        final int code = event.code();
+        switch (event.type()) {
+            case MOUSE_MOVED -> robot.mouseMove(event.x(), event.y());
+            case MOUSE_PRESSED -> {
+                if (code >= 0 && code < BUTTONS.length)
+                    robot.mousePress(BUTTONS[code]);
             }
-            if (ScrollEvent.SCROLL.getName().equals(eventType)) {
-                robot.mouseWheel(Integer.parseInt(eventParams[1]));
+            case MOUSE_RELEASED -> {
+                if (code >= 0 && code < BUTTONS.length)
+                    robot.mouseRelease(BUTTONS[code]);
             }
-            if (KeyEvent.KEY_PRESSED.getName().equals(eventType)) {
-                robot.keyPress(KeyCode.valueOf(eventParams[1]));
+            case SCROLL -> robot.mouseWheel(code);
+            case KEY_PRESSED -> {
+                if (code >= 0 && code < KEYS.length)
+                    robot.keyPress(KEYS[code]);
             }
-            if (KeyEvent.KEY_RELEASED.getName().equals(eventType)) {
-                robot.keyRelease(KeyCode.valueOf(eventParams[1]));
+            case KEY_RELEASED -> {
+                if (code >= 0 && code < KEYS.length)
+                    robot.keyRelease(KEYS[code]);
             }
         }
-        WritableImage newImage = robot.getScreenCapture(null, SCREEN_SIZE);
-        final var newBytes = ImageUtils.fxImageToFxByteArray(newImage);
-        if (!Arrays.equals(viewBytes, newBytes)) {
-            viewBytes = newBytes;
-            mainClient.writeStream(MainClient.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, newBytes);
+    }
+
+    /**
+     * @param dataStringBuffer event type + ',' + parameters
+     */
+    private void inject(String dataStringBuffer) {
+        String[] eventParams = dataStringBuffer.split(",");
+        String eventType = eventParams[0];
+        if (MouseEvent.MOUSE_PRESSED.getName().equals(eventType)) {
+            robot.mousePress(MouseButton.valueOf(eventParams[1]));
+        }
+        if (MouseEvent.MOUSE_RELEASED.getName().equals(eventType)) {
+            robot.mouseRelease(MouseButton.valueOf(eventParams[1]));
+        }
+        if (MouseEvent.MOUSE_MOVED.getName().equals(eventType)) {
+            robot.mouseMove(Double.parseDouble(eventParams[1]), Double.parseDouble(eventParams[2]));
+        }
+        if (ScrollEvent.SCROLL.getName().equals(eventType)) {
+            robot.mouseWheel(Integer.parseInt(eventParams[1]));
+        }
+        if (KeyEvent.KEY_PRESSED.getName().equals(eventType)) {
+            robot.keyPress(KeyCode.valueOf(eventParams[1]));
+        }
+        if (KeyEvent.KEY_RELEASED.getName().equals(eventType)) {
+            robot.keyRelease(KeyCode.valueOf(eventParams[1]));
         }
+    }
+
+    /**
+     * Pushes frames at the rate server asks for, capped at {@link #MAX_STREAM_FPS}, on the FX thread.
+     *
+     * @param parameters frames per second + ',' + frames in flight
+     */
+    private void startStreaming(String parameters) {
+        if (!started.get() || pipeline == null)
+            return;
+        final var params = parameters.split(",");
+        final int fps, window;
+        try {
+            fps = Math.max(1, Math.min(MAX_STREAM_FPS, Integer.parseInt(params[0].trim())));
+            window = Math.max(1, Integer.parseInt(params[1].trim()));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            ClientLogger.CLIENT_LOGGER.warning("Malformed screen streaming request \"" + parameters + "\" ignored.");
+            return;
+        }
+        pipeline.stream(fps, window);
+        ClientLogger.CLIENT_LOGGER.info("Streaming screen at " + fps + " frames per second, " + window + " in flight.");
+    }
 
+    /**
+     * Stops making frames, if the screen is shared.
+     */
+    void stopCapture() {
+        final var screenPipeline = pipeline;
+        pipeline = null;
+        if (screenPipeline != null)
+            screenPipeline.close();
     }
 
     private void abort() {
         ClientLogger.CLIENT_LOGGER.log(Level.SEVERE, "Screen sharing session ended.");
         started.set(false);
+        stopCapture();
     }
 
     enum State {
-        NO_PROGRESS, PROGRESS, ABORT
+        NO_PROGRESS, PROGRESS, ABORT, STREAM_START, FRAME_ACK
     }
 
 }
\ No newline at end of file
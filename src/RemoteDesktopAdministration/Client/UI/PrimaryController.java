@@ -3,6 +3,7 @@ package RemoteDesktopAdministration.Client.UI;
 import RemoteDesktopAdministration.Client.Logger.ClientLogger;
 import RemoteDesktopAdministration.Client.MainClient;
 import RemoteDesktopAdministration.Client.UI.FileReceiveProgress.View;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 import javafx.animation.*;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
@@ -36,6 +37,7 @@ import javafx.stage.Stage;
 import javafx.util.Duration;
 
 import java.io.File;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -59,7 +61,6 @@ public class PrimaryController implements Initializable {
     private final StringProperty trimmedIPInput = new SimpleStringProperty("");
     private final StringProperty trimmedMessageInput = new SimpleStringProperty("");
     private final Service<Boolean> serverConnectService = new ServerConnectService();
-    private final Service<Void> serverListenerService = new ServerListenerService();
     private final ArrayList<String> yearMonDates = new ArrayList<>();
     private final ObservableList<File> sharedFiles = FXCollections.observableArrayList();
     private final ObservableMap<Integer, File> listViewIndexFileMapper = FXCollections.observableHashMap();
@@ -161,6 +162,9 @@ public class PrimaryController implements Initializable {
         clientToggleSwitch.setOnMouseClicked(this::clientSwitchOnMouseClicked);
         clientToggleSwitch.addEventHandler(ActionEvent.ACTION, this::clientSwitchOnAction);
 
+        primaryModel.discoveredServerProperty().addListener((obs, oldAddress, newAddress) -> connectToDiscoveredServer(newAddress));
+        mainClient.discoverServer();
+
 //        messageInput.setOnAction(actionEvent -> {
 //            sendBtn.fire();
 //            actionEvent.consume();
@@ -200,6 +204,18 @@ public class PrimaryController implements Initializable {
         });
     }
 
+    /**
+     * Connects to the server discovery reports, unless the user has already typed an address or connected.
+     */
+    private void connectToDiscoveredServer(InetSocketAddress address) {
+        if (address == null || primaryModel.getClientSwitchState() || !trimmedIPInput.get().isEmpty())
+            return;
+        ipInput.setText(address.getAddress().getHostAddress());
+        portInput.getEditor().setText(address.getPort() + "");
+        portInput.commitValue();
+        clientToggleSwitch.fireEvent(new ActionEvent(clientToggleSwitch, clientToggleSwitch));
+    }
+
     private void defaultPortBtnOnAction(ActionEvent actionEvent) {
         portInput.getEditor().setText(DEFAULT + "");
         portInput.commitValue();
@@ -367,7 +383,7 @@ public class PrimaryController implements Initializable {
     }
 
     private void sendBtnOnAction(ActionEvent actionEvent) {
-        mainClient.writeStream(MainClient.DescriptorCode.CHAT_INITIATOR_CLIENT, trimmedMessageInput.get());
+        mainClient.writeStream(DescriptorCode.CHAT_INITIATOR_CLIENT, trimmedMessageInput.get());
         messageInput.clear();
         messageInput.requestFocus();
         actionEvent.consume();
@@ -424,7 +440,7 @@ public class PrimaryController implements Initializable {
             serverConnectService.setOnSucceeded(workerStateEvent -> {
                 if (serverConnectService.getValue()) {
                     primaryModel.setClientSwitchState(true);
-                    serverListenerService.restart();
+                    mainClient.startListening();
                 } else {
                     setClientSwitchPaletteColor(baseNode, Color.RED);
                 }
@@ -446,20 +462,6 @@ public class PrimaryController implements Initializable {
         baseNode.setStroke(color);
     }
 
-    private class ServerListenerService extends Service<Void> {
-
-        @Override
-        protected Task<Void> createTask() {
-            return new Task<>() {
-                @Override
-                protected Void call() {
-                    mainClient.listenServer();
-                    return null;
-                }
-            };
-        }
-    }
-
     private class ServerConnectService extends Service<Boolean> {
 
         @Override
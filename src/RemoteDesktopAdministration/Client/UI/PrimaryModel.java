@@ -7,6 +7,7 @@ import javafx.beans.property.*;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.net.InetSocketAddress;
 
 public class PrimaryModel {
     private final BooleanProperty clientSwitchState = new SimpleBooleanProperty(false);
@@ -16,6 +17,7 @@ public class PrimaryModel {
     private final StringProperty clientId = new SimpleStringProperty("");
     private final BooleanProperty connection = new SimpleBooleanProperty(false);
     private final StringProperty informationAlert = new SimpleStringProperty("");
+    private final ObjectProperty<InetSocketAddress> discoveredServer = new SimpleObjectProperty<>();
     private String clientName = "";
     private Stage primaryStage;
 
@@ -82,6 +84,17 @@ public class PrimaryModel {
         return informationAlert;
     }
 
+    /**
+     * @param address least-loaded server heard advertising itself on the local network
+     */
+    public void setDiscoveredServer(InetSocketAddress address) {
+        Platform.runLater(() -> this.discoveredServer.set(address));
+    }
+
+    ObjectProperty<InetSocketAddress> discoveredServerProperty() {
+        return discoveredServer;
+    }
+
     public ObjectProperty<File> fileAddedToShareHistoryProperty() {
         return fileAddedToShareHistory;
     }
@@ -0,0 +1,54 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of frame buffers grouped in power-of-two size classes, so that encoding a frame does not allocate a fresh packet array every time.
+ * Buffers larger than {@link #MAX_POOLED_SIZE} are allocated and dropped as before.
+ */
+public final class BufferPool {
+
+    public static final BufferPool SHARED = new BufferPool(4);
+    static final int MIN_POOLED_SIZE = 1 << 8;
+    static final int MAX_POOLED_SIZE = 1 << 24;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    private final ArrayBlockingQueue<byte[]>[] sizeClasses;
+
+    /**
+     * @param maxPooledPerSizeClass number of idle buffers kept for each size class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPooledPerSizeClass) {
+        final int classes = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1;
+        sizeClasses = new ArrayBlockingQueue[classes];
+        for (int i = 0; i < classes; i++)
+            sizeClasses[i] = new ArrayBlockingQueue<>(maxPooledPerSizeClass);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        if (capacity <= MIN_POOLED_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * @param minCapacity least number of bytes needed
+     * @return buffer whose length is at least minCapacity; its contents are unspecified
+     */
+    public byte[] acquire(int minCapacity) {
+        if (minCapacity > MAX_POOLED_SIZE)
+            return new byte[minCapacity];
+        final int sizeClass = sizeClassOf(minCapacity);
+        final byte[] pooled = sizeClasses[sizeClass].poll();
+        return pooled != null ? pooled : new byte[MIN_POOLED_SIZE << sizeClass];
+    }
+
+    /**
+     * @param buffer buffer previously returned by {@link #acquire(int)}; it must not be used by the caller afterwards
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length < MIN_POOLED_SIZE || buffer.length > MAX_POOLED_SIZE || Integer.bitCount(buffer.length) != 1)
+            return;
+        sizeClasses[sizeClassOf(buffer.length)].offer(buffer);
+    }
+}
@@ -0,0 +1,85 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of file chunks by SHA-256 digest, bounded in data bytes, kept by a relay for the agents behind it.
+ * <p>
+ * The server keeps a mirror of every relay's cache holding digests only: it applies the same operations in the same order as the relay does on receipt,
+ * so both evict alike and the server knows without asking whether a chunk can be sent as its digest.
+ * Neither side is thread-safe; callers serialize access in the order frames travel.
+ */
+public final class ChunkCache {
+
+    public static final int DIGEST_LENGTH = 32;
+    private final long capacityBytes;
+    private final boolean mirror;
+    private final Map<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * @param capacityBytes data bytes kept at most
+     * @param mirror        true to record digests and lengths only, for the server's copy of a relay's cache
+     */
+    public ChunkCache(long capacityBytes, boolean mirror) {
+        this.capacityBytes = capacityBytes;
+        this.mirror = mirror;
+    }
+
+    /**
+     * @return SHA-256 digest of data
+     */
+    public static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks chunk up and marks it most recently used.
+     *
+     * @return true if chunk is cached
+     */
+    public boolean contains(byte[] digest) {
+        return entries.get(ByteBuffer.wrap(digest)) != null;
+    }
+
+    /**
+     * Looks chunk up and marks it most recently used.
+     *
+     * @return cached data of chunk, null if it is not cached or this is a mirror
+     */
+    public byte[] get(byte[] digest) {
+        final var entry = entries.get(ByteBuffer.wrap(digest));
+        return entry == null ? null : entry.data();
+    }
+
+    /**
+     * Caches chunk as most recently used and evicts least recently used ones beyond capacity, the chunk itself if it is larger than capacity.
+     */
+    public void put(byte[] digest, byte[] data) {
+        final var previous = entries.put(ByteBuffer.wrap(digest.clone()), new Entry(data.length, mirror ? null : data));
+        if (previous != null)
+            cachedBytes -= previous.length();
+        cachedBytes += data.length;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (cachedBytes > capacityBytes && iterator.hasNext()) {
+            cachedBytes -= iterator.next().length();
+            iterator.remove();
+        }
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private record Entry(int length, byte[] data) {
+    }
+}
@@ -0,0 +1,88 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Descriptor Byte registry common to Server and Client. Each constant is sent as the header byte of a frame and tells the receiving end which action to perform.
+ */
+public final class DescriptorCode {
+
+    public static final byte CONNECTION_LOST = (byte) 0;
+    public static final byte CLIENT_ONLINE = (byte) 1;
+    public static final byte WINDOW_UPDATE = (byte) 3;//Credit of a channel handed back by its receiver, see ReceiveWindow
+    public static final byte PING = (byte) 4;//see Heartbeat
+    public static final byte PONG = (byte) 5;
+    public static final byte DATA_STREAM_ATTACH = (byte) 6;//first frame of an extra socket for file data, carries session token; see Handshake.Feature.DATA_STREAMS
+    public static final byte SHARD_ROUTE = (byte) 7;//command of one server node's console for a client of another node; only between server nodes
+    public static final byte RELAY_ATTACH = (byte) 8;//first frame of a relay's connection, carries size of its chunk cache and its handshake offer, answered with the agreement; see Relay
+    public static final byte RELAY_OPEN = (byte) 9;//agent id (4B) + address of agent, agent connected to relay
+    public static final byte RELAY_CLOSE = (byte) 10;//agent id (4B), agent connection closed by either end
+    public static final byte RELAY_FRAME = (byte) 11;//agent id (4B) + descriptor (1B) + data, frame from or to an agent
+    public static final byte RELAY_CACHE_FILL = (byte) 12;//agent id (4B) + descriptor (1B) + data, frame to an agent whose data relay caches
+    public static final byte RELAY_CACHE_HIT = (byte) 13;//agent id (4B) + descriptor (1B) + SHA-256 of data (32B), frame to an agent whose data relay has cached
+    public static final byte SHARD_ATTACH = (byte) 14;//first frame of a connection between server nodes, carries their shared secret; see ShardRouter
+    public static final byte CHAT_INITIATOR_CLIENT = (byte) 120;
+    public static final byte CHAT_INITIATOR_CLIENT_OK = (byte) 121;
+    public static final byte CHAT_INITIATOR_SERVER = (byte) 122;
+    public static final byte CHAT_INITIATOR_SERVER_OK = (byte) 123;
+    public static final byte REMOTE_SOFT_INSTALLATION = (byte) 65;
+    public static final byte FTP_OFF_START = (byte) 220;//-36
+    public static final byte FTP_ON_NO_PROGRESS = (byte) 225;//-31
+    public static final byte FTP_ON_PROGRESS = (byte) 125;
+    public static final byte FTP_EOR = (byte) 128;//End Of Record Marker//-128
+    public static final byte FTP_EOF = (byte) 64;
+    public static final byte FTP_ERROR = (byte) 32;
+    public static final byte FTP_COMMIT = (byte) 226;//-30
+    public static final byte FTP_ABORT = (byte) 227;//-29
+    public static final byte FTP_RANGE = (byte) 228;//-28 File pointer as big-endian long (8B) + data, on a data stream
+    public static final byte FTP_RANGE_ACK = (byte) 229;//-27 File pointer of range written
+    public static final byte CLIENT_CONTROL_OPERATIONS_REQ = (byte) 129;//-127
+    public static final byte CLIENT_SHUTDOWN = (byte) 130;//-126
+    public static final byte CLIENT_RESTART = (byte) 131;//-125
+    public static final byte CLIENT_LOGOFF = (byte) 132;//-124
+    public static final byte SCREEN_SHARING_ON_NO_PROGRESS = (byte) 168;
+    public static final byte SCREEN_SHARING_ON_PROGRESS = (byte) 169;
+    public static final byte SCREEN_SHARING_ABORT = (byte) 170;
+    public static final byte SCREEN_STREAM_START = (byte) 171;//-85 Frames per second + ',' + Frames in flight, client pushes frames from then on; see Handshake.Feature.SCREEN_STREAMING
+    public static final byte SCREEN_FRAME_ACK = (byte) 172;//-84 Count of frames server has shown since SCREEN_STREAM_START
+    public static final byte SCREEN_INPUT_EVENT = (byte) 173;//-83 Input events of the screen viewer, see InputEvents
+
+    private static final String[] NAMES = new String[256];
+
+    static {
+        for (Field field : DescriptorCode.class.getDeclaredFields()) {
+            final int modifiers = field.getModifiers();
+            if (field.getType() != byte.class || !Modifier.isPublic(modifiers) || !Modifier.isStatic(modifiers))
+                continue;
+            try {
+                final int index = field.getByte(null) & 0xFF;
+                if (NAMES[index] != null)
+                    throw new ExceptionInInitializerError("Descriptor " + field.getName() + " reuses byte value of " + NAMES[index]);
+                NAMES[index] = field.getName();
+            } catch (IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+
+    private DescriptorCode() {
+    }
+
+    /**
+     * @param descriptorByte headerByte read from or written to the stream
+     * @return name of the descriptor constant, or its numeric value when it is not registered
+     */
+    public static String nameOf(byte descriptorByte) {
+        final var name = NAMES[descriptorByte & 0xFF];
+        return name != null ? name : String.valueOf(descriptorByte);
+    }
+
+    /**
+     * @param descriptorByte headerByte read from the stream
+     * @return true if descriptorByte is one of the registered constants
+     */
+    public static boolean isRegistered(byte descriptorByte) {
+        return NAMES[descriptorByte & 0xFF] != null;
+    }
+}
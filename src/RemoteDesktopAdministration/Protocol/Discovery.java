@@ -0,0 +1,143 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local-network discovery of servers: every server multicasts a {@link Beacon} each {@link #BEACON_INTERVAL_MILLIS} to {@link #GROUP},
+ * and a client listens for a while and connects to the least-loaded server it heard.
+ * <p>
+ * Beacon payload : key=value lines in UTF-8, the first being {@code rda=beacon}; the server's address is taken from the datagram's source.
+ * Datagrams are sent with TTL 1 and multicast loopback on, so they stay in the local network and a client on the server's own host hears them too.
+ */
+public final class Discovery {
+
+    public static final String DEFAULT_GROUP_ADDRESS = "239.255.74.66";
+    public static final int DEFAULT_GROUP_PORT = 35707;
+    public static final long DEFAULT_BEACON_INTERVAL_MILLIS = 1000L;
+    /**
+     * servers send beacons and clients connect to what they hear unless set to false with system property {@code rda.discovery}
+     */
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("rda.discovery", "true"));
+    /**
+     * set with system properties {@code rda.discoveryGroup} and {@code rda.discoveryPort}
+     */
+    public static final InetSocketAddress GROUP = new InetSocketAddress(System.getProperty("rda.discoveryGroup", DEFAULT_GROUP_ADDRESS), Integer.getInteger("rda.discoveryPort", DEFAULT_GROUP_PORT));
+    /**
+     * set with system property {@code rda.beaconIntervalMillis}
+     */
+    public static final long BEACON_INTERVAL_MILLIS = Long.getLong("rda.beaconIntervalMillis", DEFAULT_BEACON_INTERVAL_MILLIS);
+    private static final String MARKER = "rda=beacon";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_LOAD = "load";
+    private static final String KEY_NAME = "name";
+    private static final int MAX_BEACON_LENGTH = 512;
+
+    private Discovery() {
+    }
+
+    /**
+     * @return socket sending beacons to {@link #GROUP}
+     */
+    public static MulticastSocket openSender() throws IOException {
+        final var socket = new MulticastSocket();
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        return socket;
+    }
+
+    /**
+     * @param socket socket of {@link #openSender()}
+     * @param beacon beacon of this server; its address is ignored
+     */
+    public static void send(MulticastSocket socket, Beacon beacon) throws IOException {
+        final byte[] payload = beacon.encode();
+        socket.send(new DatagramPacket(payload, payload.length, GROUP));
+    }
+
+    /**
+     * Collects beacons for windowMillis, the latest of every server.
+     *
+     * @param windowMillis time to listen; twice {@link #BEACON_INTERVAL_MILLIS} hears every running server at least once
+     * @return beacons heard, one per server address
+     */
+    public static List<Beacon> listen(long windowMillis) throws IOException {
+        final Map<InetSocketAddress, Beacon> beacons = new LinkedHashMap<>();
+        try (var socket = new MulticastSocket(GROUP.getPort())) {
+            socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            socket.joinGroup(GROUP, null);
+            final byte[] buffer = new byte[MAX_BEACON_LENGTH];
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            for (long left = windowMillis; left > 0; left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) {
+                final var packet = new DatagramPacket(buffer, buffer.length);
+                socket.setSoTimeout((int) Math.max(1L, left));
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                Beacon.decode(packet).ifPresent(beacon -> beacons.put(beacon.address(), beacon));
+            }
+            socket.leaveGroup(GROUP, null);
+        }
+        return new ArrayList<>(beacons.values());
+    }
+
+    /**
+     * @return least-loaded server among beacons, the first heard among equals
+     */
+    public static Optional<Beacon> leastLoaded(List<Beacon> beacons) {
+        return beacons.stream().min(Comparator.comparingInt(Beacon::load));
+    }
+
+    /**
+     * Advertisement of one server.
+     *
+     * @param address address clients connect to
+     * @param version {@link Handshake#PROTOCOL_VERSION} of server
+     * @param load    clients online on server
+     * @param name    host name of server, for display
+     */
+    public record Beacon(InetSocketAddress address, int version, int load, String name) {
+
+        static Optional<Beacon> decode(DatagramPacket packet) {
+            final var lines = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8).split("\n");
+            if (lines.length == 0 || !lines[0].equals(MARKER))
+                return Optional.empty();
+            final Map<String, String> values = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                final int separator = lines[i].indexOf('=');
+                if (separator > 0)
+                    values.put(lines[i].substring(0, separator), lines[i].substring(separator + 1));
+            }
+            try {
+                final int port = Integer.parseInt(values.get(KEY_PORT));
+                final InetAddress host = packet.getAddress();
+                return Optional.of(new Beacon(new InetSocketAddress(host, port), Integer.parseInt(values.getOrDefault(KEY_VERSION, "0")),
+                        Integer.parseInt(values.getOrDefault(KEY_LOAD, "0")), values.getOrDefault(KEY_NAME, host.getHostAddress())));
+            } catch (IllegalArgumentException e) {
+                return Optional.empty();
+            }
+        }
+
+        byte[] encode() {
+            return (MARKER + "\n" + KEY_VERSION + "=" + version + "\n" + KEY_PORT + "=" + address.getPort() + "\n" + KEY_LOAD + "=" + load + "\n" + KEY_NAME + "=" + name)
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
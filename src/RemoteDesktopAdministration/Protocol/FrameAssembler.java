@@ -0,0 +1,71 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.net.ProtocolException;
+
+/**
+ * Joins fragments of frames back together, one frame in progress per {@link FrameCodec.Channel}, for {@link FrameReader} and {@link FrameDecoder}.
+ * A whole frame is gathered into a buffer leased from {@link BufferPool#SHARED}, grown as fragments arrive.
+ */
+final class FrameAssembler {
+
+    private static final int CHANNEL_COUNT = FrameCodec.Channel.values().length;
+    private final byte[][] buffers = new byte[CHANNEL_COUNT][];
+    private final int[] lengths = new int[CHANNEL_COUNT];
+    private final byte[] descriptors = new byte[CHANNEL_COUNT];
+
+    /**
+     * @param flags    Flags Byte of the fragment
+     * @param fragment frame as read, released by this call unless returned as it is
+     * @return whole frame once its last fragment has arrived, otherwise null
+     * @throws ProtocolException if fragment does not continue the frame in progress on its channel, or the frame grows too long
+     */
+    ReadStream add(byte flags, ReadStream fragment) throws ProtocolException {
+        final int channel = FrameCodec.channelIndex(flags);
+        final boolean more = (flags & FrameCodec.FLAG_MORE) != 0;
+        if (buffers[channel] == null && !more)
+            return fragment;
+        try {
+            append(channel, fragment);
+        } finally {
+            fragment.release();
+        }
+        if (more)
+            return null;
+        final var frame = new ReadStream(descriptors[channel], buffers[channel], lengths[channel], true);
+        buffers[channel] = null;
+        return frame;
+    }
+
+    private void append(int channel, ReadStream fragment) throws ProtocolException {
+        byte[] buffer = buffers[channel];
+        if (buffer == null) {
+            buffer = BufferPool.SHARED.acquire(Math.max(fragment.dataLength() * 4, BufferPool.MIN_POOLED_SIZE));
+            descriptors[channel] = fragment.descriptorByte();
+            lengths[channel] = 0;
+            buffers[channel] = buffer;
+        } else if (descriptors[channel] != fragment.descriptorByte()) {
+            throw new ProtocolException("Fragment of " + DescriptorCode.nameOf(fragment.descriptorByte()) + " interrupts " + DescriptorCode.nameOf(descriptors[channel]) + ".");
+        }
+        final int length = FrameCodec.checkDataLength((long) lengths[channel] + fragment.dataLength());
+        if (length > buffer.length) {
+            final byte[] grown = BufferPool.SHARED.acquire((int) Math.min(FrameCodec.MAX_DATA_LENGTH, Math.max(length, 2L * buffer.length)));
+            System.arraycopy(buffer, 0, grown, 0, lengths[channel]);
+            BufferPool.SHARED.release(buffer);
+            buffer = grown;
+        }
+        System.arraycopy(fragment.dataBuffer(), 0, buffer, lengths[channel], fragment.dataLength());
+        buffers[channel] = buffer;
+        lengths[channel] = length;
+    }
+
+    /**
+     * Gives back buffers of frames left incomplete, e.g. when the connection is lost.
+     */
+    void clear() {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (buffers[i] != null)
+                BufferPool.SHARED.release(buffers[i]);
+            buffers[i] = null;
+        }
+    }
+}
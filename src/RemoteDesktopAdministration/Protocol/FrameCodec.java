@@ -0,0 +1,174 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.net.ProtocolException;
+
+/**
+ * Encoder / Decoder of data packets common to Server and Client.
+ * <p>
+ * Two frame formats are understood on read ({@link FrameReader}, {@link FrameDecoder}), whichever one the peer writes:
+ * <ul>
+ * <li>{@link Format#LEGACY} : Start Byte (1B) + Descriptor Byte (1B) + ByteArray of String Representation of Data Length (>=1B) + End Byte (1B) + Data (>=0B)</li>
+ * <li>{@link Format#BINARY} : Magic Byte (1B) + Descriptor Byte (1B) + Flags Byte (1B) + Data Length as big-endian int (4B) + Data (>=0B)</li>
+ * </ul>
+ * Frames are written by {@link FrameWriter}. The format used on write is negotiated per connection during the CLIENT_ONLINE {@link Handshake}; peers that do not take part in the negotiation keep {@link Format#LEGACY}.
+ * Binary frames may carry deflated data, marked in Flags Byte, once {@link Compression} has been negotiated too.
+ * <p>
+ * Once {@link Handshake.Feature#CHANNELS} has been negotiated, Flags Byte also names the {@link Channel} of a binary frame, and large frames are cut into fragments:
+ * every fragment but the last is marked with {@link #FLAG_MORE}, fragments of one channel arrive in order, and fragments of different channels interleave.
+ */
+public final class FrameCodec {
+
+    public static final int MAX_DATA_LENGTH = 1 << 28;
+    public static final int MAX_HEADER_LENGTH = 13;//legacy header of a data length with 10 digits
+    static final byte STX = (byte) 2;//Start of TeXt ASCII Code
+    static final byte EOT = (byte) 4;//Here End of Transmission ASCII Code
+    static final byte MAGIC = (byte) 0xDA;
+    static final int BINARY_HEADER_LENGTH = 7;
+    static final byte FLAG_DEFLATE = (byte) 1;//Data is deflated, see FrameCompressor
+    static final int CHANNEL_SHIFT = 1;//Flags bits 1-2 hold the channel
+    static final int CHANNEL_MASK = 3;
+    static final byte FLAG_MORE = (byte) 8;//More fragments of the frame follow on its channel
+    static final byte[] EMPTY_DATA = new byte[0];
+
+    private FrameCodec() {
+    }
+
+    static long binaryDataLength(byte[] header, int offset) {
+        return (((header[offset] & 0xFF) << 24) | ((header[offset + 1] & 0xFF) << 16) | ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF)) & 0xFFFFFFFFL;
+    }
+
+    static int checkDataLength(long length) throws ProtocolException {
+        if (length > MAX_DATA_LENGTH)
+            throw new ProtocolException("Data length " + length + " exceeds " + MAX_DATA_LENGTH + " bytes.");
+        return (int) length;
+    }
+
+    static long appendLegacyLengthDigit(long length, int digit, int digits) throws ProtocolException {
+        if (digit < '0' || digit > '9')
+            throw new ProtocolException("Malformed data length digit : " + digit);
+        if (digits >= 10)
+            throw new ProtocolException("Data length has too many digits.");
+        return length * 10 + (digit - '0');
+    }
+
+    /**
+     * @param format     frame format
+     * @param dataLength length of Actual Data
+     * @return Data Packet length laid out as described by {@code format}
+     */
+    public static int encodedLength(Format format, int dataLength) {
+        return headerLength(format, dataLength) + dataLength;
+    }
+
+    /**
+     * @param format         frame format negotiated with the peer
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataBuffer     Actual Data in byteArray
+     * @param packet         destination of at least {@link #encodedLength(Format, int)} bytes
+     * @return number of bytes of packet filled
+     */
+    public static int encode(Format format, byte descriptorByte, byte[] dataBuffer, byte[] packet) {
+        final int headerLength = encodeHeader(format, descriptorByte, dataBuffer.length, packet, 0);
+        System.arraycopy(dataBuffer, 0, packet, headerLength, dataBuffer.length);
+        return headerLength + dataBuffer.length;
+    }
+
+    /**
+     * Encodes only the header of a frame, for writers which send the data from its own array.
+     *
+     * @param format         frame format negotiated with the peer
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataLength     length of Actual Data
+     * @param header         destination of at least {@link #MAX_HEADER_LENGTH} bytes from offset
+     * @param offset         index of header at which to start
+     * @return number of header bytes filled
+     */
+    public static int encodeHeader(Format format, byte descriptorByte, int dataLength, byte[] header, int offset) {
+        return encodeHeader(format, descriptorByte, (byte) 0, dataLength, header, offset);
+    }
+
+    static int encodeHeader(Format format, byte descriptorByte, byte flags, int dataLength, byte[] header, int offset) {
+        return switch (format) {
+            case LEGACY -> encodeLegacyHeader(descriptorByte, dataLength, header, offset);
+            case BINARY -> encodeBinaryHeader(descriptorByte, flags, dataLength, header, offset);
+        };
+    }
+
+    static byte channelFlags(Channel channel) {
+        return (byte) (channel.ordinal() << CHANNEL_SHIFT);
+    }
+
+    static int channelIndex(byte flags) {
+        return (flags >> CHANNEL_SHIFT) & CHANNEL_MASK;
+    }
+
+    private static int headerLength(Format format, int dataLength) {
+        return switch (format) {
+            case LEGACY -> 3 + digitCount(dataLength);
+            case BINARY -> BINARY_HEADER_LENGTH;
+        };
+    }
+
+    private static int encodeLegacyHeader(byte descriptorByte, int dataLength, byte[] packet, int offset) {
+        final int digits = digitCount(dataLength);
+        packet[offset] = STX;
+        packet[offset + 1] = descriptorByte;
+        for (int i = offset + digits + 1, remaining = dataLength; i >= offset + 2; i--, remaining /= 10)
+            packet[i] = (byte) ('0' + remaining % 10);
+        packet[offset + 2 + digits] = EOT;
+        return 3 + digits;
+    }
+
+    private static int encodeBinaryHeader(byte descriptorByte, byte flags, int dataLength, byte[] packet, int offset) {
+        packet[offset] = MAGIC;
+        packet[offset + 1] = descriptorByte;
+        packet[offset + 2] = flags;
+        packet[offset + 3] = (byte) (dataLength >>> 24);
+        packet[offset + 4] = (byte) (dataLength >>> 16);
+        packet[offset + 5] = (byte) (dataLength >>> 8);
+        packet[offset + 6] = (byte) dataLength;
+        return BINARY_HEADER_LENGTH;
+    }
+
+    private static int digitCount(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Frame formats in order of preference.
+     */
+    public enum Format {
+        BINARY, LEGACY
+    }
+
+    /**
+     * Data compressions in order of preference; only {@link Format#BINARY} frames can be compressed.
+     */
+    public enum Compression {
+        DEFLATE, NONE
+    }
+
+    /**
+     * Logical channels multiplexed over one connection, in order of priority: a fragment of a higher channel is always written before one of a lower channel.
+     */
+    public enum Channel {
+        /**
+         * handshake, control operations and input events
+         */
+        CONTROL,
+        CHAT,
+        /**
+         * shared screen frames
+         */
+        SCREEN,
+        /**
+         * file transfer
+         */
+        BULK
+    }
+}
@@ -0,0 +1,107 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates frame data on write and inflates it on read, reusing one {@link Deflater} per writing connection and one {@link Inflater} per reading one.
+ * <p>
+ * Compressed data is laid out as : Original Data Length as big-endian int (4B) + raw deflate stream; the frame is marked with {@link FrameCodec#FLAG_DEFLATE}.
+ * Which frames are compressed depends on their descriptor:
+ * <ul>
+ * <li>file chunks ({@link DescriptorCode#FTP_EOR}) only if a sample of their start compresses well, as installers and archives mostly do not</li>
+ * <li>every other frame, text and screen data alike, whenever it gets smaller</li>
+ * </ul>
+ * Data shorter than {@link #MIN_COMPRESSED_LENGTH} is never compressed. Fragments of a frame are compressed each on their own.
+ */
+public final class FrameCompressor {
+
+    public static final int MIN_COMPRESSED_LENGTH = 256;
+    static final int SAMPLE_LENGTH = 8 * 1024;
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] sample = new byte[SAMPLE_LENGTH];
+
+    /**
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataBuffer     Actual Data in byteArray
+     * @param offset         index of dataBuffer at which data starts
+     * @param dataLength     length of data, e.g. of one fragment of a frame
+     * @param packet         destination of at least dataLength bytes
+     * @return number of bytes of packet filled, or -1 if data is better sent as it is
+     */
+    public int compress(byte descriptorByte, byte[] dataBuffer, int offset, int dataLength, byte[] packet) {
+        if (dataLength < MIN_COMPRESSED_LENGTH)
+            return -1;
+        if (descriptorByte == DescriptorCode.FTP_EOR && !sampleCompresses(dataBuffer, offset, dataLength))
+            return -1;
+        packet[0] = (byte) (dataLength >>> 24);
+        packet[1] = (byte) (dataLength >>> 16);
+        packet[2] = (byte) (dataLength >>> 8);
+        packet[3] = (byte) dataLength;
+        final int limit = dataLength - 1;
+        int length = 4;
+        deflater.reset();
+        deflater.setInput(dataBuffer, offset, dataLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (length == limit)
+                return -1;
+            length += deflater.deflate(packet, length, limit - length);
+        }
+        return length;
+    }
+
+    private boolean sampleCompresses(byte[] dataBuffer, int offset, int dataLength) {
+        final int sampleLength = Math.min(SAMPLE_LENGTH, dataLength);
+        deflater.reset();
+        deflater.setInput(dataBuffer, offset, sampleLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < sampleLength)
+            compressedLength += deflater.deflate(sample, compressedLength, sample.length - compressedLength);
+        return deflater.finished() && compressedLength < sampleLength * MAX_SAMPLE_RATIO;
+    }
+
+    /**
+     * Frees the deflater of a compressor used only once.
+     */
+    void end() {
+        deflater.end();
+    }
+
+    /**
+     * @param inflater         inflater of the reading connection
+     * @param descriptorByte   headerByte [One among DescriptorCode class]
+     * @param compressed       compressed data as laid out by {@link #compress(byte, byte[], int, int, byte[])}
+     * @param compressedLength length of compressed data
+     * @return frame holding inflated data in a buffer leased from {@link BufferPool#SHARED}
+     * @throws ProtocolException if compressed data is malformed
+     */
+    static ReadStream inflate(Inflater inflater, byte descriptorByte, byte[] compressed, int compressedLength) throws ProtocolException {
+        if (compressedLength < 4)
+            throw new ProtocolException("Compressed data is too short.");
+        final int dataLength = FrameCodec.checkDataLength(FrameCodec.binaryDataLength(compressed, 0));
+        final byte[] data = BufferPool.SHARED.acquire(dataLength);
+        inflater.reset();
+        inflater.setInput(compressed, 4, compressedLength - 4);
+        int inflated = 0;
+        try {
+            while (inflated < dataLength) {
+                final int count = inflater.inflate(data, inflated, dataLength - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            inflated = -1;
+        }
+        if (inflated != dataLength) {
+            BufferPool.SHARED.release(data);
+            throw new ProtocolException("Compressed data does not inflate to its length " + dataLength + ".");
+        }
+        return new ReadStream(descriptorByte, data, dataLength, true);
+    }
+}
@@ -0,0 +1,138 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+
+/**
+ * Incremental decoder for frames which arrive in pieces of any size on a non-blocking channel.
+ * Understands the same frame formats as {@link FrameReader}; one instance per connection.
+ */
+public final class FrameDecoder {
+
+    private final byte[] header = new byte[FrameCodec.BINARY_HEADER_LENGTH - 1];
+    private final Inflater inflater = new Inflater(true);
+    private final FrameAssembler frameAssembler = new FrameAssembler();
+    private ReceiveWindow receiveWindow;
+    private State state = State.START;
+    private byte descriptor;
+    private byte flags;
+    private long length;
+    private int digits;
+    private int headerFilled;
+    private byte[] data;
+    private int dataLength;
+    private int dataFilled;
+
+    /**
+     * @param receiveWindow told of data bytes of each frame once consumer has returned
+     */
+    public void setReceiveWindow(ReceiveWindow receiveWindow) {
+        this.receiveWindow = receiveWindow;
+    }
+
+    /**
+     * Consumes every remaining byte of buffer, handing each completed frame to consumer in arrival order; a fragmented frame is handed over once its last fragment arrives.
+     * Data of a frame is leased from {@link BufferPool#SHARED} and released when consumer returns.
+     *
+     * @param buffer   bytes read from the channel, in read mode
+     * @param consumer receiver of completed frames
+     * @throws ProtocolException if the bytes do not form a valid frame
+     */
+    public void decode(ByteBuffer buffer, Consumer<ReadStream> consumer) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case START -> {
+                    final byte start = buffer.get();
+                    if (start == FrameCodec.STX) {
+                        state = State.LEGACY_DESCRIPTOR;
+                    } else if (start == FrameCodec.MAGIC) {
+                        headerFilled = 0;
+                        state = State.BINARY_HEADER;
+                    } else {
+                        throw new ProtocolException("Unknown frame start byte : " + (start & 0xFF));
+                    }
+                }
+                case LEGACY_DESCRIPTOR -> {
+                    descriptor = buffer.get();
+                    flags = 0;
+                    length = 0L;
+                    digits = 0;
+                    state = State.LEGACY_LENGTH;
+                }
+                case LEGACY_LENGTH -> {
+                    final int digit = buffer.get() & 0xFF;
+                    if (digit != FrameCodec.EOT) {
+                        length = FrameCodec.appendLegacyLengthDigit(length, digit, digits++);
+                    } else if (digits == 0) {
+                        throw new ProtocolException("Data length is missing.");
+                    } else {
+                        beginData(consumer);
+                    }
+                }
+                case BINARY_HEADER -> {
+                    final int count = Math.min(buffer.remaining(), header.length - headerFilled);
+                    buffer.get(header, headerFilled, count);
+                    headerFilled += count;
+                    if (headerFilled == header.length) {
+                        descriptor = header[0];
+                        flags = header[1];
+                        length = FrameCodec.binaryDataLength(header, 2);
+                        beginData(consumer);
+                    }
+                }
+                case DATA -> {
+                    final int count = Math.min(buffer.remaining(), dataLength - dataFilled);
+                    buffer.get(data, dataFilled, count);
+                    dataFilled += count;
+                    if (dataFilled == dataLength)
+                        complete(consumer);
+                }
+            }
+        }
+    }
+
+    private void beginData(Consumer<ReadStream> consumer) throws ProtocolException {
+        dataLength = FrameCodec.checkDataLength(length);
+        dataFilled = 0;
+        if (dataLength == 0) {
+            data = FrameCodec.EMPTY_DATA;
+            complete(consumer);
+        } else {
+            data = BufferPool.SHARED.acquire(dataLength);
+            state = State.DATA;
+        }
+    }
+
+    private void complete(Consumer<ReadStream> consumer) throws ProtocolException {
+        final var received = new ReadStream(descriptor, data, dataLength, dataLength > 0);
+        data = null;
+        state = State.START;
+        final ReadStream inflated;
+        if ((flags & FrameCodec.FLAG_DEFLATE) == 0) {
+            inflated = received;
+        } else {
+            try {
+                inflated = FrameCompressor.inflate(inflater, descriptor, received.dataBuffer(), received.dataLength());
+            } finally {
+                received.release();
+            }
+        }
+        final int length = inflated.dataLength();
+        final var stream = frameAssembler.add(flags, inflated);
+        if (stream != null) {
+            try {
+                consumer.accept(stream);
+            } finally {
+                stream.release();
+            }
+        }
+        if (receiveWindow != null && length > 0)
+            receiveWindow.handled(flags, length);
+    }
+
+    private enum State {
+        START, LEGACY_DESCRIPTOR, LEGACY_LENGTH, BINARY_HEADER, DATA
+    }
+}
@@ -0,0 +1,144 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames from a blocking socket stream through a buffer of its own, so that headers are decoded from memory rather than one system call per byte.
+ * Header bytes go into a reused array and data into a buffer leased from {@link BufferPool#SHARED}; large data bypasses the read buffer and is read straight into the lease.
+ * Deflated data is inflated into another lease with a reused {@link Inflater}, and fragments of a frame are joined by a {@link FrameAssembler}.
+ * <p>
+ * One instance per connection, used by its reading thread only. Each frame returned has to be {@link ReadStream#release() released} once handled.
+ */
+public final class FrameReader implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final ReadStream CONNECTION_LOST_STREAM = new ReadStream(DescriptorCode.CONNECTION_LOST, new byte[0]);
+    private final DataInputStream inputStream;
+    private final byte[] header = new byte[FrameCodec.BINARY_HEADER_LENGTH - 1];
+    private final Inflater inflater = new Inflater(true);
+    private final FrameAssembler frameAssembler = new FrameAssembler();
+    private ReceiveWindow receiveWindow;
+    private byte lastFlags;
+    private int lastLength;
+
+    /**
+     * @param inputStream socket InputStream
+     */
+    public FrameReader(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param inputStream socket InputStream
+     * @param bufferSize  size of read buffer
+     */
+    public FrameReader(InputStream inputStream, int bufferSize) {
+        this.inputStream = new DataInputStream(new BufferedInputStream(inputStream, bufferSize));
+    }
+
+    /**
+     * @param receiveWindow told of data bytes of each frame once the caller asks for the next one, i.e. once the frame has been handled
+     */
+    public void setReceiveWindow(ReceiveWindow receiveWindow) {
+        this.receiveWindow = receiveWindow;
+    }
+
+    /**
+     * @return next frame on the stream, or a CONNECTION_LOST frame without data if the stream is closed or corrupted
+     */
+    public ReadStream readStream() {
+        try {
+            return readFrame();
+        } catch (IOException e) {
+            return CONNECTION_LOST_STREAM;
+        }
+    }
+
+    /**
+     * @return next whole frame on the stream in whichever format the peer has written it; fragments of frames on other channels are gathered meanwhile
+     * @throws IOException if stream is closed or frame is malformed
+     */
+    public ReadStream readFrame() throws IOException {
+        handled(lastFlags, lastLength);
+        lastLength = 0;
+        ReadStream stream;
+        do {
+            final int start = inputStream.read();
+            if (start < 0)
+                throw new EOFException("End of stream reached.");
+            stream = switch ((byte) start) {
+                case FrameCodec.STX -> readLegacyFrame();
+                case FrameCodec.MAGIC -> readBinaryFrame();
+                default -> throw new ProtocolException("Unknown frame start byte : " + start);
+            };
+        } while (stream == null);
+        return stream;
+    }
+
+    private ReadStream readLegacyFrame() throws IOException {
+        final byte descriptor = inputStream.readByte();
+        long length = 0L;
+        int digits = 0;
+        for (int digit = inputStream.readUnsignedByte(); digit != FrameCodec.EOT; digit = inputStream.readUnsignedByte())
+            length = FrameCodec.appendLegacyLengthDigit(length, digit, digits++);
+        if (digits == 0)
+            throw new ProtocolException("Data length is missing.");
+        return readData(descriptor, length);
+    }
+
+    /**
+     * @return frame read, or null if it was a fragment of a frame not yet whole
+     */
+    private ReadStream readBinaryFrame() throws IOException {
+        inputStream.readFully(header);
+        final byte flags = header[1];
+        final var received = readData(header[0], FrameCodec.binaryDataLength(header, 2));
+        final ReadStream stream;
+        if ((flags & FrameCodec.FLAG_DEFLATE) == 0) {
+            stream = received;
+        } else {
+            try {
+                stream = FrameCompressor.inflate(inflater, received.descriptorByte(), received.dataBuffer(), received.dataLength());
+            } finally {
+                received.release();
+            }
+        }
+        final int length = stream.dataLength();
+        final var frame = frameAssembler.add(flags, stream);
+        if (frame == null) {
+            handled(flags, length);
+        } else {
+            lastFlags = flags;
+            lastLength = length;
+        }
+        return frame;
+    }
+
+    private void handled(byte flags, int length) {
+        if (receiveWindow != null && length > 0)
+            receiveWindow.handled(flags, length);
+    }
+
+    private ReadStream readData(byte descriptor, long length) throws IOException {
+        final int dataLength = FrameCodec.checkDataLength(length);
+        if (dataLength == 0)
+            return new ReadStream(descriptor, FrameCodec.EMPTY_DATA);
+        final byte[] data = BufferPool.SHARED.acquire(dataLength);
+        try {
+            inputStream.readFully(data, 0, dataLength);
+        } catch (IOException e) {
+            BufferPool.SHARED.release(data);
+            throw e;
+        }
+        return new ReadStream(descriptor, data, dataLength, true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        frameAssembler.clear();
+        inputStream.close();
+    }
+}
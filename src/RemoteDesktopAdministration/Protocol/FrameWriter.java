@@ -0,0 +1,146 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Batches frames of one connection and writes them with gathering writes: header and data of every frame are separate buffers of one
+ * {@link GatheringByteChannel#write(ByteBuffer[], int, int)} call, so data is never copied into a packet array and a run of small frames leaves in a single system call.
+ * <p>
+ * Binary frames are deflated on the way when {@link FrameCodec.Compression#DEFLATE} has been negotiated, see {@link FrameCompressor}.
+ * <p>
+ * Works on blocking channels ({@link #writeFully()}) and non-blocking ones ({@link #write()}). One instance per connection, used by its writing thread only.
+ */
+public final class FrameWriter {
+
+    public static final int MAX_BATCH_FRAMES = 64;
+    public static final int MAX_BATCH_BYTES = 128 * 1024;//bounds how long a control frame waits behind a batch of bulk fragments
+    private final GatheringByteChannel channel;
+    private final byte[] headers = new byte[MAX_BATCH_FRAMES * FrameCodec.MAX_HEADER_LENGTH];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH_FRAMES * 2];
+    private final byte[][] leases = new byte[MAX_BATCH_FRAMES][];
+    private FrameCompressor compressor;
+    private int frameCount = 0;
+    private int bufferCount = 0;
+    private int writtenBuffers = 0;
+    private long batchedBytes = 0L;
+
+    /**
+     * @param channel socket channel of the connection
+     */
+    public FrameWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Adds a frame, or one fragment of it, to the batch; nothing is written until {@link #write()} or {@link #writeFully()}.
+     *
+     * @param agreement      settings negotiated with the peer: frame format, compression, and whether frames carry their channel
+     * @param channel        channel of the frame
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataBuffer     Actual Data in byteArray, must not be modified until the batch is written
+     * @param offset         index of dataBuffer at which the fragment starts
+     * @param length         length of the fragment
+     * @param last           false if more fragments of the frame follow
+     * @throws IllegalStateException if batch is full
+     */
+    public void add(Handshake.Agreement agreement, FrameCodec.Channel channel, byte descriptorByte, byte[] dataBuffer, int offset, int length, boolean last) {
+        if (frameCount == MAX_BATCH_FRAMES)
+            throw new IllegalStateException("Frame batch is full.");
+        final var format = agreement.frameFormat();
+        byte flags = 0;
+        if (agreement.uses(Handshake.Feature.CHANNELS))
+            flags = (byte) (FrameCodec.channelFlags(channel) | (last ? 0 : FrameCodec.FLAG_MORE));
+        else if (!last)
+            throw new IllegalArgumentException("Peer does not take frame fragments.");
+        ByteBuffer data = ByteBuffer.wrap(dataBuffer, offset, length);
+        if (format == FrameCodec.Format.BINARY && agreement.compression() == FrameCodec.Compression.DEFLATE && length >= FrameCompressor.MIN_COMPRESSED_LENGTH) {
+            if (compressor == null)
+                compressor = new FrameCompressor();
+            final byte[] packet = BufferPool.SHARED.acquire(length);
+            final int compressedLength = compressor.compress(descriptorByte, dataBuffer, offset, length, packet);
+            if (compressedLength < 0) {
+                BufferPool.SHARED.release(packet);
+            } else {
+                flags |= FrameCodec.FLAG_DEFLATE;
+                data = ByteBuffer.wrap(packet, 0, compressedLength);
+                leases[frameCount] = packet;
+            }
+        }
+        final int headerOffset = frameCount * FrameCodec.MAX_HEADER_LENGTH;
+        final int headerLength = FrameCodec.encodeHeader(format, descriptorByte, flags, data.remaining(), headers, headerOffset);
+        buffers[bufferCount++] = ByteBuffer.wrap(headers, headerOffset, headerLength);
+        batchedBytes += headerLength + data.remaining();
+        if (data.hasRemaining())
+            buffers[bufferCount++] = data;
+        frameCount++;
+    }
+
+    /**
+     * Adds a frame encoded beforehand, e.g. by a {@link SharedFrame}; the packet is written as it is.
+     *
+     * @param packet whole frame, must not be modified afterwards
+     * @throws IllegalStateException if batch is full
+     */
+    public void add(byte[] packet) {
+        if (frameCount == MAX_BATCH_FRAMES)
+            throw new IllegalStateException("Frame batch is full.");
+        buffers[bufferCount++] = ByteBuffer.wrap(packet);
+        batchedBytes += packet.length;
+        frameCount++;
+    }
+
+    /**
+     * @return true if no more frames should be added before writing
+     */
+    public boolean isFull() {
+        return frameCount == MAX_BATCH_FRAMES || batchedBytes >= MAX_BATCH_BYTES;
+    }
+
+    public boolean isEmpty() {
+        return frameCount == 0;
+    }
+
+    /**
+     * Makes a single write attempt, as suits a non-blocking channel.
+     *
+     * @return true if the whole batch has been written
+     * @throws IOException if writing to channel fails
+     */
+    public boolean write() throws IOException {
+        if (frameCount == 0)
+            return true;
+        channel.write(buffers, writtenBuffers, bufferCount - writtenBuffers);
+        while (writtenBuffers < bufferCount && !buffers[writtenBuffers].hasRemaining())
+            writtenBuffers++;
+        if (writtenBuffers < bufferCount)
+            return false;
+        clear();
+        return true;
+    }
+
+    /**
+     * Writes the whole batch, as suits a blocking channel.
+     *
+     * @throws IOException if writing to channel fails
+     */
+    public void writeFully() throws IOException {
+        while (!write()) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void clear() {
+        for (int i = 0; i < bufferCount; i++)
+            buffers[i] = null;
+        for (int i = 0; i < frameCount; i++) {
+            BufferPool.SHARED.release(leases[i]);
+            leases[i] = null;
+        }
+        frameCount = 0;
+        bufferCount = 0;
+        writtenBuffers = 0;
+        batchedBytes = 0L;
+    }
+}
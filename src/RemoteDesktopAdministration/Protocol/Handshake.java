@@ -0,0 +1,320 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Versioned capability exchange of the CLIENT_ONLINE handshake.
+ * <p>
+ * Client sends : Host Name + '\n' + OS Name + '\n' + {@link Offer} as key=value lines.
+ * Server replies : '#' + Client Id + '\n' + {@link Agreement} as key=value lines.
+ * <p>
+ * Once {@link Feature#RESUMPTION} is agreed, server appends a session token line to its reply, and a reconnecting client appends the last token it got to its offer.
+ * Once {@link Feature#DATA_STREAMS} is agreed too, server may append the count of data streams client should open.
+ * <p>
+ * A client sending only Host Name and OS Name predates the handshake; it is answered with the bare client id and gets {@link Agreement#LEGACY}.
+ * Unknown keys and values are skipped, so either end may advertise more than the other understands.
+ */
+public final class Handshake {
+
+    public static final int PROTOCOL_VERSION = 2;
+    public static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+    /**
+     * receive window advertised by this end, set with system property {@code rda.windowSize}
+     */
+    public static final int WINDOW_SIZE = Integer.getInteger("rda.windowSize", DEFAULT_WINDOW_SIZE);
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_FORMATS = "formats";
+    private static final String KEY_COMPRESSIONS = "compressions";
+    private static final String KEY_SCREEN_ENCODINGS = "screenEncodings";
+    private static final String KEY_FEATURES = "features";
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_COMPRESSION = "compression";
+    private static final String KEY_SCREEN_ENCODING = "screenEncoding";
+    private static final String KEY_MAX_FRAME_SIZE = "maxFrameSize";
+    private static final String KEY_WINDOW_SIZE = "windowSize";
+    private static final String KEY_CPU_CORES = "cpuCores";
+    private static final String KEY_SESSION = "session";
+    private static final String KEY_DATA_STREAMS = "dataStreams";
+
+    private Handshake() {
+    }
+
+    /**
+     * @param lines lines of handshake payload
+     * @param from  index of first key=value line
+     * @return true if payload carries key=value lines, i.e. peer takes part in negotiation
+     */
+    public static boolean isVersioned(String[] lines, int from) {
+        return lines.length > from && lines[from].startsWith(KEY_VERSION + "=");
+    }
+
+    /**
+     * @param local this end's offer
+     * @param peer  offer received from peer
+     * @return most preferred settings both ends support
+     */
+    public static Agreement negotiate(Offer local, Offer peer) {
+        final var frameFormat = firstCommon(local.frameFormats(), peer.frameFormats(), FrameCodec.Format.LEGACY);
+        final var compression = frameFormat == FrameCodec.Format.BINARY ? firstCommon(local.compressions(), peer.compressions(), FrameCodec.Compression.NONE) : FrameCodec.Compression.NONE;
+        final List<Feature> features = new ArrayList<>();
+        for (Feature feature : local.features()) {
+            if (peer.features().contains(feature) && (frameFormat == FrameCodec.Format.BINARY || !feature.binaryOnly)
+                    && (feature.required == null || features.contains(feature.required)))
+                features.add(feature);
+        }
+        return new Agreement(Math.min(local.version(), peer.version()), frameFormat, compression,
+                firstCommon(local.screenEncodings(), peer.screenEncodings(), ScreenEncoding.RAW),
+                Math.min(local.maxFrameSize(), peer.maxFrameSize()), Math.min(local.windowSize(), peer.windowSize()), features);
+    }
+
+    /**
+     * @param token session token, kept out of {@link Agreement} so that agreements stay alike across clients
+     * @return key=value line carrying token
+     */
+    public static String encodeSession(String token) {
+        return KEY_SESSION + "=" + token;
+    }
+
+    /**
+     * @param lines lines of handshake payload
+     * @param from  index of first key=value line
+     * @return session token among key=value lines, null if there is none
+     */
+    public static String decodeSession(String[] lines, int from) {
+        final String token = parse(lines, from).get(KEY_SESSION);
+        return token == null || token.isBlank() ? null : token;
+    }
+
+    /**
+     * @param count extra sockets server asks client to open for file data
+     * @return key=value line carrying count
+     */
+    public static String encodeDataStreams(int count) {
+        return KEY_DATA_STREAMS + "=" + count;
+    }
+
+    /**
+     * @param lines lines of handshake reply
+     * @param from  index of first key=value line
+     * @return extra sockets client is asked to open, 0 if there is no such line
+     */
+    public static int decodeDataStreams(String[] lines, int from) {
+        return Math.max(0, parseInt(parse(lines, from).get(KEY_DATA_STREAMS), 0));
+    }
+
+    private static <T> T firstCommon(List<T> preferred, List<T> offered, T fallback) {
+        return preferred.stream().filter(offered::contains).findFirst().orElse(fallback);
+    }
+
+    private static Map<String, String> parse(String[] lines, int from) {
+        final Map<String, String> values = new HashMap<>();
+        for (int i = from; i < lines.length; i++) {
+            final int separator = lines[i].indexOf('=');
+            if (separator > 0)
+                values.put(lines[i].substring(0, separator), lines[i].substring(separator + 1));
+        }
+        return values;
+    }
+
+    private static <E extends Enum<E>> List<E> parseList(String value, Class<E> type) {
+        if (value == null || value.isBlank())
+            return List.of();
+        final List<E> list = new ArrayList<>();
+        for (String name : value.split(",")) {
+            try {
+                list.add(Enum.valueOf(type, name.trim()));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return list;
+    }
+
+    private static <E extends Enum<E>> E parseValue(String value, Class<E> type, E fallback) {
+        final var list = parseList(value, type);
+        return list.isEmpty() ? fallback : list.get(0);
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try {
+            return value == null ? fallback : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static <E extends Enum<E>> String join(List<E> list) {
+        return list.stream().map(Enum::name).collect(Collectors.joining(","));
+    }
+
+    private static String lines(Map<String, Object> values) {
+        return values.entrySet().stream().map(entry -> entry.getKey() + "=" + entry.getValue()).collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Encodings of shared screen frames, in order of preference.
+     */
+    public enum ScreenEncoding {
+        /**
+         * BGRA pixels of tiles changed since the previous frame, see {@link ScreenTiles}
+         */
+        TILES,
+        /**
+         * whole screen as BGRA pixels
+         */
+        RAW
+    }
+
+    /**
+     * Optional protocol features, used only when both ends offer them.
+     */
+    public enum Feature {
+        /**
+         * frames carry a {@link FrameCodec.Channel} and large frames are fragmented, so that control frames overtake bulk data
+         */
+        CHANNELS(true, null),
+        /**
+         * each end sends data of a channel only within the credit its peer has handed back in {@link DescriptorCode#WINDOW_UPDATE} frames, see {@link ReceiveWindow}
+         */
+        FLOW_CONTROL(true, CHANNELS),
+        /**
+         * server pings client and both ends drop a silent peer, see {@link Heartbeat}
+         */
+        HEARTBEAT(false, null),
+        /**
+         * server keeps a lost client's id, queued contents and interrupted file transfer for a while, and a client reconnecting with its session token takes them back
+         */
+        RESUMPTION(false, null),
+        /**
+         * client opens as many extra sockets as server asks for, attached to its session by token, and file data is striped across them in disjoint ranges
+         */
+        DATA_STREAMS(false, RESUMPTION),
+        /**
+         * server asks once for screen frames in a {@link DescriptorCode#SCREEN_STREAM_START} frame, and client pushes them at the rate asked for,
+         * at most the frames asked for ahead of the count server acknowledges in {@link DescriptorCode#SCREEN_FRAME_ACK} frames, instead of one frame per request
+         */
+        SCREEN_STREAMING(false, null),
+        /**
+         * server sends input events of the screen viewer in batches of {@link InputEvents} records in {@link DescriptorCode#SCREEN_INPUT_EVENT} frames,
+         * which client injects without taking a frame, instead of one by one as text in {@link DescriptorCode#SCREEN_SHARING_ON_PROGRESS} frames
+         */
+        INPUT_EVENTS(false, null);
+
+        private final boolean binaryOnly;
+        private final Feature required;
+
+        Feature(boolean binaryOnly, Feature required) {
+            this.binaryOnly = binaryOnly;
+            this.required = required;
+        }
+    }
+
+    /**
+     * What one end supports, lists in order of preference.
+     *
+     * @param maxFrameSize largest frame data this end accepts
+     * @param windowSize   bytes this end lets the peer send ahead of its acknowledgements
+     * @param cpuCores     processors available to this end
+     */
+    public record Offer(int version, List<FrameCodec.Format> frameFormats, List<FrameCodec.Compression> compressions,
+                        List<ScreenEncoding> screenEncodings, int maxFrameSize, int windowSize, int cpuCores,
+                        List<Feature> features) {
+
+        /**
+         * @return everything this build supports
+         */
+        public static Offer local() {
+            return new Offer(PROTOCOL_VERSION, List.of(FrameCodec.Format.values()), List.of(FrameCodec.Compression.values()),
+                    List.of(ScreenEncoding.values()), FrameCodec.MAX_DATA_LENGTH, WINDOW_SIZE, Runtime.getRuntime().availableProcessors(),
+                    List.of(Feature.values()));
+        }
+
+        /**
+         * @param lines lines of handshake payload
+         * @param from  index of first key=value line
+         * @return offer of peer, missing entries taken as what a pre-handshake peer supports
+         */
+        public static Offer decode(String[] lines, int from) {
+            final var values = parse(lines, from);
+            return new Offer(parseInt(values.get(KEY_VERSION), 0),
+                    parseList(values.get(KEY_FORMATS), FrameCodec.Format.class),
+                    parseList(values.get(KEY_COMPRESSIONS), FrameCodec.Compression.class),
+                    parseList(values.get(KEY_SCREEN_ENCODINGS), ScreenEncoding.class),
+                    parseInt(values.get(KEY_MAX_FRAME_SIZE), FrameCodec.MAX_DATA_LENGTH),
+                    parseInt(values.get(KEY_WINDOW_SIZE), Integer.MAX_VALUE),
+                    parseInt(values.get(KEY_CPU_CORES), 1),
+                    parseList(values.get(KEY_FEATURES), Feature.class));
+        }
+
+        /**
+         * @return key=value lines
+         */
+        public String encode() {
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put(KEY_VERSION, version);
+            values.put(KEY_FORMATS, join(frameFormats));
+            values.put(KEY_COMPRESSIONS, join(compressions));
+            values.put(KEY_SCREEN_ENCODINGS, join(screenEncodings));
+            values.put(KEY_MAX_FRAME_SIZE, maxFrameSize);
+            values.put(KEY_WINDOW_SIZE, windowSize);
+            values.put(KEY_CPU_CORES, cpuCores);
+            values.put(KEY_FEATURES, join(features));
+            return lines(values);
+        }
+    }
+
+    /**
+     * Settings both ends use for the rest of the connection.
+     *
+     * @param maxFrameSize largest frame data either end may send
+     * @param windowSize   bytes either end may send ahead of acknowledgements
+     */
+    public record Agreement(int version, FrameCodec.Format frameFormat, FrameCodec.Compression compression,
+                            ScreenEncoding screenEncoding, int maxFrameSize, int windowSize, List<Feature> features) {
+
+        /**
+         * settings of a peer which predates the handshake
+         */
+        public static final Agreement LEGACY = new Agreement(0, FrameCodec.Format.LEGACY, FrameCodec.Compression.NONE,
+                ScreenEncoding.RAW, FrameCodec.MAX_DATA_LENGTH, Integer.MAX_VALUE, List.of());
+
+        /**
+         * @param lines lines of handshake reply
+         * @param from  index of first key=value line
+         * @return agreement chosen by server, {@link #LEGACY} entries for anything missing
+         */
+        public static Agreement decode(String[] lines, int from) {
+            final var values = parse(lines, from);
+            return new Agreement(parseInt(values.get(KEY_VERSION), LEGACY.version()),
+                    parseValue(values.get(KEY_FORMAT), FrameCodec.Format.class, LEGACY.frameFormat()),
+                    parseValue(values.get(KEY_COMPRESSION), FrameCodec.Compression.class, LEGACY.compression()),
+                    parseValue(values.get(KEY_SCREEN_ENCODING), ScreenEncoding.class, LEGACY.screenEncoding()),
+                    parseInt(values.get(KEY_MAX_FRAME_SIZE), LEGACY.maxFrameSize()),
+                    parseInt(values.get(KEY_WINDOW_SIZE), LEGACY.windowSize()),
+                    parseList(values.get(KEY_FEATURES), Feature.class));
+        }
+
+        /**
+         * @param feature optional protocol feature
+         * @return true if both ends use feature
+         */
+        public boolean uses(Feature feature) {
+            return features.contains(feature);
+        }
+
+        /**
+         * @return key=value lines
+         */
+        public String encode() {
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put(KEY_VERSION, version);
+            values.put(KEY_FORMAT, frameFormat.name());
+            values.put(KEY_COMPRESSION, compression.name());
+            values.put(KEY_SCREEN_ENCODING, screenEncoding.name());
+            values.put(KEY_MAX_FRAME_SIZE, maxFrameSize);
+            values.put(KEY_WINDOW_SIZE, windowSize);
+            values.put(KEY_FEATURES, join(features));
+            return lines(values);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness and round-trip time of one connection, once {@link Handshake.Feature#HEARTBEAT} has been negotiated.
+ * <p>
+ * The server sends a {@link DescriptorCode#PING} every {@link #INTERVAL_MILLIS}, carrying its send time as big-endian long (8B); the client echoes the payload in a {@link DescriptorCode#PONG}.
+ * Every frame received counts as a sign of life, and a peer silent for {@link #TIMEOUT_MILLIS} is taken for dead, long before TCP would notice a half-open connection.
+ * <p>
+ * Round-trip samples are smoothed as TCP does (RFC 6298): SRTT += (R - SRTT) / 8 and RTTVAR += (|SRTT - R| - RTTVAR) / 4, the latter serving as jitter.
+ */
+public final class Heartbeat {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 2000L;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 6000L;
+    /**
+     * set with system property {@code rda.heartbeatIntervalMillis}
+     */
+    public static final long INTERVAL_MILLIS = Long.getLong("rda.heartbeatIntervalMillis", DEFAULT_INTERVAL_MILLIS);
+    /**
+     * set with system property {@code rda.heartbeatTimeoutMillis}
+     */
+    public static final long TIMEOUT_MILLIS = Long.getLong("rda.heartbeatTimeoutMillis", DEFAULT_TIMEOUT_MILLIS);
+    private static final int PING_LENGTH = 8;
+    private volatile long lastReceivedNanos = System.nanoTime();
+    private volatile long smoothedRttNanos = -1L;
+    private volatile long rttVariationNanos = 0L;
+
+    /**
+     * @return payload of a PING sent now
+     */
+    public static byte[] ping() {
+        final long now = System.nanoTime();
+        final byte[] payload = new byte[PING_LENGTH];
+        for (int i = 0; i < PING_LENGTH; i++)
+            payload[i] = (byte) (now >>> (56 - 8 * i));
+        return payload;
+    }
+
+    /**
+     * Called by the reading thread for every frame received.
+     */
+    public void received() {
+        lastReceivedNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a round-trip sample from a PONG; malformed payloads are ignored.
+     *
+     * @param stream PONG frame echoing a PING of {@link #ping()}
+     */
+    public void pong(ReadStream stream) {
+        if (stream.dataLength() != PING_LENGTH)
+            return;
+        long sentNanos = 0L;
+        for (int i = 0; i < PING_LENGTH; i++)
+            sentNanos = (sentNanos << 8) | (stream.dataBuffer()[i] & 0xFF);
+        final long sample = System.nanoTime() - sentNanos;
+        if (sample < 0L)
+            return;
+        synchronized (this) {
+            final long smoothed = smoothedRttNanos;
+            if (smoothed < 0L) {
+                smoothedRttNanos = sample;
+                rttVariationNanos = sample / 2;
+            } else {
+                rttVariationNanos += (Math.abs(smoothed - sample) - rttVariationNanos) / 4;
+                smoothedRttNanos = smoothed + (sample - smoothed) / 8;
+            }
+        }
+    }
+
+    /**
+     * @return true if nothing has been received for {@link #TIMEOUT_MILLIS}
+     */
+    public boolean isExpired() {
+        return System.nanoTime() - lastReceivedNanos > TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return smoothed round-trip time, -1 before the first PONG
+     */
+    public long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    /**
+     * @return mean deviation of round-trip time
+     */
+    public long getRttVariationNanos() {
+        return rttVariationNanos;
+    }
+
+    /**
+     * @param fallbackNanos value when no round trip has been measured yet
+     * @return SRTT + 4 RTTVAR, the time within which an answer is due, as TCP computes its retransmission timeout
+     */
+    public long getResponseTimeNanos(long fallbackNanos) {
+        final long smoothed = smoothedRttNanos;
+        return smoothed < 0L ? fallbackNanos : smoothed + 4 * rttVariationNanos;
+    }
+}
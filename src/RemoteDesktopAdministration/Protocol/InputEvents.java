@@ -0,0 +1,65 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input events of the screen viewer as fixed-width records, once {@link Handshake.Feature#INPUT_EVENTS} is agreed; a {@link DescriptorCode#SCREEN_INPUT_EVENT} frame carries a batch of them.
+ * <p>
+ * Record : Type (1B) + Code as big-endian short (2B) + X (2B) + Y (2B) + Timestamp as big-endian int (4B).
+ * Code is the ordinal of the JavaFX MouseButton or KeyCode of button and key events, and the scroll amount of scroll events; X and Y are the screen pixel of mouse moves.
+ */
+public final class InputEvents {
+
+    public static final int RECORD_LENGTH = 1 + 3 * Short.BYTES + Integer.BYTES;
+
+    private InputEvents() {
+    }
+
+    /**
+     * @return data of a SCREEN_INPUT_EVENT frame
+     */
+    public static byte[] encode(List<Event> events) {
+        final var buffer = ByteBuffer.allocate(events.size() * RECORD_LENGTH);
+        for (Event event : events)
+            buffer.put((byte) event.type().ordinal()).putShort((short) event.code()).putShort((short) event.x()).putShort((short) event.y()).putInt(event.timestamp());
+        return buffer.array();
+    }
+
+    /**
+     * @param data records, valid from index 0 to length
+     * @return events in the order sent
+     * @throws IllegalArgumentException if data is not a whole number of records or has an unknown type
+     */
+    public static List<Event> decode(byte[] data, int length) {
+        if (length % RECORD_LENGTH != 0)
+            throw new IllegalArgumentException("Input events of " + length + " bytes are not whole records");
+        final var buffer = ByteBuffer.wrap(data, 0, length);
+        final List<Event> events = new ArrayList<>(length / RECORD_LENGTH);
+        final Type[] types = Type.values();
+        while (buffer.hasRemaining()) {
+            final int type = Byte.toUnsignedInt(buffer.get());
+            if (type >= types.length)
+                throw new IllegalArgumentException("Unknown input event type " + type);
+            events.add(new Event(types[type], buffer.getShort(), buffer.getShort(), buffer.getShort(), buffer.getInt()));
+        }
+        return events;
+    }
+
+    /**
+     * Kinds of input events, named after their JavaFX event types.
+     */
+    public enum Type {
+        MOUSE_MOVED, MOUSE_PRESSED, MOUSE_RELEASED, SCROLL, KEY_PRESSED, KEY_RELEASED
+    }
+
+    /**
+     * @param code      ordinal of button or key, or scroll amount
+     * @param x         horizontal screen pixel of a mouse move
+     * @param y         vertical screen pixel of a mouse move
+     * @param timestamp milliseconds since the viewer started
+     */
+    public record Event(Type type, int code, int x, int y, int timestamp) {
+    }
+}
@@ -0,0 +1,455 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of outgoing frames of one connection, so that a slow or stalled peer only holds up its own frames.
+ * It is drained either by its own writer thread on a blocking socket ({@link #startWriter(GatheringByteChannel, long, ThreadFactory)}) or by an event loop polling it ({@link #pollTo(FrameWriter)}).
+ * <p>
+ * The bound is on queued data bytes. When a frame does not fit, its {@link OverflowPolicy} decides what happens; control frames always fit.
+ * <p>
+ * Frames are queued per {@link FrameCodec.Channel} and written by channel priority, in order within a channel.
+ * When the peer uses {@link Handshake.Feature#CHANNELS}, frames are written in fragments of at most {@link #FRAGMENT_LENGTH} bytes, so a control frame waits for at most one batch of fragments of a large frame rather than the whole of it.
+ * When it uses {@link Handshake.Feature#FLOW_CONTROL} too, data of every channel but {@link FrameCodec.Channel#CONTROL} is written only within the credit granted by the peer's {@link ReceiveWindow}; frames beyond it wait in the queue.
+ */
+public class OutboundQueue {
+
+    public static final int FRAGMENT_LENGTH = 32 * 1024;
+    private final long capacityBytes;
+    private final PolicyResolver policyResolver;
+    private final ChannelResolver channelResolver;
+    private final Map<FrameCodec.Channel, ChannelQueue> channels = new EnumMap<>(FrameCodec.Channel.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long queuedBytes = 0L;
+    private int queuedFrames = 0;
+    private boolean creditsGranted = false;
+    private long droppedFrames = 0L;
+    private boolean closed = false;
+    private IOException failure;
+    private volatile Handshake.Agreement agreement = Handshake.Agreement.LEGACY;
+    private volatile Runnable frameListener = () -> {
+    };
+
+    /**
+     * @param capacityBytes  data bytes that may be queued before overflow policy applies
+     * @param policyResolver  overflow policy of each frame
+     * @param channelResolver channel of each frame
+     */
+    public OutboundQueue(long capacityBytes, PolicyResolver policyResolver, ChannelResolver channelResolver) {
+        this.capacityBytes = capacityBytes;
+        this.policyResolver = Objects.requireNonNull(policyResolver);
+        this.channelResolver = Objects.requireNonNull(channelResolver);
+        for (FrameCodec.Channel channel : FrameCodec.Channel.values())
+            channels.put(channel, new ChannelQueue());
+    }
+
+    /**
+     * Drains the queue on a thread of its own, writing to a blocking channel.
+     * Frames queued together leave in one gathering write; once the queue runs empty the writer lingers up to coalesceWindowNanos for more frames to join the batch.
+     *
+     * @param channel             socket channel in blocking mode, written only by the writer thread
+     * @param coalesceWindowNanos longest time a frame may wait for others to join its batch, 0 to write as soon as the queue is empty
+     * @param threadFactory       factory of the writer thread
+     * @return started writer thread
+     */
+    public Thread startWriter(GatheringByteChannel channel, long coalesceWindowNanos, ThreadFactory threadFactory) {
+        final var frameWriter = new FrameWriter(Objects.requireNonNull(channel));
+        final Thread writer = threadFactory.newThread(() -> drainTo(frameWriter, coalesceWindowNanos));
+        writer.start();
+        return writer;
+    }
+
+    public Handshake.Agreement getAgreement() {
+        return agreement;
+    }
+
+    /**
+     * @param agreement settings negotiated with the peer, applied to frames queued from now on
+     */
+    public void setAgreement(Handshake.Agreement agreement) {
+        this.agreement = Objects.requireNonNull(agreement);
+        if (!agreement.uses(Handshake.Feature.FLOW_CONTROL))
+            return;
+        lock.lock();
+        try {
+            if (creditsGranted)
+                return;
+            creditsGranted = true;
+            channels.forEach((channel, channelQueue) -> channelQueue.credit = agreement.windowSize());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds credit handed back by the peer in a {@link DescriptorCode#WINDOW_UPDATE} frame.
+     *
+     * @param channel channel whose data the peer has consumed
+     * @param bytes   data bytes consumed
+     */
+    public void grantCredit(FrameCodec.Channel channel, long bytes) {
+        lock.lock();
+        try {
+            channels.get(channel).credit += bytes;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        frameListener.run();
+    }
+
+    /**
+     * @param channel channel of frames
+     * @return data bytes of channel that may be written before the peer grants more, {@link Long#MAX_VALUE} without flow control
+     */
+    public long getCredit(FrameCodec.Channel channel) {
+        lock.lock();
+        try {
+            return creditsGranted && channel != FrameCodec.Channel.CONTROL ? channels.get(channel).credit : Long.MAX_VALUE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param frameListener called, outside any lock, each time a frame has been queued; lets an event loop know there is something to write
+     */
+    public void setFrameListener(Runnable frameListener) {
+        this.frameListener = Objects.requireNonNull(frameListener);
+    }
+
+    /**
+     * Queues a frame. Only frames whose policy is {@link OverflowPolicy#BLOCK} may wait, and only while the queue is full.
+     *
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataBuffer     Actual Data in byteArray, must not be modified afterwards
+     * @return false if the queue is closed or the frame was dropped
+     */
+    public boolean offer(byte descriptorByte, byte[] dataBuffer) {
+        Objects.requireNonNull(dataBuffer);
+        final var agreement = this.agreement;
+        final var channel = channelResolver.channelOf(descriptorByte, dataBuffer);
+        return offer(new OutboundFrame(descriptorByte, dataBuffer, agreement, channel, policyResolver.policyOf(descriptorByte, dataBuffer), null));
+    }
+
+    /**
+     * Queues a frame shared with other queues; it is encoded by the calling thread unless a queue with the same agreement has done so already.
+     *
+     * @param sharedFrame frame queued to many connections
+     * @return false if the queue is closed or the frame was dropped
+     * @see #offer(byte, byte[])
+     */
+    public boolean offer(SharedFrame sharedFrame) {
+        final var agreement = this.agreement;
+        final byte descriptorByte = sharedFrame.descriptorByte();
+        final byte[] dataBuffer = sharedFrame.dataBuffer();
+        final var channel = channelResolver.channelOf(descriptorByte, dataBuffer);
+        return offer(new OutboundFrame(descriptorByte, dataBuffer, agreement, channel, policyResolver.policyOf(descriptorByte, dataBuffer), sharedFrame.packet(agreement, channel)));
+    }
+
+    private boolean offer(OutboundFrame frame) {
+        final var policy = frame.policy();
+        final byte[] dataBuffer = frame.dataBuffer();
+        final var channelQueue = channels.get(frame.channel());
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            switch (policy) {
+                case DROP_OLDEST -> dropOldest(channelQueue, frame);
+                case BLOCK -> {
+                    while (!closed && queuedFrames > 0 && queuedBytes + dataBuffer.length > capacityBytes)
+                        notFull.awaitUninterruptibly();
+                    if (closed)
+                        return false;
+                }
+                case NEVER_DROP -> {
+                }
+            }
+            channelQueue.frames.addLast(frame);
+            queuedBytes += dataBuffer.length;
+            queuedFrames++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        frameListener.run();
+        return true;
+    }
+
+    /**
+     * A frame whose first fragments have already been written is kept, the peer is waiting for the rest of it.
+     */
+    private void dropOldest(ChannelQueue channelQueue, OutboundFrame frame) {
+        final Iterator<OutboundFrame> iterator = channelQueue.frames.iterator();
+        boolean head = true;
+        while (queuedBytes + frame.dataBuffer().length > capacityBytes && iterator.hasNext()) {
+            final var queued = iterator.next();
+            final boolean started = head && channelQueue.writtenLength > 0;
+            head = false;
+            if (!started && queued.policy() == OverflowPolicy.DROP_OLDEST && queued.descriptorByte() == frame.descriptorByte()) {
+                iterator.remove();
+                queuedBytes -= queued.dataBuffer().length;
+                queuedFrames--;
+                droppedFrames++;
+            }
+        }
+    }
+
+    /**
+     * Moves as many queued frames as fit into frameWriter, for an event loop writing a non-blocking channel; never waits.
+     *
+     * @param frameWriter batch of the connection
+     * @return false if no frame was queued
+     */
+    public boolean pollTo(FrameWriter frameWriter) {
+        lock.lock();
+        try {
+            if (nextWritable() == null)
+                return false;
+            moveTo(frameWriter);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves queued frames, or fragments of them, into frameWriter until it is full or nothing more may be written, highest priority channel first.
+     * Caller must hold lock.
+     */
+    private void moveTo(FrameWriter frameWriter) {
+        ChannelQueue channelQueue;
+        while (!frameWriter.isFull() && (channelQueue = nextWritable()) != null) {
+            final var frame = channelQueue.frames.peekFirst();
+            final int offset = channelQueue.writtenLength;
+            final int length = channelQueue.nextLength();
+            final boolean last = offset + length == frame.dataBuffer().length;
+            if (frame.packet() != null)
+                frameWriter.add(frame.packet());
+            else
+                frameWriter.add(frame.agreement(), frame.channel(), frame.descriptorByte(), frame.dataBuffer(), offset, length, last);
+            queuedBytes -= length;
+            if (channelQueue.isFlowControlled())
+                channelQueue.credit -= length;
+            if (last) {
+                channelQueue.frames.pollFirst();
+                channelQueue.writtenLength = 0;
+                queuedFrames--;
+            } else {
+                channelQueue.writtenLength += length;
+            }
+        }
+        notFull.signalAll();
+    }
+
+    /**
+     * Caller must hold lock.
+     *
+     * @return queue of highest priority channel with a frame whose next fragment is within credit, null if there is none
+     */
+    private ChannelQueue nextWritable() {
+        for (ChannelQueue channelQueue : channels.values()) {
+            if (channelQueue.frames.isEmpty())
+                continue;
+            if (!channelQueue.isFlowControlled())
+                return channelQueue;
+            /* a fragment larger than the whole window goes once nothing of the channel is outstanding */
+            final var window = channelQueue.frames.peekFirst().agreement().windowSize();
+            if (channelQueue.credit >= Math.min(channelQueue.nextLength(), window))
+                return channelQueue;
+        }
+        return null;
+    }
+
+    private void drainTo(FrameWriter frameWriter, long coalesceWindowNanos) {
+        long writeDeadline = 0L;
+        while (true) {
+            final boolean writeNow;
+            lock.lock();
+            try {
+                while (!closed && nextWritable() == null) {
+                    if (frameWriter.isEmpty()) {
+                        notEmpty.awaitUninterruptibly();
+                        continue;
+                    }
+                    final long remaining = writeDeadline - System.nanoTime();
+                    if (remaining <= 0L)
+                        break;
+                    try {
+                        notEmpty.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                /* once closed, frames still waiting for credit are dropped: peer is no longer reading */
+                if (nextWritable() == null && frameWriter.isEmpty())
+                    return;
+                if (frameWriter.isEmpty())
+                    writeDeadline = System.nanoTime() + coalesceWindowNanos;
+                moveTo(frameWriter);
+                writeNow = frameWriter.isFull() || closed || writeDeadline - System.nanoTime() <= 0L;
+            } finally {
+                lock.unlock();
+            }
+            if (!writeNow)
+                continue;
+            try {
+                frameWriter.writeFully();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the queue failed after a write error; queued frames are discarded and waiting callers released.
+     *
+     * @param e write error
+     */
+    public void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            closed = true;
+            channels.values().forEach(ChannelQueue::clear);
+            queuedBytes = 0L;
+            queuedFrames = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting frames; frames already queued are still handed to the writer thread or event loop.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return exception which stopped the writer thread, null if it has not failed
+     */
+    public IOException getFailure() {
+        lock.lock();
+        try {
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * What to do with a frame that does not fit into the queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * older queued frames of same descriptor are dropped to make room, as a newer frame supersedes them
+         */
+        DROP_OLDEST,
+        /**
+         * caller waits until writer thread has made room
+         */
+        BLOCK,
+        /**
+         * frame is queued beyond capacity
+         */
+        NEVER_DROP
+    }
+
+    @FunctionalInterface
+    public interface PolicyResolver {
+        OverflowPolicy policyOf(byte descriptorByte, byte[] dataBuffer);
+    }
+
+    @FunctionalInterface
+    public interface ChannelResolver {
+        FrameCodec.Channel channelOf(byte descriptorByte, byte[] dataBuffer);
+    }
+
+    /**
+     * @param packet whole frame encoded by a {@link SharedFrame}, null if frame is encoded by the writer
+     */
+    public record OutboundFrame(byte descriptorByte, byte[] dataBuffer, Handshake.Agreement agreement,
+                                FrameCodec.Channel channel, OverflowPolicy policy, byte[] packet) {
+    }
+
+    /**
+     * Frames of one channel; writtenLength bytes of the first one have already been moved to the writer.
+     */
+    private static final class ChannelQueue {
+
+        private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<>();
+        private int writtenLength = 0;
+        private long credit = 0L;
+
+        /**
+         * @return length of next fragment of first frame
+         */
+        private int nextLength() {
+            final var frame = frames.peekFirst();
+            final int remaining = frame.dataBuffer().length - writtenLength;
+            return frame.agreement().uses(Handshake.Feature.CHANNELS) ? Math.min(remaining, FRAGMENT_LENGTH) : remaining;
+        }
+
+        /**
+         * @return true if first frame may only be written within credit
+         */
+        private boolean isFlowControlled() {
+            final var frame = frames.peekFirst();
+            return frame.channel() != FrameCodec.Channel.CONTROL && frame.agreement().uses(Handshake.Feature.FLOW_CONTROL);
+        }
+
+        private void clear() {
+            frames.clear();
+            writtenLength = 0;
+        }
+    }
+}
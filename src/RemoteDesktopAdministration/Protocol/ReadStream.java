@@ -0,0 +1,38 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame as read from a connection. Its data may sit in a pooled buffer which is longer than the data and is reused once the frame has been handled,
+ * so handlers must not keep dataBuffer beyond their own call.
+ *
+ * @param descriptorByte headerByte [One among DescriptorCode class]
+ * @param dataBuffer     Actual Data in byteArray, valid from index 0 to dataLength
+ * @param dataLength     length of Actual Data
+ * @param pooled         whether dataBuffer was leased from {@link BufferPool#SHARED}
+ */
+public record ReadStream(byte descriptorByte, byte[] dataBuffer, int dataLength, boolean pooled) {
+
+    /**
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataBuffer     Actual Data in byteArray, owned by the frame
+     */
+    public ReadStream(byte descriptorByte, byte[] dataBuffer) {
+        this(descriptorByte, dataBuffer, dataBuffer.length, false);
+    }
+
+    /**
+     * @return Actual Data decoded as UTF-8
+     */
+    public String dataString() {
+        return new String(dataBuffer, 0, dataLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a pooled dataBuffer for reuse; called by the reading loop once the frame has been handled.
+     */
+    public void release() {
+        if (pooled)
+            BufferPool.SHARED.release(dataBuffer);
+    }
+}
@@ -0,0 +1,83 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Receiving end of credit-based flow control, once {@link Handshake.Feature#FLOW_CONTROL} has been negotiated.
+ * <p>
+ * The peer starts with a credit of {@link Handshake.Agreement#windowSize()} data bytes per channel and spends it on every frame it writes, see {@link OutboundQueue}.
+ * {@link FrameReader} and {@link FrameDecoder} report data bytes here once handled, and they are handed back to the peer in a {@link DescriptorCode#WINDOW_UPDATE} frame
+ * as soon as a quarter of the window has accumulated: a receiver which falls behind stops granting credit and the peer stops writing, so neither end buffers more than a window per channel.
+ * <p>
+ * Payload of WINDOW_UPDATE : Channel ordinal (1B) + Credit as big-endian int (4B). {@link FrameCodec.Channel#CONTROL} is never flow-controlled.
+ */
+public final class ReceiveWindow {
+
+    private static final Logger WINDOW_LOGGER = Logger.getLogger(ReceiveWindow.class.getName());
+    private static final int CHANNEL_COUNT = FrameCodec.Channel.values().length;
+    private static final int UPDATE_FRACTION = 4;
+    private static final int UPDATE_LENGTH = 5;
+    private final OutboundQueue outboundQueue;
+    private final AtomicLongArray pendingBytes = new AtomicLongArray(CHANNEL_COUNT);
+    private final AtomicLongArray grantedBytes = new AtomicLongArray(CHANNEL_COUNT);
+
+    /**
+     * @param outboundQueue queue to the peer, carrying WINDOW_UPDATE frames; its agreement tells whether flow control is on
+     */
+    public ReceiveWindow(OutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    /**
+     * Hands credit of a WINDOW_UPDATE frame received from the peer to the queue writing to it.
+     *
+     * @param stream        WINDOW_UPDATE frame
+     * @param outboundQueue queue to the peer
+     */
+    public static void grant(ReadStream stream, OutboundQueue outboundQueue) {
+        final byte[] data = stream.dataBuffer();
+        final var channels = FrameCodec.Channel.values();
+        if (stream.dataLength() != UPDATE_LENGTH || data[0] < 0 || data[0] >= channels.length) {
+            WINDOW_LOGGER.warning("Malformed " + DescriptorCode.nameOf(stream.descriptorByte()) + " frame ignored.");
+            return;
+        }
+        outboundQueue.grantCredit(channels[data[0]], FrameCodec.binaryDataLength(data, 1));
+    }
+
+    /**
+     * Called by the reading thread of the connection once data no longer takes room: the frame has been handled, or a fragment has been gathered into its frame.
+     *
+     * @param flags      Flags Byte of the frame
+     * @param dataLength data bytes, as inflated
+     */
+    void handled(byte flags, int dataLength) {
+        final var agreement = outboundQueue.getAgreement();
+        final int channel = FrameCodec.channelIndex(flags);
+        if (dataLength == 0 || channel == FrameCodec.Channel.CONTROL.ordinal() || !agreement.uses(Handshake.Feature.FLOW_CONTROL))
+            return;
+        final long pending = pendingBytes.addAndGet(channel, dataLength);
+        if (pending < agreement.windowSize() / UPDATE_FRACTION)
+            return;
+        pendingBytes.addAndGet(channel, -pending);
+        grantedBytes.addAndGet(channel, pending);
+        final int credit = (int) Math.min(pending, Integer.MAX_VALUE);
+        outboundQueue.offer(DescriptorCode.WINDOW_UPDATE, new byte[]{(byte) channel, (byte) (credit >>> 24), (byte) (credit >>> 16), (byte) (credit >>> 8), (byte) credit});
+    }
+
+    /**
+     * @param channel channel of frames
+     * @return data bytes handled but not yet handed back to the peer
+     */
+    public long getPendingBytes(FrameCodec.Channel channel) {
+        return pendingBytes.get(channel.ordinal());
+    }
+
+    /**
+     * @param channel channel of frames
+     * @return data bytes handed back to the peer since the connection was set up
+     */
+    public long getGrantedBytes(FrameCodec.Channel channel) {
+        return grantedBytes.get(channel.ordinal());
+    }
+}
@@ -0,0 +1,60 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Frame of an agent carried over a relay's connection to the server, in the data of a {@link DescriptorCode#RELAY_FRAME}, {@link DescriptorCode#RELAY_CACHE_FILL}
+ * or {@link DescriptorCode#RELAY_CACHE_HIT} frame: Agent id as big-endian int (4B) + Descriptor Byte (1B) + Data, or SHA-256 of data for a cache hit.
+ * {@link DescriptorCode#RELAY_OPEN} and {@link DescriptorCode#RELAY_CLOSE} start with the agent id too.
+ *
+ * @param agentId        id relay gave the agent's connection
+ * @param descriptorByte headerByte of the agent's frame
+ * @param dataBuffer     data of the agent's frame
+ */
+public record RelayFrame(int agentId, byte descriptorByte, byte[] dataBuffer) {
+
+    private static final int HEADER_LENGTH = Integer.BYTES + 1;
+
+    /**
+     * @param stream RELAY_FRAME, RELAY_CACHE_FILL or RELAY_CACHE_HIT frame
+     */
+    public static RelayFrame decode(ReadStream stream) {
+        final var buffer = ByteBuffer.wrap(stream.dataBuffer(), 0, stream.dataLength());
+        return new RelayFrame(buffer.getInt(), buffer.get(), Arrays.copyOfRange(stream.dataBuffer(), HEADER_LENGTH, stream.dataLength()));
+    }
+
+    /**
+     * @param stream any relay frame
+     * @return agent id the frame starts with
+     */
+    public static int agentIdOf(ReadStream stream) {
+        return ByteBuffer.wrap(stream.dataBuffer(), 0, stream.dataLength()).getInt();
+    }
+
+    /**
+     * @param data data of a RELAY_FRAME, RELAY_CACHE_FILL or RELAY_CACHE_HIT frame
+     * @return descriptor of the agent's frame it wraps
+     */
+    public static byte descriptorOf(byte[] data) {
+        return data[HEADER_LENGTH - 1];
+    }
+
+    /**
+     * @return data of RELAY_OPEN or RELAY_CLOSE frame
+     */
+    public static byte[] encode(int agentId, byte[] data) {
+        return ByteBuffer.allocate(Integer.BYTES + data.length).putInt(agentId).put(data).array();
+    }
+
+    public byte[] encode() {
+        return ByteBuffer.allocate(HEADER_LENGTH + dataBuffer.length).putInt(agentId).put(descriptorByte).put(dataBuffer).array();
+    }
+
+    /**
+     * @return frame as the agent reads it
+     */
+    public ReadStream toReadStream() {
+        return new ReadStream(descriptorByte, dataBuffer);
+    }
+}
@@ -0,0 +1,175 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Screen frames as changed tiles, once {@link Handshake.ScreenEncoding#TILES} is agreed: the screen is cut into {@link #TILE_SIZE} square tiles, tiles at the right and bottom
+ * edges cut short, and a frame carries only the tiles whose 64-bit hash differs from the previous frame's, so a blinking cursor costs one tile instead of the whole screen.
+ * <p>
+ * Payload : Tile size as big-endian short (2B) + Tile count as big-endian int (4B) + per tile, Column (2B) + Row (2B) + BGRA pixels of the tile row by row.
+ * A frame without tiles means nothing changed; the first frame carries every tile.
+ * <p>
+ * {@link #changedTiles} keeps the hashes of the previous frame and must be called for every frame in order; {@link #encode(byte[], BitSet)} keeps no state and may run on another thread.
+ */
+public final class ScreenTiles {
+
+    public static final int TILE_SIZE = 64;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int HEADER_LENGTH = Short.BYTES + Integer.BYTES;
+    private static final int TILE_HEADER_LENGTH = 2 * Short.BYTES;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private long[] hashes;
+    private long[] previousHashes;
+    private boolean first = true;
+
+    /**
+     * @param width  screen width in pixels
+     * @param height screen height in pixels
+     */
+    public ScreenTiles(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.hashes = new long[columns * rows];
+        this.previousHashes = new long[columns * rows];
+    }
+
+    /**
+     * @param frame BGRA pixels of the whole screen, row by row
+     * @return payload of tiles changed since the previous frame
+     */
+    public byte[] encode(byte[] frame) {
+        return encode(frame, changedTiles(frame));
+    }
+
+    /**
+     * @param frame BGRA pixels of the whole screen, row by row
+     * @return indexes of tiles changed since the previous frame, row by row
+     */
+    public BitSet changedTiles(byte[] frame) {
+        hash(frame);
+        final var changed = new BitSet(hashes.length);
+        for (int tile = 0; tile < hashes.length; tile++)
+            if (first || hashes[tile] != previousHashes[tile])
+                changed.set(tile);
+        final long[] swapped = previousHashes;
+        previousHashes = hashes;
+        hashes = swapped;
+        first = false;
+        return changed;
+    }
+
+    /**
+     * @param frame   BGRA pixels of the whole screen, row by row
+     * @param changed indexes of tiles to send, from {@link #changedTiles}
+     * @return payload of tiles changed
+     */
+    public byte[] encode(byte[] frame, BitSet changed) {
+        int length = HEADER_LENGTH;
+        for (int tile = changed.nextSetBit(0); tile >= 0; tile = changed.nextSetBit(tile + 1))
+            length += TILE_HEADER_LENGTH + tileWidth(tile % columns) * tileHeight(tile / columns) * BYTES_PER_PIXEL;
+        final var payload = ByteBuffer.allocate(length).putShort((short) TILE_SIZE).putInt(changed.cardinality());
+        for (int tile = changed.nextSetBit(0); tile >= 0; tile = changed.nextSetBit(tile + 1)) {
+            final int column = tile % columns;
+            final int row = tile / columns;
+            final int rowLength = tileWidth(column) * BYTES_PER_PIXEL;
+            payload.putShort((short) column).putShort((short) row);
+            for (int y = row * TILE_SIZE, end = y + tileHeight(row); y < end; y++)
+                payload.put(frame, (y * width + column * TILE_SIZE) * BYTES_PER_PIXEL, rowLength);
+        }
+        return payload.array();
+    }
+
+    /**
+     * Writes tiles of payload into frame.
+     *
+     * @param payload BGRA tiles, valid from index 0 to length
+     * @param frame   BGRA pixels of the whole screen, width by height, updated in place
+     * @return smallest region holding every tile written, null if payload has no tiles
+     * @throws IllegalArgumentException if payload is malformed or has tiles outside the screen
+     */
+    public static Region decode(byte[] payload, int length, int width, int height, byte[] frame) {
+        final var buffer = ByteBuffer.wrap(payload, 0, length);
+        if (buffer.remaining() < HEADER_LENGTH)
+            throw new IllegalArgumentException("Tile frame shorter than its header");
+        final int tileSize = Short.toUnsignedInt(buffer.getShort());
+        final int count = buffer.getInt();
+        if (tileSize == 0 || count < 0)
+            throw new IllegalArgumentException("Malformed tile frame header");
+        Region region = null;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < TILE_HEADER_LENGTH)
+                throw new IllegalArgumentException("Tile frame truncated");
+            final int x = Short.toUnsignedInt(buffer.getShort()) * tileSize;
+            final int y = Short.toUnsignedInt(buffer.getShort()) * tileSize;
+            if (x >= width || y >= height)
+                throw new IllegalArgumentException("Tile outside screen at " + x + "," + y);
+            final int tileWidth = Math.min(tileSize, width - x);
+            final int tileHeight = Math.min(tileSize, height - y);
+            final int rowLength = tileWidth * BYTES_PER_PIXEL;
+            if (buffer.remaining() < rowLength * tileHeight)
+                throw new IllegalArgumentException("Tile frame truncated");
+            for (int row = y; row < y + tileHeight; row++)
+                buffer.get(frame, (row * width + x) * BYTES_PER_PIXEL, rowLength);
+            final var tile = new Region(x, y, tileWidth, tileHeight);
+            region = region == null ? tile : region.union(tile);
+        }
+        return region;
+    }
+
+    /**
+     * Hashes every tile in one pass over the frame, row by row.
+     */
+    private void hash(byte[] frame) {
+        Arrays.fill(hashes, 0L);
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width * BYTES_PER_PIXEL;
+            final int tileRow = (y / TILE_SIZE) * columns;
+            for (int column = 0; column < columns; column++) {
+                long hash = hashes[tileRow + column];
+                int index = rowStart + column * TILE_SIZE * BYTES_PER_PIXEL;
+                final int end = index + tileWidth(column) * BYTES_PER_PIXEL;
+                for (; index + Long.BYTES <= end; index += Long.BYTES)
+                    hash = (hash ^ (long) LONGS.get(frame, index)) * HASH_MULTIPLIER;
+                if (index < end)
+                    hash = (hash ^ (int) INTS.get(frame, index)) * HASH_MULTIPLIER;
+                hashes[tileRow + column] = Long.rotateLeft(hash, 31);
+            }
+        }
+    }
+
+    private int tileWidth(int column) {
+        return Math.min(TILE_SIZE, width - column * TILE_SIZE);
+    }
+
+    private int tileHeight(int row) {
+        return Math.min(TILE_SIZE, height - row * TILE_SIZE);
+    }
+
+    /**
+     * Rectangle of the screen in pixels.
+     */
+    public record Region(int x, int y, int width, int height) {
+
+        /**
+         * @return smallest region holding both
+         */
+        public Region union(Region other) {
+            final int left = Math.min(x, other.x);
+            final int top = Math.min(y, other.y);
+            return new Region(left, top, Math.max(x + width, other.x + other.width) - left, Math.max(y + height, other.y + other.height) - top);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Frame queued to many connections at once. It is encoded, header and compressed data alike, once per distinct {@link Handshake.Agreement} of its targets,
+ * and every {@link OutboundQueue} writes the same immutable packet; usually all clients negotiate alike and the frame is encoded exactly once.
+ * <p>
+ * Data too large to leave in one piece on a connection using {@link Handshake.Feature#CHANNELS} is not pre-encoded, it is fragmented per connection as any other frame.
+ */
+public final class SharedFrame {
+
+    private final byte descriptorByte;
+    private final byte[] dataBuffer;
+    private final Map<Handshake.Agreement, byte[]> packets = new ConcurrentHashMap<>();
+
+    /**
+     * @param descriptorByte headerByte [One among DescriptorCode class]
+     * @param dataBuffer     Actual Data in byteArray, must not be modified afterwards
+     */
+    public SharedFrame(byte descriptorByte, byte[] dataBuffer) {
+        this.descriptorByte = descriptorByte;
+        this.dataBuffer = dataBuffer;
+    }
+
+    public byte descriptorByte() {
+        return descriptorByte;
+    }
+
+    public byte[] dataBuffer() {
+        return dataBuffer;
+    }
+
+    /**
+     * @param agreement settings of the target connection
+     * @param channel   channel the target connection sends the frame on
+     * @return whole frame as written to the connection, null if the frame has to be fragmented
+     */
+    byte[] packet(Handshake.Agreement agreement, FrameCodec.Channel channel) {
+        if (agreement.uses(Handshake.Feature.CHANNELS) && dataBuffer.length > OutboundQueue.FRAGMENT_LENGTH)
+            return null;
+        return packets.computeIfAbsent(agreement, key -> encode(key, channel));
+    }
+
+    private byte[] encode(Handshake.Agreement agreement, FrameCodec.Channel channel) {
+        final var format = agreement.frameFormat();
+        byte flags = agreement.uses(Handshake.Feature.CHANNELS) ? FrameCodec.channelFlags(channel) : 0;
+        byte[] data = dataBuffer;
+        int dataLength = dataBuffer.length;
+        if (format == FrameCodec.Format.BINARY && agreement.compression() == FrameCodec.Compression.DEFLATE && dataLength >= FrameCompressor.MIN_COMPRESSED_LENGTH) {
+            final var compressor = new FrameCompressor();
+            final byte[] compressed = new byte[dataLength];
+            final int compressedLength = compressor.compress(descriptorByte, dataBuffer, 0, dataLength, compressed);
+            compressor.end();
+            if (compressedLength >= 0) {
+                flags |= FrameCodec.FLAG_DEFLATE;
+                data = compressed;
+                dataLength = compressedLength;
+            }
+        }
+        final byte[] packet = new byte[FrameCodec.encodedLength(format, dataLength)];
+        final int headerLength = FrameCodec.encodeHeader(format, descriptorByte, flags, dataLength, packet, 0);
+        System.arraycopy(data, 0, packet, headerLength, dataLength);
+        return packet;
+    }
+}
@@ -0,0 +1,89 @@
+package RemoteDesktopAdministration.Protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Kind of threads running per-connection blocking loops (client handlers, socket writers, server listener), selected with system property {@code rda.threads}.
+ * <p>
+ * {@link #VIRTUAL} needs a runtime providing virtual threads; the project compiles against JDK 16, so they are looked up reflectively and {@link #PLATFORM} threads are used where they are missing.
+ * Code running on these threads must not wait inside {@code synchronized}, which would pin a virtual thread to its carrier; use {@link java.util.concurrent.locks.ReentrantLock} instead.
+ */
+public enum ThreadMode {
+    PLATFORM, VIRTUAL;
+
+    /**
+     * declared ahead of CONFIGURED, which logs while initialized
+     */
+    private static final Logger THREAD_MODE_LOGGER = Logger.getLogger(ThreadMode.class.getName());
+    public static final ThreadMode CONFIGURED = configured(ThreadMode.valueOf(System.getProperty("rda.threads", PLATFORM.name()).toUpperCase()));
+
+    private static ThreadMode configured(ThreadMode requested) {
+        if (requested == VIRTUAL && virtualThreadFactory("") == null) {
+            THREAD_MODE_LOGGER.warning("Virtual threads are not available on this runtime, platform threads are used instead.");
+            return PLATFORM;
+        }
+        return requested;
+    }
+
+    /**
+     * @param namePrefix prefix of thread names, followed by a counter
+     * @return factory of daemon platform threads or of virtual threads
+     */
+    public ThreadFactory threadFactory(String namePrefix) {
+        if (this == VIRTUAL) {
+            final ThreadFactory virtualThreadFactory = virtualThreadFactory(namePrefix);
+            if (virtualThreadFactory != null)
+                return virtualThreadFactory;
+        }
+        final var threadCount = new AtomicLong();
+        return runnable -> {
+            final var thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param namePrefix prefix of thread names, followed by a counter
+     * @return executor starting one thread per task; idle platform threads are reused
+     */
+    public ExecutorService newPerTaskExecutor(String namePrefix) {
+        final var threadFactory = threadFactory(namePrefix);
+        if (this == VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+            }
+        }
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * @param name     thread name
+     * @param runnable body of thread
+     * @return started thread
+     */
+    public Thread start(String name, Runnable runnable) {
+        final var thread = threadFactory(name).newThread(runnable);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method name = builderClass.getMethod("name", String.class, long.class);
+            final Method factory = builderClass.getMethod("factory");
+            final Object builder = name.invoke(Thread.class.getMethod("ofVirtual").invoke(null), namePrefix, 1L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package RemoteDesktopAdministration.Relay;
+
+import RemoteDesktopAdministration.Client.MainClient;
+import RemoteDesktopAdministration.Protocol.ChunkCache;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ReceiveWindow;
+import RemoteDesktopAdministration.Protocol.RelayFrame;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+import RemoteDesktopAdministration.Server.MainServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless gateway for agents on a network segment that cannot reach the server: agents connect to the relay as they would to the server,
+ * and the relay carries all of them over one connection to the server, where each one is a client of its own.
+ * <p>
+ * The relay ends the agents' connections frame by frame: it reads and writes their frames in the format each agent negotiated with the server, learnt from the CLIENT_ONLINE reply,
+ * and runs flow control with them itself. Towards the server it sends a {@link DescriptorCode#RELAY_ATTACH} frame carrying its handshake offer, then every agent frame wrapped in a {@link RelayFrame};
+ * the server answers with the agreement the link runs, and wrapped frames take the channel of the frame they wrap.
+ * File chunks the server sends are kept in a {@link ChunkCache}; the server sends a chunk the relay already has as its digest, so a file sent to every agent behind the relay
+ * crosses the long-distance link once.
+ * <p>
+ * Once the server connection is lost, every agent connection is closed and agents reconnect and resume their sessions when the relay is connected again.
+ * Configured with system properties {@code rda.relayServer} (required), {@code rda.relayServerPort}, {@code rda.relayPort} and {@code rda.relayCacheBytes}.
+ */
+public final class Relay {
+
+    public static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_RECONNECT_MILLIS = 2000L;
+    private static final Logger RELAY_LOGGER = Logger.getLogger(Relay.class.getName());
+    private static final long OUTBOUND_QUEUE_CAPACITY = Long.getLong("rda.outboundQueueCapacity", MainServer.DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+    private static final long COALESCE_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("rda.coalesceWindowMicros", MainServer.DEFAULT_COALESCE_WINDOW_MICROS));
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private final InetSocketAddress serverAddress;
+    private final int port;
+    private final long cacheBytes;
+    private final Map<Integer, Agent> agents = new ConcurrentHashMap<>();
+    private final AtomicInteger lastAgentId = new AtomicInteger();
+    private volatile OutboundQueue upstream = null;
+    /**
+     * touched by the thread reading the server connection only, in the order the server sends
+     */
+    private ChunkCache chunkCache;
+
+    /**
+     * @param serverAddress address of server
+     * @param port          port agents connect to
+     * @param cacheBytes    data bytes of file chunks cached
+     */
+    public Relay(InetSocketAddress serverAddress, int port, long cacheBytes) {
+        this.serverAddress = serverAddress;
+        this.port = port;
+        this.cacheBytes = cacheBytes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final String server = System.getProperty("rda.relayServer");
+        if (server == null)
+            throw new IllegalArgumentException("Address of server is required, set with system property rda.relayServer");
+        final var serverAddress = new InetSocketAddress(server, Integer.getInteger("rda.relayServerPort", MainServer.DEFAULT_PORT));
+        new Relay(serverAddress, Integer.getInteger("rda.relayPort", MainServer.DEFAULT_PORT), Long.getLong("rda.relayCacheBytes", DEFAULT_CACHE_BYTES)).run();
+    }
+
+    /**
+     * Accepts agents until the relay's socket fails; the server connection is kept on a thread of its own.
+     */
+    public void run() throws IOException {
+        try (ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket()) {
+            ThreadMode.PLATFORM.start("Relay-Upstream", this::keepUpstream);
+            RELAY_LOGGER.info("Relay listening for agents at port " + port + ", server at " + serverAddress);
+            while (true)
+                acceptAgent(serverSocket.accept());
+        }
+    }
+
+    private void keepUpstream() {
+        while (true) {
+            try (var channel = SocketChannel.open()) {
+                channel.socket().connect(serverAddress, CONNECT_TIMEOUT_MILLIS);
+                final var outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, Relay::overflowPolicyOf, Relay::channelOf);
+                outboundQueue.startWriter(channel, COALESCE_WINDOW_NANOS, ThreadMode.PLATFORM.threadFactory("Relay-Upstream-Writer-"));
+                outboundQueue.offer(DescriptorCode.RELAY_ATTACH, (cacheBytes + "\n" + Handshake.Offer.local().encode()).getBytes(StandardCharsets.UTF_8));
+                chunkCache = new ChunkCache(cacheBytes, false);
+                upstream = outboundQueue;
+                RELAY_LOGGER.info("Relay connected to server at " + serverAddress);
+                final var frameReader = new FrameReader(channel.socket().getInputStream());
+                frameReader.setReceiveWindow(new ReceiveWindow(outboundQueue));
+                listenUpstream(frameReader, outboundQueue);
+                upstream = null;
+                outboundQueue.close();
+            } catch (IOException e) {
+                RELAY_LOGGER.log(Level.WARNING, "Server at " + serverAddress + " unreachable due to : " + e.getMessage());
+            }
+            agents.values().forEach(Agent::close);
+            try {
+                Thread.sleep(DEFAULT_RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Agent frames leave on the channel they would take from the agent itself, so that one agent's screen frames and file acknowledgements do not hold back
+     * control frames and input of the others; none of them is dropped, as they all share the outer descriptor.
+     *
+     * @return overflow policy of a frame to server
+     */
+    private static OutboundQueue.OverflowPolicy overflowPolicyOf(byte descriptor, byte[] data) {
+        return channelOf(descriptor, data) == FrameCodec.Channel.CONTROL ? OutboundQueue.OverflowPolicy.NEVER_DROP : OutboundQueue.OverflowPolicy.BLOCK;
+    }
+
+    /**
+     * @return channel of a frame to server
+     */
+    private static FrameCodec.Channel channelOf(byte descriptor, byte[] data) {
+        return descriptor == DescriptorCode.RELAY_FRAME ? MainClient.channelOf(RelayFrame.descriptorOf(data), data) : FrameCodec.Channel.CONTROL;
+    }
+
+    private void listenUpstream(FrameReader frameReader, OutboundQueue outboundQueue) {
+        while (true) {
+            final var stream = frameReader.readStream();
+            switch (stream.descriptorByte()) {
+                case DescriptorCode.RELAY_ATTACH -> {
+                    final var agreement = Handshake.Agreement.decode(stream.dataString().split("\n"), 0);
+                    outboundQueue.setAgreement(agreement);
+                    RELAY_LOGGER.fine("Relay negotiated " + agreement + " with server.");
+                }
+                case DescriptorCode.WINDOW_UPDATE -> ReceiveWindow.grant(stream, outboundQueue);
+                case DescriptorCode.RELAY_FRAME -> deliver(RelayFrame.decode(stream));
+                case DescriptorCode.RELAY_CACHE_FILL -> {
+                    final var frame = RelayFrame.decode(stream);
+                    chunkCache.put(ChunkCache.digest(frame.dataBuffer()), frame.dataBuffer());
+                    deliver(frame);
+                }
+                case DescriptorCode.RELAY_CACHE_HIT -> cacheHit(RelayFrame.decode(stream));
+                case DescriptorCode.RELAY_CLOSE -> {
+                    final var agent = agents.get(RelayFrame.agentIdOf(stream));
+                    if (agent != null)
+                        agent.close();
+                }
+                case DescriptorCode.CONNECTION_LOST -> {
+                    RELAY_LOGGER.warning("Server connection lost, closing " + agents.size() + " agent connections.");
+                    return;
+                }
+                default -> RELAY_LOGGER.finest("Message Type ignored from server :" + DescriptorCode.nameOf(stream.descriptorByte()));
+            }
+            stream.release();
+        }
+    }
+
+    /**
+     * Cache is looked up even if the agent has gone, it must stay alike to the server's mirror.
+     */
+    private void cacheHit(RelayFrame frame) {
+        final byte[] data = chunkCache.get(frame.dataBuffer());
+        if (data != null) {
+            deliver(new RelayFrame(frame.agentId(), frame.descriptorByte(), data));
+            return;
+        }
+        /* cannot happen while both caches stay alike; agent reconnects and resumes the file */
+        RELAY_LOGGER.severe("Chunk missing from relay cache, closing agent " + frame.agentId());
+        final var agent = agents.get(frame.agentId());
+        if (agent != null)
+            agent.close();
+    }
+
+    private void deliver(RelayFrame frame) {
+        final var agent = agents.get(frame.agentId());
+        if (agent != null)
+            agent.send(frame.descriptorByte(), frame.dataBuffer());
+    }
+
+    private void acceptAgent(Socket socket) {
+        final var outboundQueue = upstream;
+        try {
+            if (outboundQueue == null) {
+                socket.close();
+                return;
+            }
+            final var agent = new Agent(lastAgentId.incrementAndGet(), socket, outboundQueue);
+            agents.put(agent.id, agent);
+            outboundQueue.offer(DescriptorCode.RELAY_OPEN, RelayFrame.encode(agent.id, String.valueOf(socket.getRemoteSocketAddress()).getBytes(StandardCharsets.UTF_8)));
+            ThreadMode.CONFIGURED.start("Relay-Agent-" + agent.id, agent::listen);
+        } catch (IOException e) {
+            RELAY_LOGGER.log(Level.WARNING, "Agent connection failed due to : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Connection of an agent, written by its own writer thread with the queuing rules of the server.
+     */
+    private final class Agent {
+
+        private final int id;
+        private final Socket socket;
+        private final FrameReader frameReader;
+        private final OutboundQueue outboundQueue;
+        private final OutboundQueue upstream;
+
+        private Agent(int id, Socket socket, OutboundQueue upstream) throws IOException {
+            this.id = id;
+            this.socket = socket;
+            this.upstream = upstream;
+            this.frameReader = new FrameReader(socket.getInputStream());
+            this.outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, MainServer::overflowPolicyOf, MainServer::channelOf);
+            frameReader.setReceiveWindow(new ReceiveWindow(outboundQueue));
+            outboundQueue.startWriter(socket.getChannel(), COALESCE_WINDOW_NANOS, ThreadMode.CONFIGURED.threadFactory("Relay-Agent-Writer-"));
+        }
+
+        private void listen() {
+            while (!socket.isClosed()) {
+                final var stream = frameReader.readStream();
+                switch (stream.descriptorByte()) {
+                    case DescriptorCode.WINDOW_UPDATE -> ReceiveWindow.grant(stream, outboundQueue);
+                    case DescriptorCode.CONNECTION_LOST -> close();
+                    default -> upstream.offer(DescriptorCode.RELAY_FRAME, new RelayFrame(id, stream.descriptorByte(), Arrays.copyOf(stream.dataBuffer(), stream.dataLength())).encode());
+                }
+                stream.release();
+            }
+        }
+
+        /**
+         * Queues a frame of the server to agent; the reply to CLIENT_ONLINE leaves in the format agent spoke in, later frames in the one negotiated.
+         */
+        private void send(byte descriptor, byte[] data) {
+            outboundQueue.offer(descriptor, data);
+            if (descriptor == DescriptorCode.CLIENT_ONLINE)
+                outboundQueue.setAgreement(Handshake.Agreement.decode(new ReadStream(descriptor, data).dataString().split("\n"), 1));
+        }
+
+        private void close() {
+            if (agents.remove(id, this))
+                upstream.offer(DescriptorCode.RELAY_CLOSE, RelayFrame.encode(id, new byte[0]));
+            outboundQueue.close();
+            try {
+                frameReader.close();
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
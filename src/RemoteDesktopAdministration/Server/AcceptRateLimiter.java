@@ -0,0 +1,65 @@
+package RemoteDesktopAdministration.Server;
+
+import RemoteDesktopAdministration.Server.Logger.ServerLogger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket on the accept path: up to burst connections are accepted at once, then one per 1 / rate seconds.
+ * <p>
+ * While the bucket is empty the accepting thread waits, and connection attempts queue in the socket backlog rather than reaching handshakes and handler threads.
+ * Clients reconnect with randomized exponential backoff, so after a server restart a fleet of n clients is back within the longest backoff plus n / rate seconds.
+ * Every throttled period is logged with its length and count of accepts deferred.
+ */
+final class AcceptRateLimiter {
+
+    static final int DEFAULT_RATE = 100;
+    static final int DEFAULT_BURST = 200;
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledNanos = System.nanoTime();
+    private long throttledSinceNanos = -1L;
+    private long deferredAccepts;
+
+    /**
+     * @param ratePerSecond accepts per second once burst is spent
+     * @param burst         accepts allowed at once
+     */
+    AcceptRateLimiter(int ratePerSecond, int burst) {
+        this.tokensPerNano = Math.max(1, ratePerSecond) / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Waits until a connection may be accepted; called by the accepting thread only.
+     */
+    void acquire() {
+        refill();
+        if (tokens >= 1.0 && throttledSinceNanos >= 0L) {
+            ServerLogger.SERVER_LOGGER.info("Accept throttling ended after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - throttledSinceNanos) + " ms, " + deferredAccepts + " accepts deferred.");
+            throttledSinceNanos = -1L;
+        }
+        if (tokens < 1.0) {
+            if (throttledSinceNanos < 0L) {
+                throttledSinceNanos = System.nanoTime();
+                deferredAccepts = 0L;
+                ServerLogger.SERVER_LOGGER.info("Accept rate limit reached, deferring new Clients.");
+            }
+            deferredAccepts++;
+            while (tokens < 1.0) {
+                LockSupport.parkNanos((long) Math.ceil((1.0 - tokens) / tokensPerNano));
+                refill();
+            }
+        }
+        tokens -= 1.0;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledNanos) * tokensPerNano);
+        refilledNanos = now;
+    }
+}
@@ -1,5 +1,6 @@
 package RemoteDesktopAdministration.Server;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 import RemoteDesktopAdministration.Server.UI.PrimaryModel;
 
@@ -33,7 +34,7 @@ public class Chat {
     }
 
     private void receiveFromClient(String message) {
-        mainServer.writeStream(MainServer.DescriptorCode.CHAT_INITIATOR_CLIENT_OK, message, client.getDataOutputStream());
+        mainServer.writeStream(DescriptorCode.CHAT_INITIATOR_CLIENT_OK, message, client);
         primaryModel.setChatRecord(new UIChatRecord(State.RECEIVE, ZonedDateTime.now(), client, message));
         ServerLogger.SERVER_LOGGER.info("Message Received from " + client.getClientDescriptiveName());
     }
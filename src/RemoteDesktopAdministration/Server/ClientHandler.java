@@ -1,12 +1,14 @@
 package RemoteDesktopAdministration.Server;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ReceiveWindow;
 import RemoteDesktopAdministration.Server.UI.PrimaryModel;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 public class ClientHandler implements Runnable {
@@ -17,20 +19,41 @@ public class ClientHandler implements Runnable {
     private final FileSender fileSender;
     private final ScreenSharing screenSharing;
     private final ControlOps controlOps;
-    private final DataInputStream dataInputStream;
+    private final FrameReader frameReader;
+    private final MainServer.Client client;
+    /**
+     * client this connection is a data stream of, null for a client's own connection
+     */
+    private MainServer.Client owner = null;
+    /**
+     * link of the relay this connection comes from, null for a connection of a client
+     */
+    private RelayLink relayLink = null;
 
     ClientHandler(Socket socket, MainServer mainServer, PrimaryModel primaryModel) throws IOException, MainServer.ClientConfigurationFailedException {
+        this(socket, new FrameReader(socket.getInputStream()), mainServer.setClientConfig(socket, socket.getChannel()), mainServer, primaryModel);
+    }
+
+    /**
+     * Handler of non-blocking transport: frames are read by an event loop and passed to {@link #descriptorActionPerformed(ReadStream)}.
+     */
+    ClientHandler(Socket socket, OutboundQueue outboundQueue, MainServer mainServer, PrimaryModel primaryModel) throws MainServer.ClientConfigurationFailedException {
+        this(socket, null, mainServer.setClientConfig(socket, outboundQueue), mainServer, primaryModel);
+    }
+
+    private ClientHandler(Socket socket, FrameReader frameReader, MainServer.Client client, MainServer mainServer, PrimaryModel primaryModel) throws MainServer.ClientConfigurationFailedException {
         this.socket = socket;
-        dataInputStream = new DataInputStream(socket.getInputStream());
-        DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+        this.frameReader = frameReader;
         this.mainServer = mainServer;
-        mainServer.setClientConfig(socket, dataOutputStream);
-        MainServer.Client client = mainServer.getClient(socket);
         if (client == null)
             throw new MainServer.ClientConfigurationFailedException("Setting client configuration failed.");
+        this.client = client;
+        if (frameReader != null)
+            frameReader.setReceiveWindow(client.getReceiveWindow());
         this.chat = new Chat(this.mainServer, primaryModel, client);
         var fileSendProgressModel = new RemoteDesktopAdministration.Server.UI.FileSendProgress.Model(primaryModel, client);
         this.fileSender = new FileSender(this.mainServer, fileSendProgressModel, primaryModel, client);
+        client.setFileSender(fileSender);
         var screenViewerModel = new RemoteDesktopAdministration.Server.UI.ClientScreenViewer.Model(this.mainServer, primaryModel, client);
         this.screenSharing = new ScreenSharing(this.mainServer, screenViewerModel, primaryModel, client);
         this.controlOps = new ControlOps(this.mainServer, client);
@@ -43,47 +66,66 @@ public class ClientHandler implements Runnable {
 
     private void listenClient() {
         while (!socket.isClosed()) {
-            descriptorActionPerformed(mainServer.readStream(dataInputStream));
+            final var stream = mainServer.readStream(frameReader);
+            descriptorActionPerformed(stream);
+            stream.release();
         }
 
     }
 
-    private void descriptorActionPerformed(MainServer.ReadStream stream) {
+    void descriptorActionPerformed(ReadStream stream) {
 
         Objects.requireNonNull(stream);
         var descriptor = stream.descriptorByte();
-        var dataBuffer = stream.dataBuffer();
+        client.getHeartbeat().received();
 
         switch (descriptor) {
-            case MainServer.DescriptorCode.CLIENT_ONLINE -> mainServer.generateIdAndUpdateClientConfig(socket, dataBuffer);
-            case MainServer.DescriptorCode.CONNECTION_LOST -> connectionLost();
-
-            case MainServer.DescriptorCode.CHAT_INITIATOR_SERVER_OK -> chatStateActionPerformed(Chat.State.SEND, dataBuffer);
-            case MainServer.DescriptorCode.CHAT_INITIATOR_CLIENT -> chatStateActionPerformed(Chat.State.RECEIVE, dataBuffer);
-
-            case MainServer.DescriptorCode.CLIENT_SHUTDOWN -> controlOpsStateActionPerformed(ControlOps.State.SHUTDOWN);
-            case MainServer.DescriptorCode.CLIENT_RESTART -> controlOpsStateActionPerformed(ControlOps.State.RESTART);
-            case MainServer.DescriptorCode.CLIENT_LOGOFF -> controlOpsStateActionPerformed(ControlOps.State.LOG_OFF);
-
-            case MainServer.DescriptorCode.FTP_ON_NO_PROGRESS -> fileTransferStateActionPerformed(FileSender.State.NO_PROGRESS, dataBuffer);
-            case MainServer.DescriptorCode.FTP_ON_PROGRESS -> fileTransferStateActionPerformed(FileSender.State.PROGRESS, dataBuffer);
-            case MainServer.DescriptorCode.FTP_COMMIT -> fileTransferStateActionPerformed(FileSender.State.COMMIT, dataBuffer);
-            case MainServer.DescriptorCode.FTP_ABORT -> fileTransferStateActionPerformed(FileSender.State.ABORT, dataBuffer);
-            case MainServer.DescriptorCode.FTP_ERROR -> fileTransferStateActionPerformed(FileSender.State.ERROR, dataBuffer);
-
-            case MainServer.DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS -> screenSharingStateActionPerformed(ScreenSharing.State.NO_PROGRESS, dataBuffer);
-            case MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS -> screenSharingStateActionPerformed(ScreenSharing.State.PROGRESS, dataBuffer);
+            case DescriptorCode.CLIENT_ONLINE -> mainServer.generateIdAndUpdateClientConfig(socket, stream.dataString());
+            case DescriptorCode.CONNECTION_LOST -> connectionLost();
+            case DescriptorCode.WINDOW_UPDATE -> ReceiveWindow.grant(stream, client.getOutboundQueue());
+            case DescriptorCode.PONG -> client.getHeartbeat().pong(stream);
+            case DescriptorCode.DATA_STREAM_ATTACH -> owner = mainServer.attachDataStream(socket, stream.dataString());
+            case DescriptorCode.RELAY_ATTACH -> relayLink = mainServer.attachRelay(socket, stream.dataString());
+            case DescriptorCode.RELAY_OPEN, DescriptorCode.RELAY_FRAME, DescriptorCode.RELAY_CLOSE -> {
+                if (relayLink != null)
+                    relayLink.frameReceived(stream);
+            }
+
+            case DescriptorCode.CHAT_INITIATOR_SERVER_OK -> chatStateActionPerformed(Chat.State.SEND, stream.dataString());
+            case DescriptorCode.CHAT_INITIATOR_CLIENT -> chatStateActionPerformed(Chat.State.RECEIVE, stream.dataString());
+
+            case DescriptorCode.CLIENT_SHUTDOWN -> controlOpsStateActionPerformed(ControlOps.State.SHUTDOWN);
+            case DescriptorCode.CLIENT_RESTART -> controlOpsStateActionPerformed(ControlOps.State.RESTART);
+            case DescriptorCode.CLIENT_LOGOFF -> controlOpsStateActionPerformed(ControlOps.State.LOG_OFF);
+
+            case DescriptorCode.FTP_ON_NO_PROGRESS -> fileTransferStateActionPerformed(FileSender.State.NO_PROGRESS, stream.dataString());
+            case DescriptorCode.FTP_ON_PROGRESS -> fileTransferStateActionPerformed(FileSender.State.PROGRESS, stream.dataString());
+            case DescriptorCode.FTP_RANGE_ACK -> fileTransferStateActionPerformed(FileSender.State.RANGE_ACK, stream.dataString());
+            case DescriptorCode.FTP_COMMIT -> fileTransferStateActionPerformed(FileSender.State.COMMIT, stream.dataString());
+            case DescriptorCode.FTP_ABORT -> fileTransferStateActionPerformed(FileSender.State.ABORT, stream.dataString());
+            case DescriptorCode.FTP_ERROR -> fileTransferStateActionPerformed(FileSender.State.ERROR, stream.dataString());
+
+            case DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS -> screenSharingStateActionPerformed(ScreenSharing.State.NO_PROGRESS, stream);
+            case DescriptorCode.SCREEN_SHARING_ON_PROGRESS -> screenSharingStateActionPerformed(ScreenSharing.State.PROGRESS, stream);
         }
 
     }
 
+    MainServer.Client getClient() {
+        return client;
+    }
+
     private void connectionLost() {
-        if (!socket.isClosed())
+        if (owner != null)
+            mainServer.detachDataStream(owner, client);
+        else if (relayLink != null)
+            relayLink.close();
+        /* client may have been removed already, e.g. for missed heartbeats, or replaced by a session resumed on another connection */
+        else if (mainServer.getClient(socket) == client)
             mainServer.removeClient(socket);
     }
 
-    private void chatStateActionPerformed(Chat.State state, byte[] dataByteBuffer) {
-        var dataStringBuffer = new String(dataByteBuffer, StandardCharsets.UTF_8);
+    private void chatStateActionPerformed(Chat.State state, String dataStringBuffer) {
         chat.stateActionPerformed(state, dataStringBuffer);
 
     }
@@ -92,11 +134,11 @@ public class ClientHandler implements Runnable {
         controlOps.stateActionPerformed(state);
     }
 
-    private void screenSharingStateActionPerformed(ScreenSharing.State state, byte[] dataBuffer) {
-        screenSharing.stateActionPerformed(state, dataBuffer);
+    private void screenSharingStateActionPerformed(ScreenSharing.State state, ReadStream stream) {
+        screenSharing.stateActionPerformed(state, stream.dataBuffer(), stream.dataLength());
     }
 
-    private void fileTransferStateActionPerformed(FileSender.State state, byte[] dataByteBuffer) {
-        fileSender.stateActionPerformed(state, dataByteBuffer);
+    private void fileTransferStateActionPerformed(FileSender.State state, String dataStringBuffer) {
+        fileSender.stateActionPerformed(state, dataStringBuffer);
     }
 }
@@ -0,0 +1,160 @@
+package RemoteDesktopAdministration.Server;
+
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Clients of the server keyed by numeric id, with indexes by socket, descriptive name, platform and group.
+ * <p>
+ * Every index is a concurrent map, so lookups and iteration never lock: iterating {@link #clients()} or a platform / group index while clients come and go sees each client at most once
+ * and never throws {@link java.util.ConcurrentModificationException}. Selecting n clients by name costs n lookups.
+ * <p>
+ * Clients holding a session token stay indexed by it after removal, until the session is claimed by a reconnecting client or expires.
+ */
+final class ClientRegistry {
+
+    private final AtomicLong lastId;
+    private final Map<Long, MainServer.Client> byId = new ConcurrentHashMap<>();
+    private final Map<Socket, MainServer.Client> bySocket = new ConcurrentHashMap<>();
+    private final Map<String, MainServer.Client> byDescriptiveName = new ConcurrentHashMap<>();
+    private final Map<MainServer.Client.Platform, Set<MainServer.Client>> byPlatform = new ConcurrentHashMap<>();
+    private final Map<String, Set<MainServer.Client>> byGroup = new ConcurrentHashMap<>();
+    private final Map<String, MainServer.Client> bySession = new ConcurrentHashMap<>();
+
+    /**
+     * @param firstId numeric id before the first client's, set apart per server node so ids stay unique across a sharded deployment
+     */
+    ClientRegistry(long firstId) {
+        this.lastId = new AtomicLong(firstId);
+    }
+
+    /**
+     * @param socket        socket of connection
+     * @param clientFactory creates client from a fresh numeric id, called once per socket
+     * @return client of socket
+     */
+    MainServer.Client register(Socket socket, LongFunction<MainServer.Client> clientFactory) {
+        return bySocket.computeIfAbsent(socket, clientSocket -> {
+            final var client = clientFactory.apply(lastId.incrementAndGet());
+            byId.put(client.getId(), client);
+            return client;
+        });
+    }
+
+    /**
+     * Indexes client by descriptive name and platform, once both are known from the CLIENT_ONLINE handshake.
+     */
+    void online(MainServer.Client client) {
+        byDescriptiveName.put(client.getClientDescriptiveName(), client);
+        byPlatform.computeIfAbsent(client.getPlatform(), platform -> ConcurrentHashMap.newKeySet()).add(client);
+        if (client.getSessionToken() != null)
+            bySession.put(client.getSessionToken(), client);
+    }
+
+    /**
+     * @param token session token presented by a reconnecting client
+     * @return client which was issued token, online or removed, null if token is unknown or expired; token is no longer valid afterwards
+     */
+    MainServer.Client claim(String token) {
+        return bySession.remove(token);
+    }
+
+    /**
+     * @param token session token presented by a data stream
+     * @return online client which was issued token, null if there is none; token stays valid
+     */
+    MainServer.Client session(String token) {
+        final var client = bySession.get(token);
+        return client != null && byId.get(client.getId()) == client ? client : null;
+    }
+
+    /**
+     * Forgets session of a removed client, unless it has been claimed meanwhile.
+     */
+    void expire(String token, MainServer.Client client) {
+        bySession.remove(token, client);
+    }
+
+    /**
+     * Moves client to numeric id of the session it resumes.
+     */
+    void reassign(MainServer.Client client, long id) {
+        byId.remove(client.getId(), client);
+        client.setId(id);
+        byId.put(id, client);
+    }
+
+    /**
+     * @param group name of group, null to leave every group
+     */
+    void setGroup(MainServer.Client client, String group) {
+        final String previous = client.getGroup();
+        if (previous != null)
+            removeFrom(byGroup, previous, client);
+        client.setGroup(group);
+        if (group != null && byId.containsKey(client.getId()))
+            byGroup.computeIfAbsent(group, name -> ConcurrentHashMap.newKeySet()).add(client);
+    }
+
+    /**
+     * @return client removed, null if socket was not registered
+     */
+    MainServer.Client remove(Socket socket) {
+        final var client = bySocket.remove(socket);
+        if (client == null)
+            return null;
+        byId.remove(client.getId());
+        byDescriptiveName.remove(client.getClientDescriptiveName(), client);
+        removeFrom(byPlatform, client.getPlatform(), client);
+        if (client.getGroup() != null)
+            removeFrom(byGroup, client.getGroup(), client);
+        return client;
+    }
+
+    /**
+     * A client which never came online, or whose platform or group has no other client yet, has no set to leave.
+     */
+    private static <K> void removeFrom(Map<K, Set<MainServer.Client>> index, K key, MainServer.Client client) {
+        final var clients = index.get(key);
+        if (clients != null)
+            clients.remove(client);
+    }
+
+    MainServer.Client get(Socket socket) {
+        return bySocket.get(socket);
+    }
+
+    MainServer.Client get(long id) {
+        return byId.get(id);
+    }
+
+    MainServer.Client get(String descriptiveName) {
+        return byDescriptiveName.get(descriptiveName);
+    }
+
+    /**
+     * @param action called with every registered socket and its client
+     */
+    void forEach(BiConsumer<Socket, MainServer.Client> action) {
+        bySocket.forEach(action);
+    }
+
+    Collection<MainServer.Client> clients() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    Set<MainServer.Client> clients(MainServer.Client.Platform platform) {
+        return Collections.unmodifiableSet(byPlatform.getOrDefault(platform, Set.of()));
+    }
+
+    Set<MainServer.Client> clients(String group) {
+        return Collections.unmodifiableSet(byGroup.getOrDefault(group, Set.of()));
+    }
+}
@@ -1,8 +1,8 @@
 package RemoteDesktopAdministration.Server;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 
-import java.io.DataOutputStream;
 import java.util.logging.Level;
 
 public class ControlOps {
@@ -51,9 +51,9 @@ public class ControlOps {
         if (!commandSetConfigured)
             configureCommandSet();
         switch (state) {
-            case SHUTDOWN -> sendCommand(state, MainServer.DescriptorCode.CLIENT_SHUTDOWN, shutdownCmd);
-            case RESTART -> sendCommand(state, MainServer.DescriptorCode.CLIENT_RESTART, restartCmd);
-            case LOG_OFF -> sendCommand(state, MainServer.DescriptorCode.CLIENT_LOGOFF, logOffCmd);
+            case SHUTDOWN -> sendCommand(state, DescriptorCode.CLIENT_SHUTDOWN, shutdownCmd);
+            case RESTART -> sendCommand(state, DescriptorCode.CLIENT_RESTART, restartCmd);
+            case LOG_OFF -> sendCommand(state, DescriptorCode.CLIENT_LOGOFF, logOffCmd);
         }
     }
 
@@ -68,9 +68,8 @@ public class ControlOps {
             return;
         }
         cmd = abortCmd + "\n" + cmd;
-        DataOutputStream out = client.getDataOutputStream();
         String desc = client.getClientDescriptiveName();
-        serverMain.writeStream(opCode, cmd, out);
+        serverMain.writeStream(opCode, cmd, client);
         ServerLogger.SERVER_LOGGER.info(desc + " is scheduled to " + state.name());
     }
 
@@ -1,5 +1,6 @@
 package RemoteDesktopAdministration.Server;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 import RemoteDesktopAdministration.Server.UI.FileSendProgress.Model;
 import RemoteDesktopAdministration.Server.UI.FileSendProgress.View;
@@ -7,6 +8,7 @@ import RemoteDesktopAdministration.Server.UI.PrimaryModel;
 import RemoteDesktopAdministration.Server.Utils.FileUtils;
 import RemoteDesktopAdministration.Server.Utils.ListInnerContents;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -14,11 +16,23 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 public class FileSender {
 
+    /**
+     * Chunk length, 1 MB until the client's round-trip time is known. Every chunk waits for the client's acknowledgement, so a chunk sends for (k - 1) round trips out of k
+     * when its length is k round trips' worth of the rate measured on the previous one: chunks grow up to that length with {@link #CHUNK_ROUND_TRIPS} = 8, at most doubling
+     * from chunk to chunk, between {@link #MIN_CHUNK_LENGTH} and half the flow control window.
+     */
+    static final int DEFAULT_CHUNK_LENGTH = 1024 * 1024;
+    static final int MIN_CHUNK_LENGTH = 256 * 1024;
+    static final int MAX_CHUNK_LENGTH = 16 * 1024 * 1024;
+    static final int CHUNK_ROUND_TRIPS = 8;
     private final Model model;
     private final PrimaryModel primaryModel;
     private final AtomicBoolean innerContentScheduled = new AtomicBoolean(false);
@@ -35,6 +49,24 @@ public class FileSender {
     private String relativePath;
     private long uploadSize;
     private long prevUploadSize;
+    private int chunkLength = DEFAULT_CHUNK_LENGTH;
+    private long chunkSentNanos;
+    private int chunkSentLength;
+    private long chunkEndPointer = -1L;
+    private long digestedLength;
+    private boolean sending;
+    private byte resumeStart = -1;
+    /**
+     * guards the file, its digest and every field of the transfer: a lost data stream hands its ranges back from its own thread, and a resumed session takes over from another connection's.
+     * A lock rather than synchronized, as file IO under a monitor would pin a virtual thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * ranges sent on data streams and not yet acknowledged, by file pointer
+     */
+    private final Map<Long, Range> rangesInFlight = new HashMap<>();
+    private long nextRangePointer;
+    private int nextDataStream;
 
     public FileSender(MainServer mainServer, Model model, PrimaryModel primaryModel, MainServer.Client client) {
         this.mainServer = mainServer;
@@ -44,7 +76,7 @@ public class FileSender {
     }
 
     private static byte[] generateRemoteSoftwareInstallPayload(String dataStringBuffer) {
-        byte[] descriptor = new byte[]{MainServer.DescriptorCode.REMOTE_SOFT_INSTALLATION};
+        byte[] descriptor = new byte[]{DescriptorCode.REMOTE_SOFT_INSTALLATION};
         byte[] dataByteBuffer = dataStringBuffer.getBytes(StandardCharsets.UTF_8);
         byte[] payload = new byte[descriptor.length + dataByteBuffer.length];
         System.arraycopy(descriptor, 0, payload, 0, descriptor.length);
@@ -52,14 +84,25 @@ public class FileSender {
         return payload;
     }
 
-    void stateActionPerformed(State state, byte[] dataByteBuffer) {
+    void stateActionPerformed(State state, String dataStringBuffer) {
 
-        switch (state) {
-            case NO_PROGRESS -> noProgress();
-            case PROGRESS -> progress(Long.parseLong(new String(dataByteBuffer, StandardCharsets.UTF_8)));
-            case ERROR -> error(new String(dataByteBuffer, StandardCharsets.UTF_8));
-            case COMMIT -> commit();
-            case ABORT -> abort();
+        lock.lock();
+        try {
+            switch (state) {
+                case NO_PROGRESS -> noProgress();
+                case PROGRESS -> {
+                    if (client.getDataStreams().isEmpty())
+                        progress(Long.parseLong(dataStringBuffer));
+                    else
+                        stripe(Long.parseLong(dataStringBuffer));
+                }
+                case RANGE_ACK -> rangeAcked(Long.parseLong(dataStringBuffer));
+                case ERROR -> error(dataStringBuffer);
+                case COMMIT -> commit();
+                case ABORT -> abort();
+            }
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -83,7 +126,9 @@ public class FileSender {
         if (!innerContentFileSendStarted.get()) {
             try {
                 sha256Digest.resetSHA256Digest();
+                digestedLength = 0L;
                 raf = new RandomAccessFile(innerContents.absolute()[innerContentsFileIndex], "r");
+                sending = true;
                 mainFileName = Paths.get(relativePath).getName(0).toString();
                 if (prevUploadSize == 0L) {
                     String fileOrDir = innerContents.isRegularFileInnerContent() ? "File " : innerContents.isDirectoryInnerContent() ? "Folder " : "";
@@ -92,7 +137,7 @@ public class FileSender {
             } catch (IOException e) {
                 String fileOrDir = innerContents.isRegularFileInnerContent() ? "File " : innerContents.isDirectoryInnerContent() ? "Folder " : "";
                 ServerLogger.SERVER_LOGGER.log(Level.SEVERE, fileOrDir + "Content Send to " + client.getClientDescriptiveName() + " Failed to start for " + innerContents.absolute()[innerContentsFileIndex] + " [" + e.getMessage() + "]", e);
-                mainServer.writeStream(MainServer.DescriptorCode.FTP_OFF_START, new byte[]{(byte) (isInnerContentProcessedFully() ? 1 : 0)}, client.getDataOutputStream());
+                mainServer.writeStream(DescriptorCode.FTP_OFF_START, new byte[]{(byte) (isInnerContentProcessedFully() ? 1 : 0)}, client);
                 return;
             }
         }
@@ -108,7 +153,7 @@ public class FileSender {
         String separator = new String(new byte[]{4}, StandardCharsets.UTF_8);
         String payload = dirFile + separator + innerContents.totalSize() + separator + relativePath;
         innerContentsFileIndex++;
-        mainServer.writeStream(MainServer.DescriptorCode.FTP_ON_NO_PROGRESS, payload, client.getDataOutputStream());
+        mainServer.writeStream(DescriptorCode.FTP_ON_NO_PROGRESS, payload, client);
 
     }
     //</editor-fold>
@@ -117,15 +162,17 @@ public class FileSender {
     private void progress(long fp) {
         try {
             long remainingLength = raf.length() - fp;
-            final var bufferMaxSize = 1048576;
-            int buffer_length = (remainingLength < bufferMaxSize) ? (int) remainingLength : bufferMaxSize;
+            adaptChunkLength(fp);
+            int buffer_length = (remainingLength < chunkLength) ? (int) remainingLength : chunkLength;
             byte[] buffer = new byte[buffer_length];
             if (uploadSize == 0L) {
                 this.startTime = System.nanoTime();
             }
+            digestTo(fp);
             raf.seek(fp);
             raf.read(buffer, 0, buffer.length);
             sha256Digest.updateSHA256Digest(buffer, 0, buffer.length);
+            digestedLength += buffer.length;
             if (uploadSize == 0L) {
                 model.startProgressViewer();
             }
@@ -133,20 +180,198 @@ public class FileSender {
             model.setFileSendProgress(getSendProgress(relativePath, innerContents.totalSize(), uploadSize, prevUploadSize, startTime));
 
             if (fp != raf.length()) {
-                mainServer.writeStream(MainServer.DescriptorCode.FTP_EOR, buffer, client.getDataOutputStream());
+                chunkSentNanos = System.nanoTime();
+                chunkSentLength = buffer.length;
+                chunkEndPointer = uploadSize;
+                mainServer.writeStream(DescriptorCode.FTP_EOR, buffer, client);
 
             } else {
                 prevUploadSize += uploadSize;
                 final var sha256Digest = this.sha256Digest.getSHA256Digest();
-                mainServer.writeStream(MainServer.DescriptorCode.FTP_EOF, sha256Digest, client.getDataOutputStream());
+                mainServer.writeStream(DescriptorCode.FTP_EOF, sha256Digest, client);
                 releaseResourcesAndClose();
             }
         } catch (IOException e) {
-            String fileOrDir = innerContents.isRegularFileInnerContent() ? "File " : innerContents.isDirectoryInnerContent() ? "Folder " : "";
-            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, fileOrDir + "Content Send to " + client.getClientDescriptiveName() + " Failed to progress for " + innerContents.absolute()[innerContentsFileIndex] + " [" + e.getMessage() + "]", e);
-            mainServer.writeStream(MainServer.DescriptorCode.FTP_OFF_START, new byte[]{(byte) (isInnerContentProcessedFully() ? 1 : 0)}, client.getDataOutputStream());
+            progressFailed(e);
+        }
+    }
+
+    /**
+     * Brings digest up to fp, which lies past the data sent so far only when a resumed client acknowledges the part of the file it kept.
+     */
+    private void digestTo(long fp) throws IOException {
+        if (fp == digestedLength)
+            return;
+        if (fp < digestedLength) {
+            sha256Digest.resetSHA256Digest();
+            digestedLength = 0L;
+        }
+        final byte[] buffer = new byte[DEFAULT_CHUNK_LENGTH];
+        raf.seek(digestedLength);
+        while (digestedLength < fp) {
+            final int read = raf.read(buffer, 0, (int) Math.min(buffer.length, fp - digestedLength));
+            if (read < 0)
+                throw new EOFException("Client acknowledged " + fp + " bytes of a shorter file");
+            sha256Digest.updateSHA256Digest(buffer, 0, read);
+            digestedLength += read;
+        }
+    }
+
+    /**
+     * Takes over the contents previous sender of a resumed session was sending; a file it had started is announced again, and client answers with the length it kept.
+     *
+     * @param previous sender of the lost connection, no longer called
+     */
+    void resume(FileSender previous) {
+        if (previous == null)
+            return;
+        lock.lock();
+        previous.lock.lock();
+        try {
+            takeOver(previous);
+        } finally {
+            previous.lock.unlock();
+            lock.unlock();
         }
     }
+
+    private void takeOver(FileSender previous) {
+        if (previous.innerContents == null || !previous.innerContentScheduled.get())
+            return;
+        innerContents = previous.innerContents;
+        innerContentsFileIndex = previous.sending ? previous.innerContentsFileIndex - 1 : previous.innerContentsFileIndex;
+        innerContentScheduled.set(true);
+        prevUploadSize = previous.prevUploadSize;
+        chunkLength = previous.chunkLength;
+        if (previous.sending)
+            previous.releaseResourcesAndClose();
+        resumeStart = (byte) (previous.sending ? 2 : 0);
+        ServerLogger.SERVER_LOGGER.info("Send to " + client.getClientDescriptiveName() + " resumes at " + innerContents.relative()[innerContentsFileIndex] + ".");
+    }
+
+    /**
+     * @return FTP_OFF_START payload restarting a resumed transfer, -1 if there was none
+     */
+    byte getResumeStart() {
+        return resumeStart;
+    }
+
+    /**
+     * Chunks to a relayed client keep {@link #DEFAULT_CHUNK_LENGTH}, so agents behind one relay are sent the same chunks and the relay's cache serves all but the first.
+     *
+     * @param fp file pointer acknowledged by client; the chunk just acknowledged is measured only if it ends there
+     */
+    private void adaptChunkLength(long fp) {
+        if (client.isRelayed())
+            return;
+        final long smoothedRtt = client.getHeartbeat().getSmoothedRttNanos();
+        final long elapsed = System.nanoTime() - chunkSentNanos;
+        if (fp != chunkEndPointer || smoothedRtt < 0L || elapsed <= 0L)
+            return;
+        final long target = (long) ((double) chunkSentLength / elapsed * CHUNK_ROUND_TRIPS * smoothedRtt);
+        final long maxLength = Math.min(MAX_CHUNK_LENGTH, client.getAgreement().windowSize() / 2);
+        chunkLength = (int) Math.max(MIN_CHUNK_LENGTH, Math.min(Math.min(maxLength, 2L * chunkLength), target));
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="stripe(filePointer)">
+
+    /**
+     * Sends rest of the file from fp as disjoint ranges over client's data streams, one range in flight per stream, the digest still taken in file order.
+     * Each {@link DescriptorCode#FTP_RANGE_ACK} frees its stream for the next range; once all are acknowledged the file ends as in {@link #progress(long)}.
+     *
+     * @param fp file pointer client has received contiguously
+     */
+    private void stripe(long fp) {
+        try {
+            if (uploadSize == 0L) {
+                this.startTime = System.nanoTime();
+                model.startProgressViewer();
+            }
+            rangesInFlight.clear();
+            nextRangePointer = fp;
+            uploadSize = fp;
+            digestTo(fp);
+            sendRanges();
+        } catch (IOException e) {
+            progressFailed(e);
+        }
+    }
+
+    private void rangeAcked(long fp) {
+        final var range = rangesInFlight.remove(fp);
+        /* a range sent again after its data stream was lost may be acknowledged twice */
+        if (range == null)
+            return;
+        try {
+            uploadSize += range.length();
+            model.setFileSendProgress(getSendProgress(relativePath, innerContents.totalSize(), uploadSize, prevUploadSize, startTime));
+            sendRanges();
+        } catch (IOException e) {
+            progressFailed(e);
+        }
+    }
+
+    /**
+     * Sends ranges in flight on a lost data stream again on client's own connection.
+     */
+    void dataStreamLost(MainServer.Client dataStream) {
+        lock.lock();
+        try {
+            for (var entry : rangesInFlight.entrySet()) {
+                if (entry.getValue().dataStream() != dataStream)
+                    continue;
+                try {
+                    entry.setValue(new Range(client, entry.getValue().length()));
+                    mainServer.writeStream(DescriptorCode.FTP_RANGE, readRange(entry.getKey(), entry.getValue().length()), client);
+                } catch (IOException e) {
+                    progressFailed(e);
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendRanges() throws IOException {
+        final long length = raf.length();
+        final var dataStreams = client.getDataStreams();
+        while (rangesInFlight.size() < Math.max(1, dataStreams.size()) && nextRangePointer < length) {
+            final int rangeLength = (int) Math.min(chunkLength, length - nextRangePointer);
+            final byte[] payload = readRange(nextRangePointer, rangeLength);
+            sha256Digest.updateSHA256Digest(payload, Long.BYTES, rangeLength);
+            digestedLength += rangeLength;
+            final var dataStream = dataStreams.isEmpty() ? client : dataStreams.get(nextDataStream++ % dataStreams.size());
+            rangesInFlight.put(nextRangePointer, new Range(dataStream, rangeLength));
+            mainServer.writeStream(DescriptorCode.FTP_RANGE, payload, dataStream);
+            nextRangePointer += rangeLength;
+        }
+        if (rangesInFlight.isEmpty() && nextRangePointer >= length) {
+            prevUploadSize += uploadSize;
+            mainServer.writeStream(DescriptorCode.FTP_EOF, this.sha256Digest.getSHA256Digest(), client);
+            releaseResourcesAndClose();
+        }
+    }
+
+    /**
+     * @return FTP_RANGE payload : fp as big-endian long (8B) + length bytes of file from fp
+     */
+    private byte[] readRange(long fp, int length) throws IOException {
+        final byte[] payload = new byte[Long.BYTES + length];
+        for (int i = 0; i < Long.BYTES; i++)
+            payload[i] = (byte) (fp >>> (56 - 8 * i));
+        raf.seek(fp);
+        raf.readFully(payload, Long.BYTES, length);
+        return payload;
+    }
+
+    private void progressFailed(IOException e) {
+        String fileOrDir = innerContents.isRegularFileInnerContent() ? "File " : innerContents.isDirectoryInnerContent() ? "Folder " : "";
+        ServerLogger.SERVER_LOGGER.log(Level.SEVERE, fileOrDir + "Content Send to " + client.getClientDescriptiveName() + " Failed to progress for " + relativePath + " [" + e.getMessage() + "]", e);
+        rangesInFlight.clear();
+        mainServer.writeStream(DescriptorCode.FTP_OFF_START, new byte[]{(byte) (isInnerContentProcessedFully() ? 1 : 0)}, client);
+    }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="error(fileChecksum)">
@@ -177,11 +402,11 @@ public class FileSender {
                 }
             } catch (FileNotFoundException ignored) {
             }
-            mainServer.writeStream(MainServer.DescriptorCode.FTP_COMMIT, dataByteBuffer, client.getDataOutputStream());
-            mainServer.writeStream(MainServer.DescriptorCode.FTP_OFF_START, new byte[]{(byte) 1}, client.getDataOutputStream());
+            mainServer.writeStream(DescriptorCode.FTP_COMMIT, dataByteBuffer, client);
+            mainServer.writeStream(DescriptorCode.FTP_OFF_START, new byte[]{(byte) 1}, client);
             return;
         }
-        mainServer.writeStream(MainServer.DescriptorCode.FTP_OFF_START, new byte[]{(byte) 0}, client.getDataOutputStream());
+        mainServer.writeStream(DescriptorCode.FTP_OFF_START, new byte[]{(byte) 0}, client);
     }
     //</editor-fold>
 
@@ -192,9 +417,9 @@ public class FileSender {
         uploadSize = 0L;
         String fileOrDir = innerContents.isRegularFileInnerContent() ? "File " : innerContents.isDirectoryInnerContent() ? "Folder " : "";
         ServerLogger.SERVER_LOGGER.severe(mainFileName + " " + fileOrDir + "Send to " + client.getClientDescriptiveName() + " aborted due to Client's File System Error.");
-        mainServer.writeStream(MainServer.DescriptorCode.FTP_ABORT, "", client.getDataOutputStream());
+        mainServer.writeStream(DescriptorCode.FTP_ABORT, "", client);
         releaseResourcesAndClose();
-        mainServer.writeStream(MainServer.DescriptorCode.FTP_OFF_START, new byte[]{(byte) (isInnerContentProcessedFully() ? 1 : 0)}, client.getDataOutputStream());
+        mainServer.writeStream(DescriptorCode.FTP_OFF_START, new byte[]{(byte) (isInnerContentProcessedFully() ? 1 : 0)}, client);
     }
     //</editor-fold>
 
@@ -214,6 +439,7 @@ public class FileSender {
     }
 
     private void releaseResourcesAndClose() {
+        sending = false;
         try {
             raf.close();
         } catch (IOException ignored) {
@@ -278,9 +504,15 @@ public class FileSender {
     }
     //</editor-fold>
 
+    /**
+     * @param dataStream connection the range was sent on
+     */
+    private record Range(MainServer.Client dataStream, int length) {
+    }
+
     enum State {
 
-        NO_PROGRESS, PROGRESS, ERROR, COMMIT, ABORT
+        NO_PROGRESS, PROGRESS, RANGE_ACK, ERROR, COMMIT, ABORT
     }
 
     //<editor-fold defaultstate="collapsed" desc="SendProgress Record Class"
@@ -0,0 +1,71 @@
+package RemoteDesktopAdministration.Server;
+
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.InputEvents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Input events of a screen viewer on their way to its client, see {@link InputEvents}: events within a window of the first one not yet sent leave together in one frame,
+ * and a mouse move following another in that window replaces it, so that dragging the mouse across the viewer costs a frame per window rather than one per pixel.
+ * The window is set with system property {@code rda.inputWindowMillis}.
+ */
+public final class InputBatcher {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 10L;
+    private static final long WINDOW_MILLIS = Long.getLong("rda.inputWindowMillis", DEFAULT_WINDOW_MILLIS);
+    private final MainServer mainServer;
+    private final MainServer.Client client;
+    private final long startNanos = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * events not yet sent, guarded by lock; a flush is scheduled while there are any
+     */
+    private List<InputEvents.Event> pending = new ArrayList<>();
+
+    public InputBatcher(MainServer mainServer, MainServer.Client client) {
+        this.mainServer = mainServer;
+        this.client = client;
+    }
+
+    /**
+     * @param code ordinal of button or key, or scroll amount
+     * @param x    horizontal screen pixel of a mouse move
+     * @param y    vertical screen pixel of a mouse move
+     */
+    public void add(InputEvents.Type type, int code, double x, double y) {
+        final var event = new InputEvents.Event(type, code, toShort(x), toShort(y), (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        lock.lock();
+        try {
+            final int last = pending.size() - 1;
+            if (last < 0)
+                mainServer.schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            if (type == InputEvents.Type.MOUSE_MOVED && last >= 0 && pending.get(last).type() == InputEvents.Type.MOUSE_MOVED)
+                pending.set(last, event);
+            else
+                pending.add(event);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() {
+        final List<InputEvents.Event> events;
+        lock.lock();
+        try {
+            events = pending;
+            pending = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        if (!events.isEmpty())
+            mainServer.writeStream(DescriptorCode.SCREEN_INPUT_EVENT, InputEvents.encode(events), client);
+    }
+
+    private static int toShort(double coordinate) {
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(coordinate)));
+    }
+}
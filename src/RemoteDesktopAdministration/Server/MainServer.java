@@ -1,5 +1,17 @@
 package RemoteDesktopAdministration.Server;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.Discovery;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.Heartbeat;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ReceiveWindow;
+import RemoteDesktopAdministration.Protocol.RelayFrame;
+import RemoteDesktopAdministration.Protocol.SharedFrame;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 import RemoteDesktopAdministration.Server.UI.PrimaryModel;
 import RemoteDesktopAdministration.Server.UI.PrimaryView;
@@ -7,31 +19,91 @@ import RemoteDesktopAdministration.Server.Utils.ListInnerContents;
 import javafx.application.Application;
 import org.hashids.Hashids;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.*;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static RemoteDesktopAdministration.Server.MainServer.DescriptorCode.FTP_OFF_START;
+import static RemoteDesktopAdministration.Protocol.DescriptorCode.FTP_OFF_START;
 
 public class MainServer {
 
     public static final int DEFAULT_PORT = 35706;
+    public static final long DEFAULT_OUTBOUND_QUEUE_CAPACITY = 16L * 1024 * 1024;
+    public static final long DEFAULT_COALESCE_WINDOW_MICROS = 200L;
+    public static final long DEFAULT_SESSION_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final int DEFAULT_SHARD_PORT = 35708;
+    public static final long DEFAULT_SHARD_SYNC_MILLIS = 2000L;
+    static final long OUTBOUND_QUEUE_CAPACITY = Long.getLong("rda.outboundQueueCapacity", DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+    private static final Transport TRANSPORT = Transport.valueOf(System.getProperty("rda.transport", Transport.BLOCKING.name()).toUpperCase());
+    private static final int EVENT_LOOPS = Integer.getInteger("rda.eventLoops", NioServerTransport.DEFAULT_EVENT_LOOPS);
+    private static final long COALESCE_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("rda.coalesceWindowMicros", DEFAULT_COALESCE_WINDOW_MICROS));
+    /**
+     * how long a lost client's session can be resumed, set with system property {@code rda.sessionRetentionMillis}
+     */
+    private static final long SESSION_RETENTION_MILLIS = Long.getLong("rda.sessionRetentionMillis", DEFAULT_SESSION_RETENTION_MILLIS);
+    /**
+     * extra sockets each client opens for file data once {@link Handshake.Feature#DATA_STREAMS} is agreed, set with system property {@code rda.dataStreams}; 0 keeps file data on the client's connection
+     */
+    private static final int DATA_STREAMS = Integer.getInteger("rda.dataStreams", 0);
+    private static final int ACCEPT_RATE = Integer.getInteger("rda.acceptRate", AcceptRateLimiter.DEFAULT_RATE);
+    private static final int ACCEPT_BURST = Integer.getInteger("rda.acceptBurst", AcceptRateLimiter.DEFAULT_BURST);
+    /**
+     * folder of the {@link ShardDirectory} shared by the nodes of a sharded deployment, set with system property {@code rda.shardDirectory}; unset runs a single server
+     */
+    private static final String SHARD_DIRECTORY = System.getProperty("rda.shardDirectory");
+    /**
+     * id of this node, unique in a sharded deployment and below 2^21, set with system property {@code rda.shardNode}
+     */
+    private static final int SHARD_NODE = Integer.getInteger("rda.shardNode", 0);
+    /**
+     * host and port other nodes route commands to, set with system properties {@code rda.shardHost} and {@code rda.shardPort}
+     */
+    private static final String SHARD_HOST = System.getProperty("rda.shardHost");
+    private static final int SHARD_PORT = Integer.getInteger("rda.shardPort", DEFAULT_SHARD_PORT);
+    private static final long SHARD_SYNC_MILLIS = Long.getLong("rda.shardSyncMillis", DEFAULT_SHARD_SYNC_MILLIS);
+    /**
+     * secret every node of a sharded deployment is started with, required to route commands, set with system property {@code rda.shardSecret}
+     */
+    private static final String SHARD_SECRET = System.getProperty("rda.shardSecret");
+    /**
+     * numeric ids of a node's clients start at its node id shifted by this many bits
+     */
+    private static final int SHARD_ID_BITS = 32;
+    private static final SecureRandom SESSION_TOKEN_RANDOM = new SecureRandom();
+    private static final ThreadFactory WRITER_THREAD_FACTORY = ThreadMode.CONFIGURED.threadFactory("Client-Writer-");
     private final PrimaryModel uiMainModel;
-    private final Hashtable<Socket, Client> socketClientHashtable = new Hashtable<>();
-    private final ArrayList<Client> clientOnlineList = new ArrayList<>();
+    private final ClientRegistry clientRegistry = new ClientRegistry((long) SHARD_NODE << SHARD_ID_BITS);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(ThreadMode.PLATFORM.threadFactory("Server-Scheduler-"));
     private ServerSocket serverSocket = null;
-    private long clientId = 0L;
+    private ScheduledFuture<?> heartbeatTask = null;
+    private ScheduledFuture<?> beaconTask = null;
+    private MulticastSocket beaconSocket = null;
+    private String hostName = "Unknown";
+    private ShardDirectory shardDirectory = null;
+    private ShardRouter shardRouter = null;
+    private ScheduledExecutorService shardSyncScheduler = null;
+    /**
+     * clients of other nodes listed in UI, touched by the shard sync thread only
+     */
+    private final Set<String> remoteClients = new HashSet<>();
 
     /**
      * @param uiMainModel Model class which is a common class to Front-end and Back-end. Back-end sets Property values of Model class. Front-end listen to such property and acts upon changes.
@@ -47,7 +119,7 @@ public class MainServer {
 
     public void configServerDetails() {
         try {
-            final var hostName = InetAddress.getLocalHost().getHostName();
+            hostName = InetAddress.getLocalHost().getHostName();
             uiMainModel.setHostName(hostName);
             final var inetAddresses = InetAddress.getAllByName(hostName);
             var ipv4 = Stream.of(inetAddresses).filter(inetAddress -> inetAddress instanceof Inet4Address).map(inetAddress -> (Inet4Address) inetAddress).collect(Collectors.toList());
@@ -60,8 +132,14 @@ public class MainServer {
 
     public boolean startServer(Integer port) {
         try {
-            serverSocket = new ServerSocket(port);
-            ServerLogger.SERVER_LOGGER.info("Server Started at PortNo: " + port);
+            /* accepted sockets of both transports own a channel, which writes frames with gathering writes */
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+            ServerLogger.SERVER_LOGGER.info("Server Started at PortNo: " + port + " using " + TRANSPORT + " transport");
+            heartbeatTask = scheduler.scheduleWithFixedDelay(this::heartbeat, Heartbeat.INTERVAL_MILLIS, Heartbeat.INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (Discovery.ENABLED)
+                startBeacon();
+            if (SHARD_DIRECTORY != null)
+                startShard();
             return true;
         } catch (IOException e) {
             ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Server failed to start due to : " + e.getMessage(), e);
@@ -72,9 +150,15 @@ public class MainServer {
     public void listenClients() {
         if (serverSocket == null)
             return;
+        /* connection attempts beyond rda.acceptRate per second, after a burst of rda.acceptBurst, wait in the backlog */
+        final var acceptRateLimiter = new AcceptRateLimiter(ACCEPT_RATE, ACCEPT_BURST);
+        if (TRANSPORT == Transport.NIO) {
+            listenClientsNonBlocking(serverSocket.getChannel(), acceptRateLimiter);
+            return;
+        }
 
-        final ExecutorService clientPool = Executors.newCachedThreadPool();
-        ServerLogger.SERVER_LOGGER.info("Listening new Clients... ");
+        final ExecutorService clientPool = ThreadMode.CONFIGURED.newPerTaskExecutor("Client-Handler-");
+        ServerLogger.SERVER_LOGGER.info("Listening new Clients on " + ThreadMode.CONFIGURED + " threads... ");
 
         while (true) {
             if (serverSocket.isClosed()) {
@@ -82,6 +166,7 @@ public class MainServer {
                 return;
             }
             try {
+                acceptRateLimiter.acquire();
                 final var acceptedClient = serverSocket.accept();
                 var result = clientPool.submit(new ClientHandler(acceptedClient, MainServer.this, uiMainModel));
                 if (result.isCancelled() || result.isDone())
@@ -94,14 +179,30 @@ public class MainServer {
         }
     }
 
+    private void listenClientsNonBlocking(ServerSocketChannel serverSocketChannel, AcceptRateLimiter acceptRateLimiter) {
+        try {
+            new NioServerTransport(this, uiMainModel, EVENT_LOOPS).listen(serverSocketChannel, acceptRateLimiter);
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Listening new Clients failed", e);
+        }
+    }
+
     public boolean stopServer() {
         if (serverSocket == null) {
             ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Cannot stop server ::: Server was not started.");
             return false;
         }
+        if (heartbeatTask != null)
+            heartbeatTask.cancel(false);
+        if (beaconTask != null) {
+            beaconTask.cancel(false);
+            beaconSocket.close();
+        }
+        if (shardDirectory != null)
+            stopShard();
         try {
             serverSocket.close();
-            clientOnlineList.parallelStream().forEach(client -> writeStream(DescriptorCode.CONNECTION_LOST, "", client.dataOutputStream));
+            writeStream(new SharedFrame(DescriptorCode.CONNECTION_LOST, new byte[0]), clientRegistry.clients().stream());
             ServerLogger.SERVER_LOGGER.severe("Server is offline.");
             return true;
         } catch (IOException ex) {
@@ -111,47 +212,206 @@ public class MainServer {
     }
 
 
-    ReadStream readStream(InputStream inputStream) {
-        byte[] buffer = new byte[0];
-        byte descriptor_byte = MainServer.DescriptorCode.CONNECTION_LOST;
+    ReadStream readStream(FrameReader frameReader) {
+        final var stream = frameReader.readStream();
+        ServerLogger.SERVER_LOGGER.finest("Message Type Read :" + DescriptorCode.nameOf(stream.descriptorByte()));
+        return stream;
+    }
+
+    private void startBeacon() {
         try {
-            byte[] start = inputStream.readNBytes(1);
-            if (start.length > 0 && start[0] == (byte) 2) {
-                byte[] descriptor = inputStream.readNBytes(1);
-                byte[] byteCount = new byte[0];
-                StringBuilder length = new StringBuilder();
-                do {
-                    if (byteCount.length != 0)
-                        length.append(new String(byteCount, StandardCharsets.UTF_8));
-                    byteCount = inputStream.readNBytes(1);
-                } while (byteCount[0] != (byte) 4);
-                int data_length = Integer.parseInt(length.toString());
-                buffer = inputStream.readNBytes(data_length);
-                descriptor_byte = descriptor[0];
-            }
-        } catch (IOException ignored) {
+            beaconSocket = Discovery.openSender();
+            beaconTask = scheduler.scheduleWithFixedDelay(this::beacon, 0L, Discovery.BEACON_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            ServerLogger.SERVER_LOGGER.info("Advertising server to " + Discovery.GROUP + " every " + Discovery.BEACON_INTERVAL_MILLIS + " ms.");
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Server discovery beacon failed to start due to : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Multicasts port, protocol version and count of online clients, by which clients choose the least-loaded server.
+     */
+    private void beacon() {
+        try {
+            Discovery.send(beaconSocket, new Discovery.Beacon(new InetSocketAddress(serverSocket.getLocalPort()), Handshake.PROTOCOL_VERSION, clientRegistry.clients().size(), hostName));
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.fine("Server discovery beacon not sent due to : " + e.getMessage());
         }
-        ServerLogger.SERVER_LOGGER.finest("Message Type Read :" + descriptor_byte);
-        return (new ReadStream(descriptor_byte, buffer));
     }
 
-    synchronized void writeStream(byte descriptor, byte[] data, OutputStream outputStream) {
+    /**
+     * Joins the sharded deployment: opens the shared directory, listens for routed commands and lists clients of other nodes in UI.
+     */
+    private void startShard() {
+        if (SHARD_SECRET == null || SHARD_SECRET.isEmpty()) {
+            ServerLogger.SERVER_LOGGER.severe("Shard node " + SHARD_NODE + " needs a secret shared by every node, set with system property rda.shardSecret; running alone.");
+            return;
+        }
+        try {
+            final var routeHost = SHARD_HOST != null ? SHARD_HOST : InetAddress.getLocalHost().getHostAddress();
+            shardDirectory = new ShardDirectory(Path.of(SHARD_DIRECTORY), new ShardDirectory.Node(SHARD_NODE, new InetSocketAddress(routeHost, SHARD_PORT)));
+            shardRouter = new ShardRouter(this, shardDirectory, SHARD_SECRET);
+            shardRouter.start();
+            /* directory is read from disk, off the scheduler thread */
+            shardSyncScheduler = Executors.newSingleThreadScheduledExecutor(ThreadMode.PLATFORM.threadFactory("Shard-Sync-"));
+            shardSyncScheduler.scheduleWithFixedDelay(this::syncRemoteClients, 0L, SHARD_SYNC_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Shard node " + SHARD_NODE + " failed to start, running alone due to : " + e.getMessage(), e);
+            if (shardRouter != null)
+                shardRouter.stop();
+            shardDirectory = null;
+            shardRouter = null;
+        }
+    }
 
+    private void stopShard() {
+        shardSyncScheduler.shutdownNow();
         try {
-            byte[] buffer = createDataPacket(descriptor, data);
-            outputStream.write(buffer);
-            outputStream.flush();
-            ServerLogger.SERVER_LOGGER.finest("Message Type Written :" + descriptor);
-        } catch (IOException ignored) {
+            shardSyncScheduler.awaitTermination(SHARD_SYNC_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        shardRouter.stop();
+        shardDirectory.clear();
+        remoteClients.forEach(uiMainModel::setClientOffline);
+        remoteClients.clear();
+        shardDirectory = null;
+        shardRouter = null;
     }
 
-    public void writeStream(byte descriptor, String data, OutputStream outputStream) {
-        writeStream(descriptor, data.getBytes(StandardCharsets.UTF_8), outputStream);
+    /**
+     * Lists clients which came online on other nodes in UI and removes those which went offline, so commands for them are routed from this console.
+     */
+    private void syncRemoteClients() {
+        final var current = shardDirectory.remoteClients().keySet();
+        remoteClients.removeIf(descriptiveName -> {
+            if (current.contains(descriptiveName))
+                return false;
+            uiMainModel.setClientOffline(descriptiveName);
+            return true;
+        });
+        for (String descriptiveName : current)
+            if (remoteClients.add(descriptiveName))
+                uiMainModel.setClientOnline(descriptiveName);
     }
 
+    /**
+     * Queues a command another node routed here to a client of this node.
+     */
+    void deliverRouted(byte descriptor, byte[] data, String descriptiveName) {
+        final var client = clientRegistry.get(descriptiveName);
+        if (client == null) {
+            ServerLogger.SERVER_LOGGER.fine("Routed " + DescriptorCode.nameOf(descriptor) + " dropped, " + descriptiveName + " is not online on this node.");
+            return;
+        }
+        writeStream(descriptor, data, client);
+    }
+
+    /**
+     * Routes command for a client which is not online on this node to the node owning it, if this node is sharded.
+     */
+    private void route(byte descriptor, byte[] data, String descriptiveName) {
+        final var router = shardRouter;
+        if (router != null)
+            router.route(descriptor, data, descriptiveName);
+    }
+
+    /**
+     * Pings every client which negotiated {@link Handshake.Feature#HEARTBEAT}, with one frame encoded once for all, and removes those silent for {@link Heartbeat#TIMEOUT_MILLIS}.
+     */
+    private void heartbeat() {
+        final var ping = new SharedFrame(DescriptorCode.PING, Heartbeat.ping());
+        clientRegistry.forEach((socket, client) -> {
+            if (!client.getAgreement().uses(Handshake.Feature.HEARTBEAT))
+                return;
+            if (client.getHeartbeat().isExpired()) {
+                ServerLogger.SERVER_LOGGER.warning(client.getClientDescriptiveName() + " missed heartbeats for " + Heartbeat.TIMEOUT_MILLIS + " ms.");
+                removeClient(socket);
+            } else
+                writeStream(ping, Stream.of(client));
+        });
+    }
+
+    /**
+     * Runs task on the server's scheduler thread, which must not block.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduler.schedule(task, delay, unit);
+    }
+
+    /**
+     * Queues frame to client's own writer thread; returns without waiting for the socket unless a file chunk finds the queue full.
+     */
+    void writeStream(byte descriptor, byte[] data, Client client) {
+        if (client.getOutboundQueue().offer(descriptor, data))
+            ServerLogger.SERVER_LOGGER.finest("Message Type Queued :" + DescriptorCode.nameOf(descriptor));
+        else
+            ServerLogger.SERVER_LOGGER.finest("Message Type Dropped :" + DescriptorCode.nameOf(descriptor) + " for " + client.getClientDescriptiveName());
+    }
+
+    /**
+     * @return overflow policy of an outgoing frame when client's outbound queue is full
+     */
+    public static OutboundQueue.OverflowPolicy overflowPolicyOf(byte descriptor, byte[] data) {
+        return switch (descriptor) {
+            case DescriptorCode.FTP_EOR -> OutboundQueue.OverflowPolicy.BLOCK;
+            /* empty payload is a request for next screen update, a newer request supersedes older ones; non-empty payload is an input event */
+            case DescriptorCode.SCREEN_SHARING_ON_PROGRESS -> data.length == 0 ? OutboundQueue.OverflowPolicy.DROP_OLDEST : OutboundQueue.OverflowPolicy.NEVER_DROP;
+            /* frames of every agent behind a relay share the outer descriptor, so one of them must never be dropped in favour of another agent's */
+            case DescriptorCode.RELAY_FRAME, DescriptorCode.RELAY_CACHE_FILL, DescriptorCode.RELAY_CACHE_HIT ->
+                    overflowPolicyOf(RelayFrame.descriptorOf(data), data) == OutboundQueue.OverflowPolicy.BLOCK ? OutboundQueue.OverflowPolicy.BLOCK : OutboundQueue.OverflowPolicy.NEVER_DROP;
+            default -> OutboundQueue.OverflowPolicy.NEVER_DROP;
+        };
+    }
+
+    /**
+     * Screen sharing requests and input events leave on the control channel, ahead of chat and of file chunks queued before them.
+     * Frames to agents behind a relay leave on the channel of the frame they wrap.
+     *
+     * @return channel of an outgoing frame
+     */
+    public static FrameCodec.Channel channelOf(byte descriptor, byte[] data) {
+        return switch (descriptor) {
+            case DescriptorCode.CHAT_INITIATOR_CLIENT_OK, DescriptorCode.CHAT_INITIATOR_SERVER -> FrameCodec.Channel.CHAT;
+            case DescriptorCode.FTP_OFF_START, DescriptorCode.FTP_ON_NO_PROGRESS, DescriptorCode.FTP_ON_PROGRESS, DescriptorCode.FTP_EOR,
+                    DescriptorCode.FTP_EOF, DescriptorCode.FTP_ERROR, DescriptorCode.FTP_COMMIT, DescriptorCode.FTP_ABORT, DescriptorCode.FTP_RANGE -> FrameCodec.Channel.BULK;
+            case DescriptorCode.RELAY_FRAME, DescriptorCode.RELAY_CACHE_FILL, DescriptorCode.RELAY_CACHE_HIT -> channelOf(RelayFrame.descriptorOf(data), data);
+            default -> FrameCodec.Channel.CONTROL;
+        };
+    }
+
+    public void writeStream(byte descriptor, String data, Client client) {
+        writeStream(descriptor, data.getBytes(StandardCharsets.UTF_8), client);
+    }
+
+    /**
+     * Clients not online on this node are routed to their node in a sharded deployment.
+     */
     public void writeStream(byte descriptor, String data, List<String> selectedClients) {
-        selectedClients.forEach(selectedClient -> writeStream(descriptor, data.getBytes(StandardCharsets.UTF_8), selectedClient));
+        final byte[] dataBuffer = data.getBytes(StandardCharsets.UTF_8);
+        final var sharedFrame = new SharedFrame(descriptor, dataBuffer);
+        final List<Client> clients = new ArrayList<>(selectedClients.size());
+        for (String selectedClient : selectedClients) {
+            final var client = clientRegistry.get(selectedClient);
+            if (client != null)
+                clients.add(client);
+            else
+                route(descriptor, dataBuffer, selectedClient);
+        }
+        writeStream(sharedFrame, clients.stream());
+    }
+
+    /**
+     * Queues one frame to many clients: data is encoded once and the same packet handed to every client's writer, so no client waits for another's socket.
+     */
+    void writeStream(SharedFrame sharedFrame, Stream<Client> clients) {
+        final String name = DescriptorCode.nameOf(sharedFrame.descriptorByte());
+        clients.forEach(client -> {
+            if (client.getOutboundQueue().offer(sharedFrame))
+                ServerLogger.SERVER_LOGGER.finest("Message Type Queued :" + name);
+            else
+                ServerLogger.SERVER_LOGGER.finest("Message Type Dropped :" + name + " for " + client.getClientDescriptiveName());
+        });
     }
 
     public void writeStream(byte descriptor, String data, String selectedClient) {
@@ -159,142 +419,381 @@ public class MainServer {
     }
 
     public void writeStream(byte descriptor, byte[] data, String selectedClient) {
-        clientOnlineList.stream().filter(client -> client.getClientDescriptiveName().equals(selectedClient)).forEach(client -> writeStream(descriptor, data, client.getDataOutputStream()));
+        final var client = clientRegistry.get(selectedClient);
+        if (client != null)
+            writeStream(descriptor, data, client);
+        else
+            route(descriptor, data, selectedClient);
     }
 
     /**
-     * @param descriptorByte headerByte [One among DescriptorCode class]
-     * @param dataBuffer     Actual Data in byteArray
-     * @return Data Packet Byte Array [Start Byte (1B) + Descriptor Byte (1B) + ByteArray of String Representation of Data Length (>=1B)+ Data (>=0B) ]
+     * @param group group set with {@link #setClientGroup(String, String)}
      */
-    private byte[] createDataPacket(byte descriptorByte, byte[] dataBuffer) {
-        Objects.requireNonNull(dataBuffer);
-        byte[] packet;
-        var STX = new byte[]{2};
-        var descriptor = new byte[]{descriptorByte};
-        var byteCount = String.valueOf(dataBuffer.length).getBytes(StandardCharsets.UTF_8);
-        byte[] EOT = new byte[]{4};
-        packet = new byte[STX.length + descriptor.length + byteCount.length + EOT.length + dataBuffer.length];
-        System.arraycopy(STX, 0, packet, 0, STX.length);
-        System.arraycopy(descriptor, 0, packet, STX.length, descriptor.length);
-        System.arraycopy(byteCount, 0, packet, STX.length + descriptor.length, byteCount.length);
-        System.arraycopy(EOT, 0, packet, STX.length + descriptor.length + byteCount.length, EOT.length);
-        System.arraycopy(dataBuffer, 0, packet, STX.length + descriptor.length + byteCount.length + EOT.length, dataBuffer.length);
-        return Objects.requireNonNull(packet);
-    }
-
-    public void setClientConfig(Socket socket, DataOutputStream dataOutputStream) {
-
-        socketClientHashtable.computeIfAbsent(socket, clientSocket -> {
-            Client newClient = new Client(dataOutputStream);
-            clientOnlineList.add(newClient);
-            return newClient;
-        });
+    public void writeStreamToGroup(byte descriptor, String data, String group) {
+        writeStream(new SharedFrame(descriptor, data.getBytes(StandardCharsets.UTF_8)), clientRegistry.clients(group).stream());
+    }
 
+    /**
+     * @param selectedClient descriptive name of client
+     * @param group          name of group, null to leave every group
+     */
+    public void setClientGroup(String selectedClient, String group) {
+        final var client = clientRegistry.get(selectedClient);
+        if (client != null)
+            clientRegistry.setGroup(client, group);
     }
 
-    void generateIdAndUpdateClientConfig(Socket socket, byte[] dataBuffer) {
+    /**
+     * @param channel channel of socket in blocking mode, written by client's own writer thread
+     */
+    public Client setClientConfig(Socket socket, GatheringByteChannel channel) {
 
-        socketClientHashtable.computeIfAbsent(socket, clientSocket -> {
-            try {
-                throw new ClientConfigurationFailedException("Generating unique client id failed as Client connection was not setup.");
-            } catch (ClientConfigurationFailedException e) {
-                ServerLogger.SERVER_LOGGER.log(Level.SEVERE, e.getMessage(), e);
-            }
-            return null;
+        return clientRegistry.register(socket, id -> {
+            final var outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, MainServer::overflowPolicyOf, MainServer::channelOf);
+            outboundQueue.startWriter(channel, COALESCE_WINDOW_NANOS, WRITER_THREAD_FACTORY);
+            return new Client(id, socket, outboundQueue);
         });
 
-        socketClientHashtable.computeIfPresent(socket, (clientSocket, client) -> {
-
-            String regex = "\n";
-            String[] subBuffers = new String(dataBuffer, StandardCharsets.UTF_8).split(regex);
-            var name = subBuffers[0];
-            var platform = subBuffers[1];
-            final String encodedId = new Hashids("", 8).encode(++clientId);
-            client.clientName = name;
-            client.clientId = encodedId;
-            client.clientPlatformName = platform;
-            final String descriptiveName = client.getClientDescriptiveName();
-            final DataOutputStream dataOutputStream = client.getDataOutputStream();
-            uiMainModel.setClientOnline(descriptiveName);
-            ServerLogger.SERVER_LOGGER.info(descriptiveName + " is Online under platform " + client.getClientPlatformName());
-            writeStream(DescriptorCode.CLIENT_ONLINE, ("#" + encodedId).getBytes(StandardCharsets.UTF_8), dataOutputStream);
-            return client;
+    }
 
-        });
+    /**
+     * @param outboundQueue queue drained by the caller, e.g. an event loop of non-blocking transport
+     */
+    Client setClientConfig(Socket socket, OutboundQueue outboundQueue) {
+
+        return clientRegistry.register(socket, id -> new Client(id, socket, outboundQueue));
+
+    }
+
+    void generateIdAndUpdateClientConfig(Socket socket, String dataStringBuffer) {
+
+        final var client = clientRegistry.get(socket);
+        if (client == null) {
+            final var e = new ClientConfigurationFailedException("Generating unique client id failed as Client connection was not setup.");
+            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            return;
+        }
+
+        String regex = "\n";
+        String[] subBuffers = dataStringBuffer.split(regex);
+        var name = subBuffers[0];
+        var platform = subBuffers[1];
+        final var versioned = Handshake.isVersioned(subBuffers, 2);
+        final var offer = versioned ? Handshake.Offer.decode(subBuffers, 2) : null;
+        final var agreement = versioned ? Handshake.negotiate(Handshake.Offer.local(), offer) : Handshake.Agreement.LEGACY;
+        final var resumption = agreement.uses(Handshake.Feature.RESUMPTION);
+        final String presentedToken = resumption ? Handshake.decodeSession(subBuffers, 2) : null;
+        final var previous = presentedToken == null ? null : clientRegistry.claim(presentedToken);
+        if (previous != null) {
+            /* previous connection may be half-open still, its heartbeat not yet expired */
+            if (clientRegistry.get(previous.socket) == previous)
+                removeClient(previous.socket);
+            clientRegistry.reassign(client, previous.getId());
+        }
+        final String encodedId = new Hashids("", 8).encode(client.getId());
+        client.setIdentity(name, encodedId, platform);
+        client.offer = offer;
+        client.agreement = agreement;
+        client.sessionToken = resumption ? newSessionToken() : null;
+        clientRegistry.online(client);
+        final String descriptiveName = client.getClientDescriptiveName();
+        if (shardDirectory != null)
+            shardDirectory.publish(descriptiveName);
+        uiMainModel.setClientOnline(descriptiveName);
+        ServerLogger.SERVER_LOGGER.info(descriptiveName + (previous != null ? " resumed its session" : " is Online") + " under platform " + client.getClientPlatformName());
+        ServerLogger.SERVER_LOGGER.finest(descriptiveName + " negotiated " + agreement);
+        /*
+         * reply goes in the format client spoke in; only a client which took part in the handshake understands the extra lines...
+         */
+        final var reply = "#" + encodedId + (versioned ? "\n" + agreement.encode() : "") + (resumption ? "\n" + Handshake.encodeSession(client.sessionToken) : "")
+                + (agreement.uses(Handshake.Feature.DATA_STREAMS) && DATA_STREAMS > 0 && !client.isRelayed() ? "\n" + Handshake.encodeDataStreams(DATA_STREAMS) : "");
+        writeStream(DescriptorCode.CLIENT_ONLINE, reply.getBytes(StandardCharsets.UTF_8), client);
+        client.outboundQueue.setAgreement(agreement);
+        if (previous != null)
+            resumeClient(client, previous);
 
     }
 
     void removeClient(Socket socket) {
 
-        socketClientHashtable.computeIfAbsent(socket, clientSocket -> {
-            try {
-                throw new ClientConfigurationFailedException("Client disconnect failed as Client connection was not setup.");
-            } catch (ClientConfigurationFailedException e) {
-                ServerLogger.SERVER_LOGGER.log(Level.SEVERE, e.getMessage(), e);
-            }
-            return null;
-        });
-        socketClientHashtable.computeIfPresent(socket, (clientSocket, client) -> {
-            final String descriptiveClientName = client.getClientDescriptiveName();
+        final var client = clientRegistry.remove(socket);
+        if (client == null) {
+            final var e = new ClientConfigurationFailedException("Client disconnect failed as Client connection was not setup.");
+            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            return;
+        }
+        final String descriptiveClientName = client.getClientDescriptiveName();
+        ServerLogger.SERVER_LOGGER.severe(descriptiveClientName + " is Offline.");
+        uiMainModel.setClientOffline(descriptiveClientName);
+        final var directory = shardDirectory;
+        if (directory != null && descriptiveClientName != null)
+            directory.unpublish(descriptiveClientName);
+        client.getOutboundQueue().close();
+        for (Client dataStream : client.dataStreams)
+            detachDataStream(client, dataStream);
+        final String token = client.sessionToken;
+        if (token != null)
+            schedule(() -> clientRegistry.expire(token, client), SESSION_RETENTION_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Cannot disconnect " + descriptiveClientName + " due to: " + ex.getMessage(), ex);
+        }
+
+    }
+
+    /**
+     * Turns a freshly accepted connection into a data stream of the online client whose session token it presents; it leaves the registry, it was never online.
+     *
+     * @return client owning the data stream, null if token is unknown and the connection is closed
+     */
+    Client attachDataStream(Socket socket, String token) {
+        final var dataStream = clientRegistry.remove(socket);
+        final var owner = token.isBlank() ? null : clientRegistry.session(token.trim());
+        if (dataStream == null || owner == null) {
+            ServerLogger.SERVER_LOGGER.warning("Data stream with unknown session refused.");
+            if (dataStream != null)
+                dataStream.getOutboundQueue().close();
             try {
-                ServerLogger.SERVER_LOGGER.severe(descriptiveClientName + " is Offline.");
-                uiMainModel.setClientOffline(getClient(socket).getClientDescriptiveName());
                 socket.close();
-                clientOnlineList.remove(client);
-                return null;
-            } catch (IOException ex) {
-                ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Cannot disconnect " + client.getClientDescriptiveName() + " due to: " + ex.getMessage(), ex);
-                return client;
+            } catch (IOException ignored) {
             }
-        });
+            return null;
+        }
+        dataStream.agreement = owner.agreement;
+        dataStream.outboundQueue.setAgreement(owner.agreement);
+        owner.dataStreams.add(dataStream);
+        ServerLogger.SERVER_LOGGER.info(owner.getClientDescriptiveName() + " attached data stream " + owner.dataStreams.size() + ".");
+        return owner;
+    }
+
+    /**
+     * Turns a freshly accepted connection into the link of a relay, whose agents become clients; it leaves the registry, it was never online.
+     *
+     * The link runs the agreement negotiated with the offer of RELAY_ATTACH, which is sent back to relay in a RELAY_ATTACH frame of its own.
+     *
+     * @param dataStringBuffer data bytes of file chunks relay caches, then its handshake offer, as sent in RELAY_ATTACH
+     * @return link of relay, null if the connection was not set up
+     */
+    RelayLink attachRelay(Socket socket, String dataStringBuffer) {
+        final var link = clientRegistry.remove(socket);
+        if (link == null)
+            return null;
+        final String[] subBuffers = dataStringBuffer.split("\n");
+        long capacity;
+        try {
+            capacity = Math.max(0L, Long.parseLong(subBuffers[0].trim()));
+        } catch (NumberFormatException e) {
+            capacity = 0L;
+        }
+        if (Handshake.isVersioned(subBuffers, 1)) {
+            link.offer = Handshake.Offer.decode(subBuffers, 1);
+            link.agreement = Handshake.negotiate(Handshake.Offer.local(), link.offer);
+            /* reply goes in the format relay spoke in, like that of CLIENT_ONLINE */
+            writeStream(DescriptorCode.RELAY_ATTACH, link.agreement.encode().getBytes(StandardCharsets.UTF_8), link);
+            link.outboundQueue.setAgreement(link.agreement);
+        }
+        ServerLogger.SERVER_LOGGER.info("Relay at " + socket.getRemoteSocketAddress() + " attached, caching " + (capacity >> 20) + " MB of file chunks.");
+        ServerLogger.SERVER_LOGGER.finest("Relay at " + socket.getRemoteSocketAddress() + " negotiated " + link.agreement);
+        return new RelayLink(this, uiMainModel, link, capacity);
+    }
 
+    /**
+     * Closes a data stream; ranges of file in flight on it are sent again on the client's connection.
+     */
+    void detachDataStream(Client owner, Client dataStream) {
+        if (!owner.dataStreams.remove(dataStream))
+            return;
+        dataStream.getOutboundQueue().close();
+        try {
+            dataStream.socket.close();
+        } catch (IOException ignored) {
+        }
+        if (owner.fileSender != null)
+            owner.fileSender.dataStreamLost(dataStream);
+    }
+
+    /**
+     * Hands what a lost connection left to the client resuming its session: group, queued contents and the interrupted file transfer, which restarts at once.
+     */
+    private void resumeClient(Client client, Client previous) {
+        if (previous.getGroup() != null)
+            clientRegistry.setGroup(client, previous.getGroup());
+        final var fileSender = client.fileSender;
+        if (fileSender == null)
+            return;
+        fileSender.resume(previous.fileSender);
+        ListInnerContents.InnerContents innerContents;
+        while ((innerContents = previous.getFTPChannelFirstInnerContentsAndRemove()) != null)
+            client.innerContentsList.add(innerContents);
+        final byte start = fileSender.getResumeStart();
+        if (start >= 0)
+            writeStream(FTP_OFF_START, new byte[]{start}, client);
+        else if (!client.innerContentsList.isEmpty())
+            writeStream(FTP_OFF_START, new byte[]{1}, client);
+    }
+
+    private static String newSessionToken() {
+        final byte[] token = new byte[16];
+        SESSION_TOKEN_RANDOM.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
     }
 
     public void addFTPChannelInnerContents(List<String> selectedClients, Collection<ListInnerContents.InnerContents> innerContentsCollection) {
-        selectedClients.parallelStream().forEach(clientName -> clientOnlineList.stream().filter(client -> client.getClientDescriptiveName().equals(clientName)).forEach(client -> {
+        /* files are read from this node's disk, they are not routed */
+        if (shardDirectory != null && selectedClients.stream().anyMatch(selectedClient -> clientRegistry.get(selectedClient) == null))
+            ServerLogger.SERVER_LOGGER.warning("Files can be sent to clients of this node only, clients of other nodes are skipped.");
+        selectedClients.stream().map(clientRegistry::get).filter(Objects::nonNull).forEach(client -> {
             client.addFTPChannelInnerContents(innerContentsCollection);
             if (!client.isFTPScheduled())
-                writeStream(FTP_OFF_START, new byte[]{1}, client.getDataOutputStream());
+                writeStream(FTP_OFF_START, new byte[]{1}, client);
             if (innerContentsCollection.size() != 0)
                 ServerLogger.SERVER_LOGGER.info("Selected files are added to send-queue.");
-        }));
+        });
     }
 
     public Client getClient(Socket socket) {
-        return socketClientHashtable.get(socket);
+        return clientRegistry.get(socket);
+    }
+
+    /**
+     * @param id numeric client id, the one encoded into the id shown to the client
+     */
+    public Client getClient(long id) {
+        return clientRegistry.get(id);
     }
 
     public static class Client {
 
-        private final DataOutputStream dataOutputStream;
+        private final Socket socket;
+        private final OutboundQueue outboundQueue;
+        private final ReceiveWindow receiveWindow;
+        private final Heartbeat heartbeat = new Heartbeat();
         private final AtomicBoolean ftpScheduled = new AtomicBoolean(false);
-        private final List<ListInnerContents.InnerContents> innerContentsList = new ArrayList<>();
-        private String clientName = "Unknown";
-        private String clientId = "Unknown";
-        private String clientPlatformName = "Unknown";
+        private final Queue<ListInnerContents.InnerContents> innerContentsList = new ConcurrentLinkedQueue<>();
+        private volatile String clientPlatformName = "Unknown";
+        private volatile Platform platform = Platform.OTHERS;
+        private volatile String descriptiveName = "Unknown (#Unknown)";
+        private volatile String group;
+        private volatile Handshake.Agreement agreement = Handshake.Agreement.LEGACY;
+        private volatile Handshake.Offer offer;
+        private volatile long id;
+        private volatile String sessionToken;
+        private FileSender fileSender;
+        private final List<Client> dataStreams = new CopyOnWriteArrayList<>();
+
+        Client(long id, Socket socket, OutboundQueue outboundQueue) {
+            this.id = id;
+            this.socket = socket;
+            this.outboundQueue = outboundQueue;
+            this.receiveWindow = new ReceiveWindow(outboundQueue);
+        }
 
-        Client(DataOutputStream dataOutputStream) {
-            this.dataOutputStream = dataOutputStream;
+        /**
+         * @return numeric id, unique while the server runs
+         */
+        public long getId() {
+            return id;
         }
 
-        public String getClientPlatformName() {
-            return clientPlatformName;
+        void setId(long id) {
+            this.id = id;
         }
 
-        public Platform getPlatform() {
+        Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * @return true if client is an agent connected through a relay, see {@link RelayLink}
+         */
+        public boolean isRelayed() {
+            return socket instanceof RelayLink.AgentSocket;
+        }
+
+        /**
+         * @return token client resumes its session with, null unless {@link Handshake.Feature#RESUMPTION} is agreed
+         */
+        public String getSessionToken() {
+            return sessionToken;
+        }
+
+        /**
+         * @return connections attached by client for file data, each with its own queue
+         */
+        public List<Client> getDataStreams() {
+            return dataStreams;
+        }
+
+        /**
+         * @param fileSender sender of files to client, whose state is handed over when session is resumed
+         */
+        void setFileSender(FileSender fileSender) {
+            this.fileSender = fileSender;
+        }
+
+        /**
+         * Sets what client told in CLIENT_ONLINE handshake; names are built here once rather than on every lookup.
+         */
+        void setIdentity(String clientName, String clientId, String clientPlatformName) {
+            this.clientPlatformName = clientPlatformName;
             final var windows = clientPlatformName.contains("Windows");
             final var linux = clientPlatformName.contains("Linux");
             final var macOs = clientPlatformName.contains("Mac OS");
-            return windows ? Platform.WINDOWS : linux ? Platform.LINUX : macOs ? Platform.MAC_OS : Platform.OTHERS;
+            this.platform = windows ? Platform.WINDOWS : linux ? Platform.LINUX : macOs ? Platform.MAC_OS : Platform.OTHERS;
+            this.descriptiveName = clientName + " (#" + clientId + ")";
+        }
+
+        public String getClientPlatformName() {
+            return clientPlatformName;
+        }
+
+        public Platform getPlatform() {
+            return platform;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        void setGroup(String group) {
+            this.group = group;
         }
 
-        public DataOutputStream getDataOutputStream() {
-            return dataOutputStream;
+        public OutboundQueue getOutboundQueue() {
+            return outboundQueue;
+        }
+
+        /**
+         * @return credit handed back to client for frames it has sent; credit left to send to client is on {@link #getOutboundQueue()}
+         */
+        public ReceiveWindow getReceiveWindow() {
+            return receiveWindow;
+        }
+
+        /**
+         * @return liveness and smoothed round-trip time of client, measured once {@link Handshake.Feature#HEARTBEAT} has been negotiated
+         */
+        public Heartbeat getHeartbeat() {
+            return heartbeat;
+        }
+
+        /**
+         * @return settings negotiated in CLIENT_ONLINE handshake, {@link Handshake.Agreement#LEGACY} until then
+         */
+        public Handshake.Agreement getAgreement() {
+            return agreement;
+        }
+
+        /**
+         * @return capabilities client advertised in CLIENT_ONLINE handshake, null for a client which predates the handshake
+         */
+        public Handshake.Offer getOffer() {
+            return offer;
         }
 
         public String getClientDescriptiveName() {
-            return clientName + " (#" + clientId + ")";
+            return descriptiveName;
         }
 
         public void addFTPChannelInnerContents(Collection<ListInnerContents.InnerContents> innerContentsCollection) {
@@ -310,10 +809,7 @@ public class MainServer {
         }
 
         public ListInnerContents.InnerContents getFTPChannelFirstInnerContentsAndRemove() {
-            if (innerContentsList.size() == 0) {
-                return null;
-            }
-            return innerContentsList.remove(0);
+            return innerContentsList.poll();
         }
 
         enum Platform {
@@ -322,33 +818,8 @@ public class MainServer {
 
     }
 
-    record ReadStream(byte descriptorByte, byte[] dataBuffer) {
-    }
-
-    public static final class DescriptorCode {
-
-        public static final byte CONNECTION_LOST = (byte) 0;
-        public static final byte CHAT_INITIATOR_SERVER = (byte) 122;
-        public static final byte FTP_OFF_START = (byte) 220;
-        public static final byte REMOTE_SOFT_INSTALLATION = (byte) 65;
-        public static final byte CLIENT_CONTROL_OPERATIONS_REQ = (byte) 129;//-127
-        public static final byte CLIENT_SHUTDOWN = (byte) 130;
-        public static final byte CLIENT_RESTART = (byte) 131;
-        public static final byte CLIENT_LOGOFF = (byte) 132;
-        public static final byte SCREEN_SHARING_ON_NO_PROGRESS = (byte) 168;
-        public static final byte SCREEN_SHARING_ON_PROGRESS = (byte) 169;
-        public static final byte SCREEN_SHARING_ABORT = (byte) 170;
-        static final byte CLIENT_ONLINE = (byte) 1;
-        static final byte CHAT_INITIATOR_CLIENT = (byte) 120;
-        static final byte CHAT_INITIATOR_CLIENT_OK = (byte) 121;
-        static final byte CHAT_INITIATOR_SERVER_OK = (byte) 123;
-        static final byte FTP_ON_NO_PROGRESS = (byte) 225;
-        static final byte FTP_ON_PROGRESS = (byte) 125;
-        static final byte FTP_EOR = (byte) 128;
-        static final byte FTP_EOF = (byte) 64;
-        static final byte FTP_ERROR = (byte) 32;
-        static final byte FTP_COMMIT = (byte) 226;
-        static final byte FTP_ABORT = (byte) 227;
+    enum Transport {
+        BLOCKING, NIO
     }
 
     static class ClientConfigurationFailedException extends Exception {
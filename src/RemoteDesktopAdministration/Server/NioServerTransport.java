@@ -0,0 +1,336 @@
+package RemoteDesktopAdministration.Server;
+
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameDecoder;
+import RemoteDesktopAdministration.Protocol.FrameWriter;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+import RemoteDesktopAdministration.Server.Logger.ServerLogger;
+import RemoteDesktopAdministration.Server.UI.PrimaryModel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Non-blocking transport: the listener thread accepts on a {@link ServerSocketChannel} and hands every client channel to one of a small fixed pool of event loops, each multiplexing its channels with a {@link Selector}.
+ * <p>
+ * Frames are decoded incrementally from a direct buffer per connection and dispatched through {@link ClientHandler#descriptorActionPerformed(ReadStream)} on the event loop owning the connection, so handlers of one client still run one frame at a time.
+ * An event loop must never wait, so frames whose handlers may block on files, digests or screen decoding, see {@link #mayBlock(byte)}, are handed to a worker thread instead:
+ * from then on every frame of the connection joins its backlog, run in arrival order by one worker at a time, and the connection is not read until the backlog is done.
+ * Thread count does not grow with the number of clients.
+ */
+class NioServerTransport {
+
+    static final int DEFAULT_EVENT_LOOPS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+    private static final long SHUTDOWN_GRACE_MILLIS = 5000L;
+    private static final ExecutorService WORKERS = ThreadMode.CONFIGURED.newPerTaskExecutor("NIO-Worker-");
+    private final MainServer mainServer;
+    private final PrimaryModel primaryModel;
+    private final EventLoop[] eventLoops;
+    private int nextEventLoop = 0;
+
+    NioServerTransport(MainServer mainServer, PrimaryModel primaryModel, int eventLoopCount) throws IOException {
+        this.mainServer = mainServer;
+        this.primaryModel = primaryModel;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++)
+            eventLoops[i] = new EventLoop(i);
+    }
+
+    /**
+     * Event loops own the writing side, so a file chunk never waits for room in the queue: it would stall every client of the loop.
+     * File transfer is already stop-and-wait, one chunk in flight per client, which keeps the queue bounded.
+     */
+    private static OutboundQueue.OverflowPolicy overflowPolicyOf(byte descriptor, byte[] data) {
+        final var policy = MainServer.overflowPolicyOf(descriptor, data);
+        return policy == OutboundQueue.OverflowPolicy.BLOCK ? OutboundQueue.OverflowPolicy.NEVER_DROP : policy;
+    }
+
+    /**
+     * @return true if handler of descriptor may read files, digest data, decode screen frames or touch the shard directory, as adding and removing clients does, and must stay off the event loop
+     */
+    private static boolean mayBlock(byte descriptor) {
+        return switch (descriptor) {
+            case DescriptorCode.CLIENT_ONLINE, DescriptorCode.CONNECTION_LOST, DescriptorCode.FTP_ON_NO_PROGRESS, DescriptorCode.FTP_ON_PROGRESS, DescriptorCode.FTP_RANGE_ACK, DescriptorCode.FTP_COMMIT,
+                    DescriptorCode.FTP_ABORT, DescriptorCode.FTP_ERROR, DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS, DescriptorCode.SCREEN_SHARING_ON_PROGRESS,
+                    DescriptorCode.RELAY_OPEN, DescriptorCode.RELAY_FRAME, DescriptorCode.RELAY_CLOSE -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Accepts clients until serverSocketChannel is closed.
+     *
+     * @param serverSocketChannel bound channel in blocking mode
+     * @param acceptRateLimiter   paces accepts
+     */
+    void listen(ServerSocketChannel serverSocketChannel, AcceptRateLimiter acceptRateLimiter) {
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.start();
+        ServerLogger.SERVER_LOGGER.info("Listening new Clients on " + eventLoops.length + " event loops... ");
+        while (serverSocketChannel.isOpen()) {
+            try {
+                acceptRateLimiter.acquire();
+                final SocketChannel acceptedClient = serverSocketChannel.accept();
+                acceptedClient.configureBlocking(false);
+                eventLoops[nextEventLoop].register(acceptedClient);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Listening new Clients failed", e);
+            }
+        }
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.shutdown();
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingReads = new ConcurrentLinkedQueue<>();
+        private volatile boolean shuttingDown = false;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "NIO-Event-Loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void requestRead(Connection connection) {
+            pendingReads.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Stops once clients have received their CONNECTION_LOST frames and disconnected, or after a grace period.
+         */
+        void shutdown() {
+            shuttingDown = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long shutdownDeadline = Long.MAX_VALUE;
+            while (true) {
+                try {
+                    selector.select(shuttingDown ? 100L : 0L);
+                } catch (IOException e) {
+                    ServerLogger.SERVER_LOGGER.log(Level.SEVERE, thread.getName() + " failed to select", e);
+                    break;
+                }
+                for (var iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    final var connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable())
+                        connection.read();
+                    if (key.isValid() && key.isWritable())
+                        connection.write();
+                }
+                registerPending();
+                writePending();
+                readPending();
+                if (shuttingDown) {
+                    if (shutdownDeadline == Long.MAX_VALUE)
+                        shutdownDeadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MILLIS;
+                    if (selector.keys().isEmpty() || System.currentTimeMillis() > shutdownDeadline)
+                        break;
+                }
+            }
+            selector.keys().forEach(key -> ((Connection) key.attachment()).connectionLost());
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                try {
+                    final var outboundQueue = new OutboundQueue(MainServer.OUTBOUND_QUEUE_CAPACITY, NioServerTransport::overflowPolicyOf, MainServer::channelOf);
+                    final var clientHandler = new ClientHandler(channel.socket(), outboundQueue, mainServer, primaryModel);
+                    final var key = channel.register(selector, SelectionKey.OP_READ);
+                    final var connection = new Connection(this, channel, key, outboundQueue, clientHandler);
+                    connection.frameDecoder.setReceiveWindow(clientHandler.getClient().getReceiveWindow());
+                    key.attach(connection);
+                    outboundQueue.setFrameListener(connection::requestWrite);
+                } catch (IOException | MainServer.ClientConfigurationFailedException e) {
+                    ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Listening new Clients failed", e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads connections again whose backlog is done.
+         */
+        private void readPending() {
+            Connection connection;
+            while ((connection = pendingReads.poll()) != null) {
+                if (connection.key.isValid() && connection.backlogSize.get() == 0)
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void writePending() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.writeRequested.set(false);
+                if (connection.key.isValid())
+                    connection.write();
+            }
+        }
+    }
+
+    private static final class Connection {
+
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final OutboundQueue outboundQueue;
+        private final ClientHandler clientHandler;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final FrameDecoder frameDecoder = new FrameDecoder();
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+        /**
+         * frames waiting for a worker, with their data copied as the decoder reuses it
+         */
+        private final Queue<ReadStream> backlog = new ConcurrentLinkedQueue<>();
+        /**
+         * frames in backlog and the one a worker runs; a worker drains backlog while it is above 0
+         */
+        private final AtomicInteger backlogSize = new AtomicInteger();
+        private final FrameWriter frameWriter;
+        private boolean lost = false;
+
+        Connection(EventLoop eventLoop, SocketChannel channel, SelectionKey key, OutboundQueue outboundQueue, ClientHandler clientHandler) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.key = key;
+            this.outboundQueue = outboundQueue;
+            this.clientHandler = clientHandler;
+            this.frameWriter = new FrameWriter(channel);
+        }
+
+        /**
+         * May be called from any thread whenever a frame is queued.
+         */
+        void requestWrite() {
+            if (writeRequested.compareAndSet(false, true))
+                eventLoop.requestWrite(this);
+        }
+
+        void read() {
+            try {
+                final int count = channel.read(readBuffer);
+                if (count < 0) {
+                    connectionLost();
+                    return;
+                }
+                readBuffer.flip();
+                frameDecoder.decode(readBuffer, this::dispatch);
+                readBuffer.clear();
+            } catch (IOException e) {
+                connectionLost();
+            }
+        }
+
+        /**
+         * Runs handler of frame on the event loop, or queues frame to the backlog if it may block or other frames wait there, and stops reading until they are done.
+         */
+        private void dispatch(ReadStream stream) {
+            if (backlogSize.get() == 0 && !mayBlock(stream.descriptorByte())) {
+                clientHandler.descriptorActionPerformed(stream);
+                return;
+            }
+            backlog.add(new ReadStream(stream.descriptorByte(), Arrays.copyOf(stream.dataBuffer(), stream.dataLength())));
+            if (backlogSize.getAndIncrement() == 0) {
+                if (key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                WORKERS.execute(this::drainBacklog);
+            }
+        }
+
+        private void drainBacklog() {
+            do {
+                final var stream = backlog.poll();
+                try {
+                    clientHandler.descriptorActionPerformed(stream);
+                } catch (RuntimeException e) {
+                    ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Frame handler failed", e);
+                }
+                if (stream.descriptorByte() == DescriptorCode.CONNECTION_LOST)
+                    close();
+            } while (backlogSize.decrementAndGet() > 0);
+            eventLoop.requestRead(this);
+        }
+
+        void write() {
+            try {
+                while (!frameWriter.isEmpty() || outboundQueue.pollTo(frameWriter)) {
+                    if (!frameWriter.write()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException | CancelledKeyException e) {
+                outboundQueue.fail(e instanceof IOException ? (IOException) e : new ClosedChannelException());
+                connectionLost();
+            }
+        }
+
+        /**
+         * Stops reading at once; the channel is closed by the worker once the handler of CONNECTION_LOST, and of every frame before it, has run.
+         */
+        void connectionLost() {
+            if (lost)
+                return;
+            lost = true;
+            key.cancel();
+            dispatch(new ReadStream(DescriptorCode.CONNECTION_LOST, new byte[0]));
+        }
+
+        private void close() {
+            outboundQueue.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package RemoteDesktopAdministration.Server;
+
+import RemoteDesktopAdministration.Protocol.ChunkCache;
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.RelayFrame;
+import RemoteDesktopAdministration.Protocol.SharedFrame;
+import RemoteDesktopAdministration.Server.Logger.ServerLogger;
+import RemoteDesktopAdministration.Server.UI.PrimaryModel;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Server end of a relay's connection, see {@link RemoteDesktopAdministration.Relay.Relay}: every agent connected to the relay is a client of its own here,
+ * with an {@link AgentSocket} standing for its connection and an {@link AgentQueue} wrapping its frames into {@link DescriptorCode#RELAY_FRAME} frames on the relay's connection.
+ * Frames of agents are handled on the thread reading the relay's connection, one at a time as on a connection of their own.
+ * <p>
+ * File chunks are sent to the relay once: a chunk the relay has cached leaves as its digest, see {@link ChunkCache}. Flow control applies between relay and agents only.
+ */
+final class RelayLink {
+
+    /**
+     * frames with less data are never cached, their digest would save little
+     */
+    private static final int MIN_CACHED_LENGTH = 64 * 1024;
+    private final MainServer mainServer;
+    private final PrimaryModel primaryModel;
+    private final MainServer.Client link;
+    private final ChunkCache chunkCache;
+    private final Map<Integer, ClientHandler> agents = new ConcurrentHashMap<>();
+
+    /**
+     * @param link            the relay's connection, no longer a client
+     * @param cacheCapacity   data bytes relay caches, 0 if it caches none
+     */
+    RelayLink(MainServer mainServer, PrimaryModel primaryModel, MainServer.Client link, long cacheCapacity) {
+        this.mainServer = mainServer;
+        this.primaryModel = primaryModel;
+        this.link = link;
+        this.chunkCache = cacheCapacity > 0L ? new ChunkCache(cacheCapacity, true) : null;
+    }
+
+    /**
+     * @param stream RELAY_OPEN, RELAY_FRAME or RELAY_CLOSE frame read from relay
+     */
+    void frameReceived(ReadStream stream) {
+        switch (stream.descriptorByte()) {
+            case DescriptorCode.RELAY_OPEN -> open(RelayFrame.agentIdOf(stream), new String(stream.dataBuffer(), Integer.BYTES, stream.dataLength() - Integer.BYTES, StandardCharsets.UTF_8));
+            case DescriptorCode.RELAY_FRAME -> {
+                final var frame = RelayFrame.decode(stream);
+                final var clientHandler = agents.get(frame.agentId());
+                if (clientHandler != null)
+                    clientHandler.descriptorActionPerformed(frame.toReadStream());
+            }
+            case DescriptorCode.RELAY_CLOSE -> agentLost(RelayFrame.agentIdOf(stream));
+        }
+    }
+
+    private void open(int agentId, String address) {
+        try {
+            agents.put(agentId, new ClientHandler(new AgentSocket(agentId), new AgentQueue(agentId), mainServer, primaryModel));
+            ServerLogger.SERVER_LOGGER.fine("Agent " + agentId + " at " + address + " connected through relay.");
+        } catch (MainServer.ClientConfigurationFailedException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.SEVERE, "Relayed agent " + agentId + " at " + address + " refused", e);
+            send(DescriptorCode.RELAY_CLOSE, RelayFrame.encode(agentId, new byte[0]));
+        }
+    }
+
+    private void agentLost(int agentId) {
+        final var clientHandler = agents.remove(agentId);
+        if (clientHandler != null)
+            clientHandler.descriptorActionPerformed(new ReadStream(DescriptorCode.CONNECTION_LOST, new byte[0]));
+    }
+
+    /**
+     * Takes every agent of the relay for lost and closes the relay's connection.
+     */
+    void close() {
+        link.getOutboundQueue().close();
+        agents.keySet().forEach(this::agentLost);
+        try {
+            link.getSocket().close();
+        } catch (IOException ignored) {
+        }
+        ServerLogger.SERVER_LOGGER.warning("Relay connection closed.");
+    }
+
+    private boolean send(byte descriptor, byte[] data) {
+        return link.getOutboundQueue().offer(descriptor, data);
+    }
+
+    /**
+     * Sends a frame to an agent; a file chunk goes as its digest once the relay has it, the mirror cache updated in the order frames leave.
+     */
+    private boolean send(int agentId, byte descriptor, byte[] data) {
+        if (chunkCache == null || descriptor != DescriptorCode.FTP_EOR || data.length < MIN_CACHED_LENGTH)
+            return send(DescriptorCode.RELAY_FRAME, new RelayFrame(agentId, descriptor, data).encode());
+        final byte[] digest = ChunkCache.digest(data);
+        synchronized (chunkCache) {
+            if (chunkCache.contains(digest))
+                return send(DescriptorCode.RELAY_CACHE_HIT, new RelayFrame(agentId, descriptor, digest).encode());
+            chunkCache.put(digest, data);
+            return send(DescriptorCode.RELAY_CACHE_FILL, new RelayFrame(agentId, descriptor, data).encode());
+        }
+    }
+
+    /**
+     * Connection of an agent behind the relay, the key of its client; closing it asks relay to close the agent's connection.
+     */
+    final class AgentSocket extends Socket {
+
+        private final int agentId;
+
+        private AgentSocket(int agentId) {
+            this.agentId = agentId;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (isClosed())
+                return;
+            super.close();
+            agents.remove(agentId);
+            send(DescriptorCode.RELAY_CLOSE, RelayFrame.encode(agentId, new byte[0]));
+        }
+    }
+
+    /**
+     * Queue of an agent behind the relay: frames go straight to the relay's connection, which is written in order by its own writer.
+     */
+    private final class AgentQueue extends OutboundQueue {
+
+        private final int agentId;
+
+        private AgentQueue(int agentId) {
+            super(MainServer.OUTBOUND_QUEUE_CAPACITY, MainServer::overflowPolicyOf, MainServer::channelOf);
+            this.agentId = agentId;
+        }
+
+        @Override
+        public boolean offer(byte descriptorByte, byte[] dataBuffer) {
+            return !isClosed() && send(agentId, descriptorByte, dataBuffer);
+        }
+
+        @Override
+        public boolean offer(SharedFrame sharedFrame) {
+            return offer(sharedFrame.descriptorByte(), sharedFrame.dataBuffer());
+        }
+
+        @Override
+        public void grantCredit(FrameCodec.Channel channel, long bytes) {
+        }
+    }
+}
@@ -1,21 +1,57 @@
 package RemoteDesktopAdministration.Server;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.ScreenTiles;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 import RemoteDesktopAdministration.Server.UI.PrimaryModel;
-import RemoteDesktopAdministration.Server.Utils.ImageUtils;
 import javafx.application.Platform;
-import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ScreenSharing {
 
+    /**
+     * frames are requested at most 30 times a second, and never faster than the client answers: SRTT + 4 RTTVAR of its heartbeat, capped at a second
+     */
+    static final long MIN_FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+    static final long MAX_FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    public static final int DEFAULT_STREAM_FPS = 30;
+    public static final int DEFAULT_STREAM_WINDOW = 3;
+    /**
+     * once {@link Handshake.Feature#SCREEN_STREAMING} is agreed, frames per second client is asked to push, and frames it may push ahead of those shown,
+     * set with system properties {@code rda.screenStreamFps} and {@code rda.screenStreamWindow}
+     */
+    private static final int STREAM_FPS = Integer.getInteger("rda.screenStreamFps", DEFAULT_STREAM_FPS);
+    private static final int STREAM_WINDOW = Integer.getInteger("rda.screenStreamWindow", DEFAULT_STREAM_WINDOW);
     private final MainServer mainServer;
     private final MainServer.Client client;
     private final RemoteDesktopAdministration.Server.UI.ClientScreenViewer.Model model;
+    private final ReentrantLock stateLock = new ReentrantLock();
+    /**
+     * guards screenBytes, screenImage and dirtyRegion between the reading thread, which patches frames into screenBytes, and the FX thread, which copies the dirty region to screenImage
+     */
+    private final ReentrantLock frameLock = new ReentrantLock();
+    /**
+     * set while a render is queued on the FX thread; frames arriving meanwhile only grow the dirty region, so at most one render waits
+     */
+    private final AtomicBoolean renderPending = new AtomicBoolean(false);
+    private volatile long lastRequestNanos = System.nanoTime() - MAX_FRAME_INTERVAL_NANOS;
     private double wClient;
     private double hClient;
+    private byte[] screenBytes;
+    private WritableImage screenImage;
+    private ScreenTiles.Region dirtyRegion;
+    /**
+     * frames patched into screenBytes since the viewer started, guarded by frameLock
+     */
+    private long framesReceived;
 
     public ScreenSharing(MainServer mainServer, RemoteDesktopAdministration.Server.UI.ClientScreenViewer.Model model, PrimaryModel primaryModel, MainServer.Client client) {
         this.mainServer = mainServer;
@@ -23,11 +59,19 @@ public class ScreenSharing {
         this.client = client;
     }
 
-    synchronized void stateActionPerformed(State state, byte[] dataByteBuffer) {
+    /**
+     * @param dataByteBuffer frame data, valid from index 0 to dataLength and only during this call
+     */
+    void stateActionPerformed(State state, byte[] dataByteBuffer, int dataLength) {
         Objects.requireNonNull(state);
-        switch (state) {
-            case NO_PROGRESS -> noProgress(new String(dataByteBuffer, StandardCharsets.UTF_8));
-            case PROGRESS -> progress(dataByteBuffer);
+        stateLock.lock();
+        try {
+            switch (state) {
+                case NO_PROGRESS -> noProgress(new String(dataByteBuffer, 0, dataLength, StandardCharsets.UTF_8));
+                case PROGRESS -> progress(dataByteBuffer, dataLength);
+            }
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -37,17 +81,112 @@ public class ScreenSharing {
         final var params = parameters.split(",");
         wClient = Double.parseDouble(params[0]);
         hClient = Double.parseDouble(params[1]);
+        frameLock.lock();
+        try {
+            screenBytes = new byte[(int) wClient * (int) hClient * 4];
+            screenImage = new WritableImage((int) wClient, (int) hClient);
+            dirtyRegion = null;
+            framesReceived = 0L;
+        } finally {
+            frameLock.unlock();
+        }
         ServerLogger.SERVER_LOGGER.info("Configuration setup to view " + client.getClientDescriptiveName() + " Screen succeeded.");
-        mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, "", client.getDataOutputStream());
+        if (client.getAgreement().uses(Handshake.Feature.SCREEN_STREAMING))
+            mainServer.writeStream(DescriptorCode.SCREEN_STREAM_START, STREAM_FPS + "," + STREAM_WINDOW, client);
+        else
+            requestFrame();
+
+    }
+
+    /**
+     * Patches frame into the client's screen kept here, changed tiles or the whole screen as agreed; frame data is copied here, as the frame buffer is reused once this call returns.
+     * A streamed frame is acknowledged once it is shown, so that a slow viewer holds the client back rather than piling frames up.
+     */
+    private void progress(byte[] dataByteBuffer, int dataLength) {
+        final int width = (int) wClient;
+        final int height = (int) hClient;
+        final ScreenTiles.Region region;
+        final long frames;
+        frameLock.lock();
+        frames = ++framesReceived;
+        try {
+            if (client.getAgreement().screenEncoding() == Handshake.ScreenEncoding.TILES) {
+                region = ScreenTiles.decode(dataByteBuffer, dataLength, width, height, screenBytes);
+            } else if (dataLength >= screenBytes.length) {
+                System.arraycopy(dataByteBuffer, 0, screenBytes, 0, screenBytes.length);
+                region = new ScreenTiles.Region(0, 0, width, height);
+            } else {
+                nextFrame(frames);
+                return;
+            }
+            if (region != null)
+                dirtyRegion = dirtyRegion == null ? region : dirtyRegion.union(region);
+        } catch (IllegalArgumentException e) {
+            ServerLogger.SERVER_LOGGER.warning("Screen frame of " + client.getClientDescriptiveName() + " ignored due to : " + e.getMessage());
+            nextFrame(frames);
+            return;
+        } finally {
+            frameLock.unlock();
+        }
+        /* a render on its way acknowledges this frame too */
+        if (region == null && !renderPending.get())
+            nextFrame(frames);
+        else if (renderPending.compareAndSet(false, true))
+            Platform.runLater(this::render);
+    }
+
+    /**
+     * Copies the region changed since the last render into the image shown, on the FX thread.
+     */
+    private void render() {
+        renderPending.set(false);
+        final WritableImage image;
+        final long frames;
+        frameLock.lock();
+        try {
+            image = screenImage;
+            frames = framesReceived;
+            final var region = dirtyRegion;
+            dirtyRegion = null;
+            if (region != null) {
+                final int scanlineStride = (int) image.getWidth() * 4;
+                image.getPixelWriter().setPixels(region.x(), region.y(), region.width(), region.height(), PixelFormat.getByteBgraInstance(),
+                        screenBytes, region.y() * scanlineStride + region.x() * 4, scanlineStride);
+            }
+        } finally {
+            frameLock.unlock();
+        }
+        model.setSharedScreen(image);
+        nextFrame(frames);
+    }
+
+    /**
+     * Acknowledges frames shown to a streaming client, or requests the next frame from any other.
+     *
+     * @param frames frames received up to the one done with
+     */
+    private void nextFrame(long frames) {
+        if (client.getAgreement().uses(Handshake.Feature.SCREEN_STREAMING))
+            mainServer.writeStream(DescriptorCode.SCREEN_FRAME_ACK, String.valueOf(frames), client);
+        else
+            requestNextFrame();
+    }
 
+    /**
+     * Requests next frame once the frame interval has passed since the previous request, from the server's scheduler if it has not.
+     */
+    private void requestNextFrame() {
+        final long interval = Math.min(MAX_FRAME_INTERVAL_NANOS, Math.max(MIN_FRAME_INTERVAL_NANOS, client.getHeartbeat().getResponseTimeNanos(0L)));
+        final long delay = lastRequestNanos + interval - System.nanoTime();
+        if (delay <= 0L)
+            requestFrame();
+        else
+            mainServer.schedule(this::requestFrame, delay, TimeUnit.NANOSECONDS);
     }
 
-    void progress(byte[] dataByteBuffer) {
-        Platform.runLater(() -> {
-            Image image = ImageUtils.fxByteArrayToFxImage((int) wClient, (int) hClient, dataByteBuffer);
-            model.setSharedScreen(image);
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, "", client.getDataOutputStream());
-        });
+    private void requestFrame() {
+        lastRequestNanos = System.nanoTime();
+        mainServer.writeStream(DescriptorCode.SCREEN_SHARING_ON_PROGRESS, "", client);
     }
 
     enum State {
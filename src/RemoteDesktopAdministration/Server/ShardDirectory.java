@@ -0,0 +1,160 @@
+package RemoteDesktopAdministration.Server;
+
+import RemoteDesktopAdministration.Server.Logger.ServerLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+/**
+ * Directory of clients shared by the server nodes of a sharded deployment: maps the descriptive name of every online client to the node owning its connection.
+ * <p>
+ * The store is a folder every node can reach, holding one small file per client named after the client and naming its node.
+ * Entries are written to a temporary file and moved into place atomically, so a reader sees an entry whole or not at all, and only the owning node removes an entry.
+ * A node clears the entries it left behind when it starts and when it stops, so a crashed node's clients vanish on its restart.
+ */
+final class ShardDirectory {
+
+    private static final String ENTRY_SUFFIX = ".client";
+    private static final Base64.Encoder NAME_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder NAME_DECODER = Base64.getUrlDecoder();
+    private final Path root;
+    private final Node node;
+
+    /**
+     * @param root folder of the store, created if missing
+     * @param node this node
+     */
+    ShardDirectory(Path root, Node node) throws IOException {
+        this.root = Files.createDirectories(root);
+        this.node = node;
+        clear();
+    }
+
+    Node getNode() {
+        return node;
+    }
+
+    /**
+     * Records client as owned by this node.
+     */
+    void publish(String descriptiveName) {
+        final var entry = entryOf(descriptiveName);
+        try {
+            final var temporary = Files.createTempFile(root, null, ".tmp");
+            Files.writeString(temporary, node.encode(), StandardCharsets.UTF_8);
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Shard directory entry of " + descriptiveName + " not written due to : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes entry of client, unless another node owns it by now.
+     */
+    void unpublish(String descriptiveName) {
+        final var entry = entryOf(descriptiveName);
+        final var owner = read(entry);
+        if (owner != null && owner.id() == node.id())
+            delete(entry);
+    }
+
+    /**
+     * @return node owning client, null if client is not online on any node
+     */
+    Node owner(String descriptiveName) {
+        return read(entryOf(descriptiveName));
+    }
+
+    /**
+     * @return descriptive names of clients owned by other nodes, with their nodes
+     */
+    Map<String, Node> remoteClients() {
+        final Map<String, Node> clients = new HashMap<>();
+        forEachEntry((descriptiveName, owner) -> {
+            if (owner.id() != node.id())
+                clients.put(descriptiveName, owner);
+        });
+        return clients;
+    }
+
+    /**
+     * Removes every entry of this node.
+     */
+    void clear() {
+        forEachEntry((descriptiveName, owner) -> {
+            if (owner.id() == node.id())
+                delete(entryOf(descriptiveName));
+        });
+    }
+
+    private void forEachEntry(BiConsumer<String, Node> action) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root, "*" + ENTRY_SUFFIX)) {
+            for (Path entry : entries) {
+                final var owner = read(entry);
+                if (owner != null)
+                    action.accept(nameOf(entry), owner);
+            }
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Shard directory not read due to : " + e.getMessage(), e);
+        }
+    }
+
+    private Path entryOf(String descriptiveName) {
+        return root.resolve(NAME_ENCODER.encodeToString(descriptiveName.getBytes(StandardCharsets.UTF_8)) + ENTRY_SUFFIX);
+    }
+
+    private static String nameOf(Path entry) {
+        final var fileName = entry.getFileName().toString();
+        return new String(NAME_DECODER.decode(fileName.substring(0, fileName.length() - ENTRY_SUFFIX.length())), StandardCharsets.UTF_8);
+    }
+
+    private static Node read(Path entry) {
+        try {
+            return Node.decode(Files.readString(entry, StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            ServerLogger.SERVER_LOGGER.fine("Shard directory entry " + entry.getFileName() + " ignored due to : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void delete(Path entry) {
+        try {
+            Files.deleteIfExists(entry);
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Shard directory entry " + entry.getFileName() + " not removed due to : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Server node of a sharded deployment.
+     *
+     * @param id           id of node, unique in the deployment
+     * @param routeAddress address other nodes route commands for clients of this node to, see {@link ShardRouter}; unresolved when read from the store
+     */
+    record Node(int id, InetSocketAddress routeAddress) {
+
+        static Node decode(String entry) {
+            final var fields = entry.trim().split("\n");
+            if (fields.length != 3)
+                throw new IllegalArgumentException("malformed entry");
+            return new Node(Integer.parseInt(fields[0]), InetSocketAddress.createUnresolved(fields[1], Integer.parseInt(fields[2])));
+        }
+
+        String encode() {
+            return id + "\n" + routeAddress.getHostString() + "\n" + routeAddress.getPort();
+        }
+    }
+}
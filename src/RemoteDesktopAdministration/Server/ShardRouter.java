@@ -0,0 +1,197 @@
+package RemoteDesktopAdministration.Server;
+
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+import RemoteDesktopAdministration.Server.Logger.ServerLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * Carries commands between the server nodes of a sharded deployment: a command of this node's console for a client another node owns, found in {@link ShardDirectory},
+ * is sent to that node as a {@link DescriptorCode#SHARD_ROUTE} frame and queued there to the client like a command of its own console.
+ * <p>
+ * Payload of SHARD_ROUTE : Descriptor Byte of command (1B) + Length of client's descriptive name as big-endian short (2B) + Descriptive name in UTF-8 + Data of command.
+ * <p>
+ * Every node listens for other nodes on its route address only, and opens one connection to every node it routes to on first use, written by its own writer thread;
+ * a failed connection is opened again on next use. Frames keep the legacy format, server nodes do not take part in the handshake.
+ * <p>
+ * A connection starts with a {@link DescriptorCode#SHARD_ATTACH} frame carrying the secret the nodes share; a node closes a connection which does not,
+ * and delivers only commands its console sends, see {@link #ROUTED_DESCRIPTORS}.
+ * Commands are routed one at a time on a thread of the router, as looking owners up reads the directory from disk and connecting may wait for an unreachable node.
+ */
+final class ShardRouter {
+
+    private static final long OUTBOUND_QUEUE_CAPACITY = 4L * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final ThreadFactory WRITER_THREAD_FACTORY = ThreadMode.CONFIGURED.threadFactory("Shard-Writer-");
+    private static final Set<Byte> ROUTED_DESCRIPTORS = Set.of(DescriptorCode.CLIENT_CONTROL_OPERATIONS_REQ, DescriptorCode.CHAT_INITIATOR_SERVER,
+            DescriptorCode.CONNECTION_LOST, DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS);
+    private final MainServer mainServer;
+    private final ShardDirectory directory;
+    private final byte[] secret;
+    /**
+     * connections to other nodes, opened on the route thread only
+     */
+    private final Map<Integer, OutboundQueue> peers = new ConcurrentHashMap<>();
+    private final ExecutorService routeExecutor = Executors.newSingleThreadExecutor(ThreadMode.PLATFORM.threadFactory("Shard-Route-"));
+    private ServerSocket serverSocket = null;
+
+    /**
+     * @param secret secret shared by the nodes of the deployment
+     */
+    ShardRouter(MainServer mainServer, ShardDirectory directory, String secret) {
+        this.mainServer = mainServer;
+        this.directory = directory;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Listens for commands routed by other nodes on the route address of this node.
+     */
+    void start() throws IOException {
+        serverSocket = ServerSocketChannel.open().bind(directory.getNode().routeAddress()).socket();
+        ThreadMode.CONFIGURED.start("Shard-Router", this::listenNodes);
+        ServerLogger.SERVER_LOGGER.info("Shard node " + directory.getNode().id() + " routing at " + directory.getNode().routeAddress());
+    }
+
+    void stop() {
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        routeExecutor.shutdownNow();
+        peers.values().forEach(OutboundQueue::close);
+        peers.clear();
+    }
+
+    /**
+     * Queues command to be routed to the node owning client, without waiting for the directory or the node.
+     *
+     * @param descriptiveName descriptive name of a client not online on this node
+     */
+    void route(byte descriptor, byte[] data, String descriptiveName) {
+        if (!ROUTED_DESCRIPTORS.contains(descriptor)) {
+            ServerLogger.SERVER_LOGGER.fine(DescriptorCode.nameOf(descriptor) + " for " + descriptiveName + " is never routed.");
+            return;
+        }
+        try {
+            routeExecutor.execute(() -> send(descriptor, data, descriptiveName));
+        } catch (RejectedExecutionException e) {
+            ServerLogger.SERVER_LOGGER.fine(DescriptorCode.nameOf(descriptor) + " for " + descriptiveName + " dropped, shard node stopped.");
+        }
+    }
+
+    private void send(byte descriptor, byte[] data, String descriptiveName) {
+        final var owner = directory.owner(descriptiveName);
+        if (owner == null || owner.id() == directory.getNode().id()) {
+            ServerLogger.SERVER_LOGGER.fine(DescriptorCode.nameOf(descriptor) + " dropped, " + descriptiveName + " is online on no other node.");
+            return;
+        }
+        final var peer = peerOf(owner);
+        if (peer == null)
+            return;
+        final byte[] name = descriptiveName.getBytes(StandardCharsets.UTF_8);
+        final var payload = ByteBuffer.allocate(1 + Short.BYTES + name.length + data.length).put(descriptor).putShort((short) name.length).put(name).put(data);
+        peer.offer(DescriptorCode.SHARD_ROUTE, payload.array());
+    }
+
+    /**
+     * @return connection to node, opened and attached with the shared secret if there is none, null if node is unreachable
+     */
+    private OutboundQueue peerOf(ShardDirectory.Node node) {
+        final var peer = peers.get(node.id());
+        if (peer != null && !peer.isClosed())
+            return peer;
+        final var address = new InetSocketAddress(node.routeAddress().getHostString(), node.routeAddress().getPort());
+        try {
+            final var channel = SocketChannel.open();
+            try {
+                channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            final var outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, (descriptor, data) -> OutboundQueue.OverflowPolicy.NEVER_DROP, (descriptor, data) -> FrameCodec.Channel.CONTROL);
+            outboundQueue.startWriter(channel, 0L, WRITER_THREAD_FACTORY);
+            outboundQueue.offer(DescriptorCode.SHARD_ATTACH, secret);
+            peers.put(node.id(), outboundQueue);
+            ServerLogger.SERVER_LOGGER.info("Connected to shard node " + node.id() + " at " + address);
+            return outboundQueue;
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Shard node " + node.id() + " at " + address + " unreachable due to : " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void listenNodes() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final var socket = serverSocket.accept();
+                ThreadMode.CONFIGURED.start("Shard-Node-" + socket.getRemoteSocketAddress(), () -> listenNode(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    ServerLogger.SERVER_LOGGER.log(Level.WARNING, "Shard node connection failed due to : " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void listenNode(Socket socket) {
+        try (socket; var frameReader = new FrameReader(socket.getInputStream())) {
+            final var attach = frameReader.readStream();
+            if (attach.descriptorByte() != DescriptorCode.SHARD_ATTACH
+                    || !MessageDigest.isEqual(secret, Arrays.copyOf(attach.dataBuffer(), attach.dataLength()))) {
+                ServerLogger.SERVER_LOGGER.warning("Shard node connection from " + socket.getRemoteSocketAddress() + " refused, shared secret missing or wrong.");
+                return;
+            }
+            attach.release();
+            while (true) {
+                final var stream = frameReader.readStream();
+                if (stream.descriptorByte() == DescriptorCode.CONNECTION_LOST)
+                    break;
+                if (stream.descriptorByte() == DescriptorCode.SHARD_ROUTE)
+                    deliver(stream);
+                else
+                    ServerLogger.SERVER_LOGGER.finest("Message Type ignored from shard node :" + DescriptorCode.nameOf(stream.descriptorByte()));
+                stream.release();
+            }
+        } catch (IOException e) {
+            ServerLogger.SERVER_LOGGER.fine("Shard node connection closed due to : " + e.getMessage());
+        }
+    }
+
+    private void deliver(ReadStream stream) {
+        final var payload = ByteBuffer.wrap(stream.dataBuffer(), 0, stream.dataLength());
+        final byte descriptor = payload.get();
+        if (!ROUTED_DESCRIPTORS.contains(descriptor)) {
+            ServerLogger.SERVER_LOGGER.warning("Routed " + DescriptorCode.nameOf(descriptor) + " refused, console never sends it to other nodes.");
+            return;
+        }
+        final byte[] name = new byte[Short.toUnsignedInt(payload.getShort())];
+        payload.get(name);
+        final byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        mainServer.deliverRouted(descriptor, data, new String(name, StandardCharsets.UTF_8));
+    }
+}
@@ -1,11 +1,17 @@
 package RemoteDesktopAdministration.Server.UI.ClientScreenViewer;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.InputEvents;
+import RemoteDesktopAdministration.Server.InputBatcher;
 import RemoteDesktopAdministration.Server.MainServer;
 import RemoteDesktopAdministration.Server.UI.PrimaryModel;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.input.ScrollEvent;
 
@@ -18,6 +24,7 @@ public class Controller implements Initializable {
     private final Model model;
     private final MainServer mainServer;
     private final MainServer.Client client;
+    private final InputBatcher inputBatcher;
     @FXML
     private ImageView screenImageView;
 
@@ -26,6 +33,7 @@ public class Controller implements Initializable {
         this.mainServer = mainServer;
         this.model = model;
         this.client = client;
+        this.inputBatcher = new InputBatcher(mainServer, client);
     }
 
     @Override
@@ -46,31 +54,50 @@ public class Controller implements Initializable {
 
     private void screenViewOnScrollEvent(ScrollEvent scrollEvent) {
         if (ScrollEvent.SCROLL.equals(scrollEvent.getEventType())) {
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, scrollEvent.getEventType().getName() + "," + scrollEvent.getTouchCount(), client.getDataOutputStream());
+            sendInputEvent(InputEvents.Type.SCROLL, scrollEvent.getTouchCount(), 0, 0);
         }
     }
 
     private void screenViewOnKeyEvent(KeyEvent keyEvent) {
         if (KeyEvent.KEY_PRESSED.equals(keyEvent.getEventType())) {
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, keyEvent.getEventType().getName() + "," + keyEvent.getCode().name(), client.getDataOutputStream());
+            sendInputEvent(InputEvents.Type.KEY_PRESSED, keyEvent.getCode().ordinal(), 0, 0);
         }
         if (KeyEvent.KEY_RELEASED.equals(keyEvent.getEventType())) {
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, keyEvent.getEventType().getName() + "," + keyEvent.getCode().name(), client.getDataOutputStream());
+            sendInputEvent(InputEvents.Type.KEY_RELEASED, keyEvent.getCode().ordinal(), 0, 0);
         }
     }
 
     private void screenViewOnMouseEvent(MouseEvent mouseEvent) {
 
         if (MouseEvent.MOUSE_PRESSED.equals(mouseEvent.getEventType())) {
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, mouseEvent.getEventType().getName() + "," + mouseEvent.getButton().name(), client.getDataOutputStream());
+            sendInputEvent(InputEvents.Type.MOUSE_PRESSED, mouseEvent.getButton().ordinal(), 0, 0);
         }
         if (MouseEvent.MOUSE_RELEASED.equals(mouseEvent.getEventType())) {
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, mouseEvent.getEventType().getName() + "," + mouseEvent.getButton().name(), client.getDataOutputStream());
+            sendInputEvent(InputEvents.Type.MOUSE_RELEASED, mouseEvent.getButton().ordinal(), 0, 0);
         }
         if (MouseEvent.MOUSE_MOVED.equals(mouseEvent.getEventType())) {
-            mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_PROGRESS, mouseEvent.getEventType().getName() + "," + mouseEvent.getX() + "," + mouseEvent.getY(), client.getDataOutputStream());
+            sendInputEvent(InputEvents.Type.MOUSE_MOVED, 0, mouseEvent.getX(), mouseEvent.getY());
         }
 
     }
 
+    /**
+     * Batches event for client, or sends it as event type + ',' + parameters to a client predating {@link Handshake.Feature#INPUT_EVENTS}, which takes a frame after each one.
+     *
+     * @param code ordinal of button or key, or scroll amount
+     */
+    private void sendInputEvent(InputEvents.Type type, int code, double x, double y) {
+        if (client.getAgreement().uses(Handshake.Feature.INPUT_EVENTS)) {
+            inputBatcher.add(type, code, x, y);
+            return;
+        }
+        final String parameters = switch (type) {
+            case MOUSE_MOVED -> x + "," + y;
+            case MOUSE_PRESSED, MOUSE_RELEASED -> MouseButton.values()[code].name();
+            case SCROLL -> String.valueOf(code);
+            case KEY_PRESSED, KEY_RELEASED -> KeyCode.values()[code].name();
+        };
+        mainServer.writeStream(DescriptorCode.SCREEN_SHARING_ON_PROGRESS, type.name() + "," + parameters, client);
+    }
+
 }
@@ -1,5 +1,6 @@
 package RemoteDesktopAdministration.Server.UI.ClientScreenViewer;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 import RemoteDesktopAdministration.Server.MainServer;
 import RemoteDesktopAdministration.Server.UI.PrimaryModel;
@@ -71,7 +72,7 @@ public class View {
     public void stop(StopMode stopMode) {
         if (!started.get())
             return;
-        mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ABORT, "", client.getDataOutputStream());
+        mainServer.writeStream(DescriptorCode.SCREEN_SHARING_ABORT, "", client);
         started.set(false);
         stage.close();
         ServerLogger.SERVER_LOGGER.log(Level.SEVERE, stopMode.name() + " | Screen receiving of " + client.getClientDescriptiveName() + " terminated.");
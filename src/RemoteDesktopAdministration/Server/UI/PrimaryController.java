@@ -1,5 +1,6 @@
 package RemoteDesktopAdministration.Server.UI;
 
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
 import RemoteDesktopAdministration.Server.ControlOps;
 import RemoteDesktopAdministration.Server.Logger.ServerLogger;
 import RemoteDesktopAdministration.Server.MainServer;
@@ -195,22 +196,22 @@ public class PrimaryController implements Initializable {
 
     private void readClientBtnOnAction(ActionEvent actionEvent) {
         final var selectedClients = clientOnlineList.getSelectionModel().getSelectedItems();
-        mainServer.writeStream(MainServer.DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS, "", selectedClients);
+        mainServer.writeStream(DescriptorCode.SCREEN_SHARING_ON_NO_PROGRESS, "", selectedClients);
         actionEvent.consume();
     }
 
     private void clientControlOpsBtnOnAction(ActionEvent actionEvent, ControlOps.State state) {
         final var selectedClients = clientOnlineList.getSelectionModel().getSelectedItems();
         Byte descriptorCode = switch (state) {
-            case SHUTDOWN -> MainServer.DescriptorCode.CLIENT_SHUTDOWN;
-            case RESTART -> MainServer.DescriptorCode.CLIENT_RESTART;
-            case LOG_OFF -> MainServer.DescriptorCode.CLIENT_LOGOFF;
+            case SHUTDOWN -> DescriptorCode.CLIENT_SHUTDOWN;
+            case RESTART -> DescriptorCode.CLIENT_RESTART;
+            case LOG_OFF -> DescriptorCode.CLIENT_LOGOFF;
             default -> null;
         };
         if (descriptorCode == null)
             return;
         selectedClients.parallelStream().forEachOrdered(client -> ServerLogger.SERVER_LOGGER.info("Preparing " + state.name() + " Request for " + client));
-        mainServer.writeStream(MainServer.DescriptorCode.CLIENT_CONTROL_OPERATIONS_REQ, String.valueOf(descriptorCode), selectedClients);
+        mainServer.writeStream(DescriptorCode.CLIENT_CONTROL_OPERATIONS_REQ, String.valueOf(descriptorCode), selectedClients);
         actionEvent.consume();
     }
 
@@ -272,7 +273,7 @@ public class PrimaryController implements Initializable {
 
     private void sendBtnOnAction(ActionEvent actionEvent) {
         final var selectedItems = clientOnlineList.getSelectionModel().getSelectedItems();
-        mainServer.writeStream(MainServer.DescriptorCode.CHAT_INITIATOR_SERVER, trimmedMessageInput.get(), selectedItems);
+        mainServer.writeStream(DescriptorCode.CHAT_INITIATOR_SERVER, trimmedMessageInput.get(), selectedItems);
         messageInput.clear();
         sendBtn.requestFocus();
         actionEvent.consume();
@@ -281,7 +282,7 @@ public class PrimaryController implements Initializable {
     private void disconnectClientBtnOnAction(ActionEvent actionEvent) {
 
         final var selectedItems = clientOnlineList.getSelectionModel().getSelectedItems();
-        mainServer.writeStream(MainServer.DescriptorCode.CONNECTION_LOST, "", selectedItems);
+        mainServer.writeStream(DescriptorCode.CONNECTION_LOST, "", selectedItems);
         selectedItems.forEach(primaryModel::setClientOffline);
 
     }
@@ -0,0 +1,65 @@
+package RemoteDesktopAdministration.Tools;
+
+import RemoteDesktopAdministration.Protocol.Discovery;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loopback test of {@link Discovery}: multicasts beacons of a few simulated servers of different loads from this host, as servers do every {@link Discovery#BEACON_INTERVAL_MILLIS},
+ * listens as a client does and checks that the least-loaded server is picked; exits with status 1 otherwise.
+ * Needs a network interface with multicast, and the group and port of {@code rda.discoveryGroup} and {@code rda.discoveryPort} free of real servers.
+ */
+public final class DiscoveryDriver {
+
+    private static final Logger DISCOVERY_LOGGER = Logger.getLogger(DiscoveryDriver.class.getName());
+    private static final List<Discovery.Beacon> SERVERS = List.of(
+            new Discovery.Beacon(new InetSocketAddress(46001), Handshake.PROTOCOL_VERSION, 12, "busy"),
+            new Discovery.Beacon(new InetSocketAddress(46002), Handshake.PROTOCOL_VERSION, 3, "idle"),
+            new Discovery.Beacon(new InetSocketAddress(46003), Handshake.PROTOCOL_VERSION, 7, "average"));
+
+    private DiscoveryDriver() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final var expected = SERVERS.stream().min(Comparator.comparingInt(Discovery.Beacon::load)).orElseThrow();
+        final Thread sender = ThreadMode.PLATFORM.start("Discovery-Beacons", DiscoveryDriver::sendBeacons);
+        final List<Discovery.Beacon> beacons;
+        try {
+            beacons = Discovery.listen(2 * Discovery.BEACON_INTERVAL_MILLIS);
+        } finally {
+            sender.interrupt();
+        }
+        final var leastLoaded = Discovery.leastLoaded(beacons);
+        DISCOVERY_LOGGER.info("Heard " + beacons.size() + " of " + SERVERS.size() + " servers : " + beacons);
+        if (beacons.size() != SERVERS.size() || leastLoaded.isEmpty() || leastLoaded.get().address().getPort() != expected.address().getPort()
+                || leastLoaded.get().load() != expected.load()) {
+            DISCOVERY_LOGGER.severe("Discovery picked " + leastLoaded.map(Discovery.Beacon::toString).orElse("no server") + ", expected " + expected.name() + ".");
+            System.exit(1);
+        }
+        DISCOVERY_LOGGER.info("Discovery picked the least-loaded server, " + leastLoaded.get().name() + " at " + leastLoaded.get().address() + ".");
+    }
+
+    /**
+     * Beacons of every simulated server, several times within the client's listening window so that none is missed.
+     */
+    private static void sendBeacons() {
+        try (MulticastSocket socket = Discovery.openSender()) {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (Discovery.Beacon beacon : SERVERS)
+                    Discovery.send(socket, beacon);
+                Thread.sleep(Discovery.BEACON_INTERVAL_MILLIS / 4);
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            DISCOVERY_LOGGER.log(Level.SEVERE, "Beacons not sent due to : " + e.getMessage(), e);
+        }
+    }
+}
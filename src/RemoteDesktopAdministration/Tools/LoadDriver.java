@@ -0,0 +1,167 @@
+package RemoteDesktopAdministration.Tools;
+
+import RemoteDesktopAdministration.Protocol.DescriptorCode;
+import RemoteDesktopAdministration.Protocol.FrameCodec;
+import RemoteDesktopAdministration.Protocol.FrameReader;
+import RemoteDesktopAdministration.Protocol.FrameWriter;
+import RemoteDesktopAdministration.Protocol.Handshake;
+import RemoteDesktopAdministration.Protocol.OutboundQueue;
+import RemoteDesktopAdministration.Protocol.ReadStream;
+import RemoteDesktopAdministration.Protocol.ThreadMode;
+import RemoteDesktopAdministration.Server.MainServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load test of the blocking transport under each {@link ThreadMode}: opens N simulated clients against an in-process server loop laid out as {@link MainServer} lays out clients,
+ * a handler reading frames and an outbound queue with its own writer thread per connection, and logs thread count and resident memory once all of them are connected
+ * and have answered a round of PINGs.
+ * <p>
+ * Usage : {@code LoadDriver [clients] [PLATFORM|VIRTUAL]}, 1000 clients in both modes by default. Resident memory only grows within one JVM, so compare modes in runs of their own.
+ * Opening many clients needs as many file descriptors twice over, see {@code ulimit -n}.
+ */
+public final class LoadDriver {
+
+    public static final int DEFAULT_CLIENTS = 1000;
+    public static final int DEFAULT_ROUNDS = 3;
+    private static final Logger LOAD_LOGGER = Logger.getLogger(LoadDriver.class.getName());
+    private static final long OUTBOUND_QUEUE_CAPACITY = Long.getLong("rda.outboundQueueCapacity", MainServer.DEFAULT_OUTBOUND_QUEUE_CAPACITY);
+
+    private LoadDriver() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        final ThreadMode[] modes = args.length > 1 ? new ThreadMode[]{ThreadMode.valueOf(args[1].toUpperCase())} : ThreadMode.values();
+        for (ThreadMode mode : modes)
+            run(mode, clients);
+    }
+
+    private static void run(ThreadMode mode, int clients) throws IOException, InterruptedException {
+        final int baseThreads = threadCount();
+        final ExecutorService handlers = mode.newPerTaskExecutor("Load-Handler-");
+        final List<Socket> accepted = new ArrayList<>(clients);
+        final List<SimulatedClient> simulatedClients = new ArrayList<>(clients);
+        try (ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), clients).socket()) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                simulatedClients.add(new SimulatedClient(SocketChannel.open(serverSocket.getLocalSocketAddress())));
+                final Socket socket = serverSocket.accept();
+                accepted.add(socket);
+                final var outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, MainServer::overflowPolicyOf, MainServer::channelOf);
+                outboundQueue.startWriter(socket.getChannel(), 0L, mode.threadFactory("Load-Writer-"));
+                handlers.execute(() -> handle(socket, outboundQueue));
+            }
+            LOAD_LOGGER.info(mode + " : " + clients + " clients connected in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+            for (int round = 1; round <= DEFAULT_ROUNDS; round++) {
+                final long roundStart = System.nanoTime();
+                for (SimulatedClient simulatedClient : simulatedClients)
+                    simulatedClient.ping();
+                for (SimulatedClient simulatedClient : simulatedClients)
+                    simulatedClient.awaitPong();
+                LOAD_LOGGER.info(mode + " : round " + round + " of PINGs answered by every client in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStart) + " ms.");
+            }
+            LOAD_LOGGER.info(mode + " : " + clients + " clients, " + (threadCount() - baseThreads) + " platform threads started, " + threadCount() + " live, resident memory " + residentMemory() + ".");
+        } finally {
+            for (SimulatedClient simulatedClient : simulatedClients)
+                simulatedClient.close();
+            for (Socket socket : accepted)
+                socket.close();
+            handlers.shutdownNow();
+            handlers.awaitTermination(10L, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Loop of a client handler, answering each PING with a PONG through the connection's outbound queue.
+     */
+    private static void handle(Socket socket, OutboundQueue outboundQueue) {
+        try (var frameReader = new FrameReader(socket.getInputStream())) {
+            while (true) {
+                final ReadStream stream = frameReader.readStream();
+                if (stream.descriptorByte() == DescriptorCode.CONNECTION_LOST)
+                    break;
+                if (stream.descriptorByte() == DescriptorCode.PING)
+                    outboundQueue.offer(DescriptorCode.PONG, Arrays.copyOf(stream.dataBuffer(), stream.dataLength()));
+                stream.release();
+            }
+        } catch (IOException e) {
+            LOAD_LOGGER.log(Level.FINE, "Simulated client lost due to : " + e.getMessage(), e);
+        } finally {
+            outboundQueue.close();
+        }
+    }
+
+    /**
+     * @return live platform threads; virtual threads are not counted
+     */
+    private static int threadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * @return VmRSS line of /proc/self/status, where there is one
+     */
+    private static String residentMemory() {
+        try {
+            return Files.readAllLines(Path.of("/proc/self/status")).stream().filter(line -> line.startsWith("VmRSS:"))
+                    .map(line -> line.substring("VmRSS:".length()).trim()).findFirst().orElse("(unknown)");
+        } catch (IOException e) {
+            return "(unknown)";
+        }
+    }
+
+    /**
+     * Client connection driven by the driver's thread, speaking the legacy frame format.
+     */
+    private static final class SimulatedClient {
+
+        private final SocketChannel channel;
+        private final FrameWriter frameWriter;
+        private final FrameReader frameReader;
+
+        private SimulatedClient(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.frameWriter = new FrameWriter(channel);
+            this.frameReader = new FrameReader(channel.socket().getInputStream(), 1024);
+        }
+
+        private void ping() throws IOException {
+            final byte[] payload = ByteBuffer.allocate(Long.BYTES).putLong(System.nanoTime()).array();
+            frameWriter.add(Handshake.Agreement.LEGACY, FrameCodec.Channel.CONTROL, DescriptorCode.PING, payload, 0, payload.length, true);
+            frameWriter.writeFully();
+        }
+
+        private void awaitPong() throws IOException {
+            ReadStream stream;
+            while ((stream = frameReader.readFrame()).descriptorByte() != DescriptorCode.PONG)
+                stream.release();
+            stream.release();
+        }
+
+        private void close() {
+            try {
+                frameReader.close();
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}